@@ -0,0 +1,142 @@
+package com.wandisco.hive.udaf.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.LongWritable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wandisco.hive.udaf.UDAFCntBitSet;
+import com.wandisco.hive.udaf.UDAFCntDouble;
+import com.wandisco.hive.udaf.UDAFCntInt;
+import com.wandisco.hive.udaf.UDAFCntLong;
+
+/**
+ * The map side of the typed count_distinct_long, _int, _double and _bitset
+ * evaluators: a block of rows iterated into an empty group. {@code iterate}
+ * runs the evaluator as it is; {@code read} is the primitive read it does
+ * per row and {@code copy} the copy to a standard Java object and unboxing
+ * it used to do instead.
+ * <p>
+ * Allocation is the point, so run it with the gc profiler and divide
+ * gc.alloc.rate.norm by the rows, e.g.
+ * {@code java -jar target/benchmarks.jar EvaluatorIterate -prof gc}.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EvaluatorIterateBenchmark {
+
+	@Param({ "long", "int", "double", "bitset" })
+	public String evaluator;
+
+	@Param({ "1048576" })
+	public int rows;
+
+	// distinct values among the rows
+	@Param({ "65536" })
+	public int distinct;
+
+	private PrimitiveObjectInspector inspector;
+	private Object[] values;
+	private GenericUDAFEvaluator udaf;
+
+	@Setup
+	public void setup() throws HiveException {
+		Random rnd = new Random(42);
+		values = new Object[rows];
+		for (int i = 0; i < rows; i++) {
+			int v = rnd.nextInt(distinct);
+			if ("double".equals(evaluator)) {
+				values[i] = new DoubleWritable(v / 8d);
+			} else {
+				values[i] = new LongWritable(v);
+			}
+		}
+		if ("double".equals(evaluator)) {
+			inspector = PrimitiveObjectInspectorFactory.writableDoubleObjectInspector;
+			udaf = new UDAFCntDouble.CountEvaluator();
+		} else {
+			inspector = PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+			if ("long".equals(evaluator)) {
+				udaf = new UDAFCntLong.CountEvaluator();
+			} else if ("int".equals(evaluator)) {
+				udaf = new UDAFCntInt.CountEvaluator();
+			} else {
+				udaf = new UDAFCntBitSet.CountEvaluator();
+			}
+		}
+		udaf.init(GenericUDAFEvaluator.Mode.PARTIAL1,
+				new ObjectInspector[] { inspector });
+	}
+
+	@Benchmark
+	public AggregationBuffer iterate() throws HiveException {
+		AggregationBuffer buffer = udaf.getNewAggregationBuffer();
+		Object[] parameters = new Object[1];
+		for (int i = 0; i < values.length; i++) {
+			parameters[0] = values[i];
+			udaf.iterate(buffer, parameters);
+		}
+		return buffer;
+	}
+
+	@Benchmark
+	public long read() {
+		long sum = 0;
+		if (inspector == PrimitiveObjectInspectorFactory.writableDoubleObjectInspector) {
+			for (int i = 0; i < values.length; i++) {
+				sum += Double.doubleToLongBits(PrimitiveObjectInspectorUtils
+						.getDouble(values[i], inspector));
+			}
+		} else {
+			for (int i = 0; i < values.length; i++) {
+				sum += PrimitiveObjectInspectorUtils.getLong(values[i],
+						inspector);
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public long copy() {
+		long sum = 0;
+		if (inspector == PrimitiveObjectInspectorFactory.writableDoubleObjectInspector) {
+			for (int i = 0; i < values.length; i++) {
+				sum += Double.doubleToLongBits((Double) ObjectInspectorUtils
+						.copyToStandardObject(values[i], inspector,
+								ObjectInspectorCopyOption.JAVA));
+			}
+		} else {
+			for (int i = 0; i < values.length; i++) {
+				sum += (Long) ObjectInspectorUtils.copyToStandardObject(
+						values[i], inspector, ObjectInspectorCopyOption.JAVA);
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,117 @@
+package com.wandisco.hive.udaf.benchmarks;
+
+import gnu.trove.set.hash.TDoubleHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.BytesWritable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wandisco.hive.udaf.DistinctPartialCodec;
+import com.wandisco.hive.udaf.ParallelMerge;
+
+/**
+ * The reduce side merge of one count_distinct_long or _double group: a
+ * number of overlapping partials merged into an empty group, serially as
+ * the evaluators do by default (threads = 1) and through
+ * {@link ParallelMerge} with wandisco.distinct.merge.threads = N.
+ * <p>
+ * The gain depends on the cores the reducer actually gets, so run it on
+ * the hardware the reducers use, e.g.
+ * {@code java -jar target/benchmarks.jar ParallelMerge -p threads=1,8,16}.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@State(Scope.Benchmark)
+public class ParallelMergeBenchmark {
+
+	@Param({ "1", "2", "8", "16" })
+	public int threads;
+
+	// values per partial
+	@Param({ "1048576" })
+	public int size;
+
+	@Param({ "8" })
+	public int partials;
+
+	private BytesWritable[] longPartials;
+	private BytesWritable[] doublePartials;
+	private ParallelMerge merge;
+
+	@Setup
+	public void setup() {
+		Random rnd = new Random(42);
+		longPartials = new BytesWritable[partials];
+		doublePartials = new BytesWritable[partials];
+		// the partials share about half their values
+		int range = size * partials / 2;
+		for (int p = 0; p < partials; p++) {
+			TLongHashSet longs = new TLongHashSet(size);
+			TDoubleHashSet doubles = new TDoubleHashSet(size);
+			while (longs.size() < size) {
+				long v = rnd.nextInt(range) * 2654435761L;
+				longs.add(v);
+				doubles.add(v / 1000d);
+			}
+			longPartials[p] = DistinctPartialCodec.encodeLongs(longs);
+			doublePartials[p] = DistinctPartialCodec.encodeDoubles(doubles);
+		}
+		merge = new ParallelMerge(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		merge.close();
+	}
+
+	@Benchmark
+	public long mergeLongs() throws HiveException {
+		if (!merge.isEnabled()) {
+			TLongHashSet set = new TLongHashSet();
+			for (BytesWritable partial : longPartials) {
+				DistinctPartialCodec.reader(partial).readInto(set);
+			}
+			return set.size();
+		}
+		TLongHashSet[] sets = merge.split(new TLongHashSet());
+		for (BytesWritable partial : longPartials) {
+			merge.addAll(DistinctPartialCodec.reader(partial), sets);
+		}
+		return ParallelMerge.size(sets);
+	}
+
+	@Benchmark
+	public long mergeDoubles() throws HiveException {
+		if (!merge.isEnabled()) {
+			TDoubleHashSet set = new TDoubleHashSet();
+			for (BytesWritable partial : doublePartials) {
+				DistinctPartialCodec.reader(partial).readInto(set);
+			}
+			return set.size();
+		}
+		TDoubleHashSet[] sets = merge.split(new TDoubleHashSet());
+		for (BytesWritable partial : doublePartials) {
+			merge.addAll(DistinctPartialCodec.reader(partial), sets);
+		}
+		return ParallelMerge.size(sets);
+	}
+}
@@ -0,0 +1,117 @@
+package com.wandisco.hive.udaf.benchmarks;
+
+import gnu.trove.set.hash.THashSet;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.wandisco.hive.udaf.UDAFCnt;
+
+/**
+ * The map side of the generic count_distinct: a block of rows iterated into
+ * an empty group. {@code iterate} runs {@link UDAFCnt.CountEvaluator} as it
+ * is, {@code copy} the per row copy to a standard Java object it used to
+ * make for every type, as a baseline. Strings still take that copy, as the
+ * group's set holds the String values its partials are written from.
+ * <p>
+ * Run it with {@code -prof gc} and divide gc.alloc.rate.norm by the rows
+ * for the bytes allocated per row.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UDAFCntIterateBenchmark {
+
+	@Param({ "bigint", "int", "double", "string" })
+	public String type;
+
+	@Param({ "1048576" })
+	public int rows;
+
+	// distinct values among the rows
+	@Param({ "65536" })
+	public int distinct;
+
+	private PrimitiveObjectInspector inspector;
+	private Object[] values;
+	private UDAFCnt.CountEvaluator evaluator;
+
+	@Setup
+	public void setup() throws HiveException {
+		Random rnd = new Random(42);
+		values = new Object[rows];
+		for (int i = 0; i < rows; i++) {
+			int v = rnd.nextInt(distinct);
+			if ("bigint".equals(type)) {
+				values[i] = new LongWritable(v * 2654435761L);
+			} else if ("int".equals(type)) {
+				values[i] = new IntWritable(v);
+			} else if ("double".equals(type)) {
+				values[i] = new DoubleWritable(v / 8d);
+			} else {
+				values[i] = new Text("value-" + v);
+			}
+		}
+		if ("bigint".equals(type)) {
+			inspector = PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+		} else if ("int".equals(type)) {
+			inspector = PrimitiveObjectInspectorFactory.writableIntObjectInspector;
+		} else if ("double".equals(type)) {
+			inspector = PrimitiveObjectInspectorFactory.writableDoubleObjectInspector;
+		} else {
+			inspector = PrimitiveObjectInspectorFactory.writableStringObjectInspector;
+		}
+		evaluator = new UDAFCnt.CountEvaluator();
+		evaluator.init(GenericUDAFEvaluator.Mode.PARTIAL1,
+				new ObjectInspector[] { inspector });
+	}
+
+	@Benchmark
+	public AggregationBuffer iterate() throws HiveException {
+		AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+		Object[] parameters = new Object[1];
+		for (int i = 0; i < values.length; i++) {
+			parameters[0] = values[i];
+			evaluator.iterate(buffer, parameters);
+		}
+		return buffer;
+	}
+
+	@Benchmark
+	public THashSet<Object> copy() {
+		THashSet<Object> hash = new THashSet<Object>();
+		for (int i = 0; i < values.length; i++) {
+			hash.add(ObjectInspectorUtils.copyToStandardObject(values[i],
+					inspector, ObjectInspectorCopyOption.JAVA));
+		}
+		return hash;
+	}
+}
@@ -19,10 +19,12 @@ package com.github.mlnick.hive.udaf;
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
 import com.clearspring.analytics.stream.cardinality.HyperLogLog;
 import com.clearspring.analytics.stream.cardinality.ICardinality;
-import com.clearspring.analytics.stream.cardinality.LinearCounting;
+import com.wandisco.hive.udaf.HashedLinearCounting;
+import com.wandisco.hive.udaf.SketchHasher;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
@@ -33,10 +35,10 @@ import org.apache.hadoop.hive.serde2.lazy.LazyBinary;
 import org.apache.hadoop.hive.serde2.lazy.LazyString;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
-import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 
@@ -58,7 +60,7 @@ import java.util.List;
  */
 
 @Description(name = "approx_distinct", value = "_FUNC_(x, [t], [b]) - Adds values from x to new Cardinality Estimator, with "
-		+ "optional type t (hll, lc) and bit parameter b."
+		+ "optional constant type t (hll, lc) and bit parameter b."
 		+ "\nDefaults to HyperLogLog with b=16."
 		+ "\nReturns a struct {type: string, cardinality: long, binary: binary}, where:"
 		+ "\n    type        = {HLL, LC} for HyperLogLog or Linear Counting"
@@ -110,71 +112,114 @@ public class UDAFCardinalityEstimator implements GenericUDAFResolver2 {
 							+ " was passed as parameter 1.");
 		}
 
-		// validate the second parameter, which is a String cardinality
-		// estimator type.
+		if (parameters.length > 3)
+			throw new IllegalArgumentException(
+					"Function only takes 1, 2 or 3 parameters.");
+
+		// the type and bit parameters are resolved here, once, so that the
+		// evaluator can be specialised for the estimator
+		ObjectInspector[] parameterOIs = info.getParameterObjectInspectors();
+		CardinalityEstimator ce = CardinalityEstimator.HLL;
 		if (parameters.length >= 2) {
-			if (parameters[1].getCategory() != ObjectInspector.Category.PRIMITIVE) {
-				throw new UDFArgumentTypeException(1,
-						"Only primitive type arguments are accepted but "
-								+ parameters[1].getTypeName()
-								+ " was passed as parameter 2.");
-			}
-			if (((PrimitiveTypeInfo) parameters[1]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.STRING) {
-				throw new UDFArgumentTypeException(1,
-						"Only a String argument is accepted as parameter 2, but "
-								+ parameters[1].getTypeName()
-								+ " was passed instead.");
+			Object type = constant(parameters, parameterOIs, 1,
+					PrimitiveObjectInspector.PrimitiveCategory.STRING);
+			try {
+				ce = CardinalityEstimator.valueOf(type.toString().trim()
+						.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new UDFArgumentException("Unknown estimator type '"
+						+ type + "', expected hll or lc");
 			}
 		}
-		// validate the third parameter, which is an int
+		int param = -1;
 		if (parameters.length == 3) {
-			if (parameters[2].getCategory() != ObjectInspector.Category.PRIMITIVE) {
-				throw new UDFArgumentTypeException(1,
-						"Only primitive type arguments are accepted but "
-								+ parameters[2].getTypeName()
-								+ " was passed as parameter 2.");
-			}
-			if (((PrimitiveTypeInfo) parameters[2]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.INT) {
-				throw new UDFArgumentTypeException(2,
-						"Only a int argument is accepted as parameter 3, but "
-								+ parameters[2].getTypeName()
-								+ " was passed instead.");
+			param = ((IntWritable) constant(parameters, parameterOIs, 2,
+					PrimitiveObjectInspector.PrimitiveCategory.INT)).get();
+			if (param <= 0) {
+				throw new UDFArgumentException(
+						"The bit parameter must be positive but was " + param);
 			}
 		}
+		return newEvaluator(ce, param);
+	}
 
-		if (parameters.length > 4)
-			throw new IllegalArgumentException(
-					"Function only takes 1, 2 or 3 parameters.");
+	/**
+	 * Reads the constant value of parameter {@code i}, which must be of
+	 * {@code category}.
+	 */
+	private static Object constant(TypeInfo[] parameters,
+			ObjectInspector[] parameterOIs, int i,
+			PrimitiveObjectInspector.PrimitiveCategory category)
+			throws SemanticException {
+		if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE
+				|| ((PrimitiveTypeInfo) parameters[i]).getPrimitiveCategory() != category) {
+			throw new UDFArgumentTypeException(i, "Only a "
+					+ category.name().toLowerCase()
+					+ " argument is accepted as parameter " + (i + 1)
+					+ ", but " + parameters[i].getTypeName()
+					+ " was passed instead.");
+		}
+		if (!(parameterOIs[i] instanceof ConstantObjectInspector)) {
+			throw new UDFArgumentTypeException(i, "Parameter " + (i + 1)
+					+ " must be a constant");
+		}
+		Object value = ((ConstantObjectInspector) parameterOIs[i])
+				.getWritableConstantValue();
+		if (value == null) {
+			throw new UDFArgumentTypeException(i, "Parameter " + (i + 1)
+					+ " must not be null");
+		}
+		return value;
+	}
 
-		return new CardinalityEstimatorEvaluator();
+	static CardinalityEstimatorEvaluator newEvaluator(CardinalityEstimator ce,
+			int param) {
+		switch (ce) {
+		case LC:
+			return new LinearCountingEvaluator(param < 0 ? LC_DEFAULT_SIZE
+					: param);
+		default:
+			return new HyperLogLogEvaluator(param < 0 ? HLL_DEFAULT_B : param);
+		}
 	}
 
 	@Override
 	public GenericUDAFEvaluator getEvaluator(TypeInfo[] typeInfos)
 			throws SemanticException {
-		return new CardinalityEstimatorEvaluator();
+		return newEvaluator(CardinalityEstimator.HLL, -1);
 	}
 
 	/**
 	 * Class to evaluate values, and add them to an approximate cardinality
 	 * estimator datastructure. Currently HyperLogLog and Linear Counting are
-	 * supported.
+	 * supported, each by its own subclass so that iterate only hashes the
+	 * value and updates the estimator.
 	 */
-	public static class CardinalityEstimatorEvaluator extends
+	public static abstract class CardinalityEstimatorEvaluator extends
 			GenericUDAFEvaluator {
-		// defaults to HyperLogLog if no type parameter is present in the
-		// function call
-		CardinalityEstimator ce = CardinalityEstimator.HLL;
+		// type and b parameter of the estimators built from raw values,
+		// resolved in getEvaluator; merged estimators carry their own type
+		final CardinalityEstimator ce;
+		final int param;
 
 		// inputs
 		PrimitiveObjectInspector inputPrimitiveOI;
 		StructObjectInspector inputStructOI;
-		PrimitiveObjectInspector typeOI;
-		PrimitiveObjectInspector paramOI;
+		SketchHasher hasher;
 
 		// intermediate results
 		StandardListObjectInspector partialOI;
 
+		CardinalityEstimatorEvaluator(CardinalityEstimator ce, int param) {
+			this.ce = ce;
+			this.param = param;
+		}
+
+		/**
+		 * Adds a hashed value, creating the buffer's estimator if needed.
+		 */
+		abstract void offer(CardinalityEstimatorBuffer ceb, long hash);
+
 		public ObjectInspector init(Mode m, ObjectInspector[] parameters)
 				throws HiveException {
 			super.init(m, parameters);
@@ -187,17 +232,10 @@ public class UDAFCardinalityEstimator implements GenericUDAFResolver2 {
 				ObjectInspector.Category cat = parameters[0].getCategory();
 				switch (cat) {
 				case PRIMITIVE:
-					// if PRIMITIVE, parse out the 2nd and 3rd args, if present
+					// if PRIMITIVE, the 2nd and 3rd args were already resolved
+					// by getEvaluator
 					inputPrimitiveOI = (PrimitiveObjectInspector) parameters[0];
-					switch (parameters.length) {
-					case 2:
-						typeOI = (PrimitiveObjectInspector) parameters[1];
-						break;
-					case 3:
-						typeOI = (PrimitiveObjectInspector) parameters[1];
-						paramOI = (PrimitiveObjectInspector) parameters[2];
-						break;
-					}
+					hasher = new SketchHasher(inputPrimitiveOI);
 					break;
 				case STRUCT:
 					// if an existing estimator, we don't take the extra args
@@ -246,7 +284,9 @@ public class UDAFCardinalityEstimator implements GenericUDAFResolver2 {
 		@Override
 		public void reset(AggregationBuffer aggregationBuffer)
 				throws HiveException {
-			((CardinalityEstimatorBuffer) aggregationBuffer).cardinalityEstimator = null;
+			CardinalityEstimatorBuffer ceb = (CardinalityEstimatorBuffer) aggregationBuffer;
+			ceb.type = ce;
+			ceb.cardinalityEstimator = null;
 		}
 
 		@Override
@@ -255,25 +295,12 @@ public class UDAFCardinalityEstimator implements GenericUDAFResolver2 {
 			if (parameters[0] == null) {
 				return;
 			}
-			int param = -1;
-			if (parameters.length >= 2) {
-				String type = PrimitiveObjectInspectorUtils.getString(
-						parameters[1], typeOI);
-				ce = CardinalityEstimator.valueOf(type.toUpperCase());
-			}
-			if (parameters.length == 3) {
-				param = PrimitiveObjectInspectorUtils.getInt(parameters[2],
-						paramOI);
-			}
 			CardinalityEstimatorBuffer ceb = (CardinalityEstimatorBuffer) aggregationBuffer;
 
 			Object obj = parameters[0];
 			if (inputPrimitiveOI != null) {
 				// in this case, we process the object directly
-				if (ceb.cardinalityEstimator == null) {
-					initEstimator(param, ceb);
-				}
-				ceb.cardinalityEstimator.offer(obj);
+				offer(ceb, hasher.hash(obj));
 			} else if (inputStructOI != null) {
 				// in this case we merge estimators
 				LazyString type = (LazyString) inputStructOI
@@ -281,9 +308,10 @@ public class UDAFCardinalityEstimator implements GenericUDAFResolver2 {
 								inputStructOI.getStructFieldRef(ESTIMATOR_TYPE));
 				LazyBinary lb = (LazyBinary) inputStructOI.getStructFieldData(
 						obj, inputStructOI.getStructFieldRef(BINARY));
+				CardinalityEstimator thatType = parseType(type.toString());
 				ICardinality that = buildEstimator(lb.getWritableObject(),
-						type.toString());
-				mergeEstimators(that, ceb);
+						thatType);
+				mergeEstimators(that, thatType, ceb);
 			}
 		}
 
@@ -302,7 +330,7 @@ public class UDAFCardinalityEstimator implements GenericUDAFResolver2 {
 				throws HiveException {
 			CardinalityEstimatorBuffer ceb = (CardinalityEstimatorBuffer) aggregationBuffer;
 			try {
-				byte[] tb = ce.name().getBytes("UTF-8");
+				byte[] tb = ceb.type.name().getBytes("UTF-8");
 				byte[] ceBytes = ceb.cardinalityEstimator.getBytes();
 				List<BytesWritable> b = new ArrayList<BytesWritable>();
 				b.add(new BytesWritable(tb));
@@ -346,8 +374,10 @@ public class UDAFCardinalityEstimator implements GenericUDAFResolver2 {
 			BytesWritable partialBytes = partialResult.get(1);
 
 			// Parse the serialised partial result and merge
-			ICardinality partialEstimator = buildEstimator(partialBytes, type);
-			mergeEstimators(partialEstimator, ceb);
+			CardinalityEstimator partialType = parseType(type);
+			ICardinality partialEstimator = buildEstimator(partialBytes,
+					partialType);
+			mergeEstimators(partialEstimator, partialType, ceb);
 		}
 
 		/**
@@ -369,7 +399,7 @@ public class UDAFCardinalityEstimator implements GenericUDAFResolver2 {
 			}
 			try {
 				ArrayList<Object> result = new ArrayList<Object>();
-				result.add(new Text(ce.name()));
+				result.add(new Text(ceb.type.name()));
 				long cardinality = ceb.cardinalityEstimator instanceof HyperLogLog ? ((HyperLogLog) ceb.cardinalityEstimator)
 						.cardinality() : ceb.cardinalityEstimator.cardinality();
 				result.add(new LongWritable(cardinality));
@@ -385,27 +415,6 @@ public class UDAFCardinalityEstimator implements GenericUDAFResolver2 {
 
 		// HELPER METHODS //
 
-		/**
-		 * Initialise a new cardinality estimator
-		 * 
-		 * @param parameter
-		 *            <i>b</i> parameter for HyperLogLog or Linear Counting
-		 * @param ceb
-		 *            the {@link AggregationBuffer} to initialise
-		 */
-		private void initEstimator(int parameter, CardinalityEstimatorBuffer ceb) {
-			switch (ce) {
-			case HLL:
-				ceb.cardinalityEstimator = new HyperLogLog(
-						parameter < 0 ? HLL_DEFAULT_B : parameter);
-				break;
-			case LC:
-				ceb.cardinalityEstimator = new LinearCounting.Builder(
-						parameter < 0 ? LC_DEFAULT_SIZE : parameter).build();
-				break;
-			}
-		}
-
 		/**
 		 * Builds a cardinality estimator from a serialised binary
 		 * representation.
@@ -413,54 +422,70 @@ public class UDAFCardinalityEstimator implements GenericUDAFResolver2 {
 		 * @param bw
 		 *            byte[] representation (wrapped in a BytesWritable object)
 		 * @param type
-		 *            one of HLL for HyperLogLog, or LC for Linear Counting
+		 *            HLL for HyperLogLog, or LC for Linear Counting
 		 * @return cardinality estimator instance
 		 * @throws HiveException
 		 */
-		private ICardinality buildEstimator(BytesWritable bw, String type)
-				throws HiveException {
-			type = type.trim();
-			ce = CardinalityEstimator.valueOf(type);
+		private static ICardinality buildEstimator(BytesWritable bw,
+				CardinalityEstimator type) throws HiveException {
 			ICardinality estimator;
-			switch (ce) {
+			switch (type) {
 			case HLL:
 				try {
-					estimator = HyperLogLog.Builder.build(bw.getBytes());
+					estimator = HyperLogLog.Builder.build(bw.copyBytes());
 				} catch (IOException e) {
 					throw new HiveException(
 							"Failed to parse byte[] from partial result. ", e);
 				}
 				break;
 			case LC:
-				estimator = new LinearCounting(bw.getBytes());
+				estimator = new HashedLinearCounting(bw.copyBytes());
 				break;
 			default:
 				throw new IllegalArgumentException(
-						"Unknown CardinalityEstimator type [" + ce
+						"Unknown CardinalityEstimator type [" + type
 								+ "], failed to parse partial result");
 			}
 			return estimator;
 		}
 
+		private static CardinalityEstimator parseType(String type)
+				throws HiveException {
+			try {
+				return CardinalityEstimator.valueOf(type.trim());
+			} catch (IllegalArgumentException e) {
+				throw new HiveException("Unknown CardinalityEstimator type ["
+						+ type + "], failed to parse partial result");
+			}
+		}
+
 		/**
 		 * Either merge a partial estimator into the current aggregation buffer,
 		 * or if the buffer is empty, simply set to the partial estimator
 		 * 
 		 * @param thatEstimator
 		 *            the cardinality estimator to merge in
+		 * @param thatType
+		 *            its type
 		 * @param thisEstimatorBuffer
 		 *            the current aggregation buffer instance
 		 * @throws HiveException
 		 */
 		private static void mergeEstimators(ICardinality thatEstimator,
+				CardinalityEstimator thatType,
 				CardinalityEstimatorBuffer thisEstimatorBuffer)
 				throws HiveException {
 			try {
 				if (thisEstimatorBuffer.cardinalityEstimator == null) {
 					thisEstimatorBuffer.cardinalityEstimator = thatEstimator;
+					thisEstimatorBuffer.type = thatType;
 					LOG.debug("Aggregation buffer is null, using THAT partial instance. Cardinality result = "
 							+ thisEstimatorBuffer.cardinalityEstimator
 									.cardinality());
+				} else if (thisEstimatorBuffer.type != thatType) {
+					throw new HiveException("Cannot merge a "
+							+ thisEstimatorBuffer.type + " estimator with a "
+							+ thatType + " estimator");
 				} else {
 					LOG.debug("Merging estimator instances, with THIS partial result = "
 							+ thisEstimatorBuffer.cardinalityEstimator
@@ -483,8 +508,60 @@ public class UDAFCardinalityEstimator implements GenericUDAFResolver2 {
 		/**
 		 * Wrapper for {@link ICardinality} instance to which values are added
 		 */
-		static class CardinalityEstimatorBuffer implements AggregationBuffer {
+		@AggregationType(estimable = true)
+		static class CardinalityEstimatorBuffer extends
+				AbstractAggregationBuffer {
+			CardinalityEstimator type;
 			ICardinality cardinalityEstimator;
+
+			@Override
+			public int estimate() {
+				return cardinalityEstimator == null ? 0 : cardinalityEstimator
+						.sizeof();
+			}
+		}
+	}
+
+	/**
+	 * HyperLogLog with 2^b registers. stream-lib's HyperLogLog takes 32 bit
+	 * hashes, so it gets the low half of the 64 bit one.
+	 */
+	static final class HyperLogLogEvaluator extends
+			CardinalityEstimatorEvaluator {
+
+		HyperLogLogEvaluator(int b) {
+			super(CardinalityEstimator.HLL, b);
+		}
+
+		@Override
+		void offer(CardinalityEstimatorBuffer ceb, long hash) {
+			HyperLogLog hll = (HyperLogLog) ceb.cardinalityEstimator;
+			if (hll == null) {
+				hll = new HyperLogLog(param);
+				ceb.cardinalityEstimator = hll;
+			}
+			hll.offerHashed((int) hash);
+		}
+	}
+
+	/**
+	 * Linear Counting over a bitmap of b bytes.
+	 */
+	static final class LinearCountingEvaluator extends
+			CardinalityEstimatorEvaluator {
+
+		LinearCountingEvaluator(int size) {
+			super(CardinalityEstimator.LC, size);
+		}
+
+		@Override
+		void offer(CardinalityEstimatorBuffer ceb, long hash) {
+			HashedLinearCounting lc = (HashedLinearCounting) ceb.cardinalityEstimator;
+			if (lc == null) {
+				lc = new HashedLinearCounting(param);
+				ceb.cardinalityEstimator = lc;
+			}
+			lc.offerHashed(hash);
 		}
 	}
 }
\ No newline at end of file
@@ -16,35 +16,180 @@
 
 package com.github.mlnick.hive.udf;
 
+import com.wandisco.hive.udaf.DistinctPartialCodec;
+import com.wandisco.hive.udaf.HLLSketch;
+import com.wandisco.hive.udaf.KMVSketch;
+import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
 
-/*
- @Description(name = "",
- value = "_FUNC_(x) -  ",
- extended = "Example:\n"
- + "  > SELECT \n")
+/**
+ * Base of the scalar functions over stored sketches, the binary output of
+ * approx_distinct_hll_sketch and approx_distinct_kmv_sketch: every argument
+ * is a sketch, read into a {@link HLLSketch} or {@link KMVSketch} by its type
+ * tag. The set operations are estimated straight from the sketches, without
+ * going back to the raw data.
+ * <p>
+ * KMV sketches estimate intersections and differences from the hashes they
+ * share. HyperLogLog sketches only have inclusion-exclusion, |A & B| = |A| +
+ * |B| - |A | B|, whose error is that of the union, so small overlaps of large
+ * sets come out poorly. Both arguments must be the same kind of sketch.
+ * </p>
  */
-// TODO potential set intersection and other utils.
-public class UDFCardinalityEstimator extends GenericUDF {
+public abstract class UDFCardinalityEstimator extends GenericUDF {
+
+	private final String name;
+	private final int minArgs;
+	private final int maxArgs;
+
+	private BinaryObjectInspector[] argumentOIs;
+
+	protected UDFCardinalityEstimator(String name, int minArgs, int maxArgs) {
+		this.name = name;
+		this.minArgs = minArgs;
+		this.maxArgs = maxArgs;
+	}
 
 	@Override
-	public ObjectInspector initialize(ObjectInspector[] objectInspectors)
+	public ObjectInspector initialize(ObjectInspector[] arguments)
 			throws UDFArgumentException {
-		return null;
+		if (arguments.length < minArgs || arguments.length > maxArgs) {
+			throw new UDFArgumentLengthException(name + " takes "
+					+ (minArgs == maxArgs ? "exactly " + minArgs
+							: maxArgs == Integer.MAX_VALUE ? "at least "
+									+ minArgs : minArgs + " to " + maxArgs)
+					+ " sketch arguments");
+		}
+		argumentOIs = new BinaryObjectInspector[arguments.length];
+		for (int i = 0; i < arguments.length; i++) {
+			if (!(arguments[i] instanceof BinaryObjectInspector)) {
+				throw new UDFArgumentTypeException(i,
+						"Only binary sketches are accepted but "
+								+ arguments[i].getTypeName()
+								+ " was passed as parameter " + (i + 1));
+			}
+			argumentOIs[i] = (BinaryObjectInspector) arguments[i];
+		}
+		return outputObjectInspector();
 	}
 
-	@Override
-	public Object evaluate(DeferredObject[] deferredObjects)
+	protected abstract ObjectInspector outputObjectInspector();
+
+	/**
+	 * Reads argument {@code i} into a new sketch, which the caller may
+	 * modify.
+	 *
+	 * @return a {@link HLLSketch}, a {@link KMVSketch} or null
+	 */
+	protected Object sketch(DeferredObject[] arguments, int i)
+			throws HiveException {
+		Object o = arguments[i].get();
+		if (o == null) {
+			return null;
+		}
+		return read(argumentOIs[i].getPrimitiveWritableObject(o));
+	}
+
+	static Object read(BytesWritable bytes) throws HiveException {
+		if (DistinctPartialCodec.isPartial(bytes)
+				&& DistinctPartialCodec.reader(bytes).type() == DistinctPartialCodec.TYPE_KMV) {
+			return KMVSketch.deserialize(bytes);
+		}
+		return HLLSketch.deserialize(bytes);
+	}
+
+	protected static long cardinality(Object sketch) {
+		if (sketch instanceof KMVSketch) {
+			return ((KMVSketch) sketch).cardinality();
+		}
+		return ((HLLSketch) sketch).cardinality();
+	}
+
+	/**
+	 * Merges {@code that} into {@code sketch}.
+	 */
+	protected static void addAll(Object sketch, Object that)
 			throws HiveException {
-		return null;
+		checkSameKind(sketch, that);
+		if (sketch instanceof KMVSketch) {
+			((KMVSketch) sketch).addAll((KMVSketch) that);
+		} else {
+			((HLLSketch) sketch).addAll((HLLSketch) that);
+		}
+	}
+
+	protected static BytesWritable serialize(Object sketch)
+			throws HiveException {
+		if (sketch instanceof KMVSketch) {
+			return ((KMVSketch) sketch).serialize();
+		}
+		return ((HLLSketch) sketch).serialize();
+	}
+
+	/**
+	 * Estimated |A & B|. Modifies {@code a} when the sketches are HLL.
+	 */
+	protected static double intersection(Object a, Object b)
+			throws HiveException {
+		checkSameKind(a, b);
+		if (a instanceof KMVSketch) {
+			return KMVSketch.intersection((KMVSketch) a, (KMVSketch) b);
+		}
+		long ca = cardinality(a);
+		long cb = cardinality(b);
+		addAll(a, b);
+		return Math.max(0, ca + cb - cardinality(a));
+	}
+
+	/**
+	 * Estimated |A - B|. Modifies {@code a} when the sketches are HLL.
+	 */
+	protected static double difference(Object a, Object b)
+			throws HiveException {
+		checkSameKind(a, b);
+		if (a instanceof KMVSketch) {
+			return KMVSketch.difference((KMVSketch) a, (KMVSketch) b);
+		}
+		long cb = cardinality(b);
+		addAll(a, b);
+		return Math.max(0, cardinality(a) - cb);
+	}
+
+	/**
+	 * Estimated |A & B| / |A | B|. Modifies {@code a} when the sketches are
+	 * HLL.
+	 */
+	protected static double jaccard(Object a, Object b) throws HiveException {
+		checkSameKind(a, b);
+		if (a instanceof KMVSketch) {
+			return KMVSketch.jaccard((KMVSketch) a, (KMVSketch) b);
+		}
+		long ca = cardinality(a);
+		long cb = cardinality(b);
+		addAll(a, b);
+		long union = cardinality(a);
+		if (union == 0) {
+			return 0;
+		}
+		return Math.min(1d, Math.max(0, ca + cb - union) / (double) union);
+	}
+
+	private static void checkSameKind(Object a, Object b) throws HiveException {
+		if (a.getClass() != b.getClass()) {
+			throw new HiveException(
+					"Cannot combine a HyperLogLog++ sketch with a KMV sketch");
+		}
 	}
 
 	@Override
-	public String getDisplayString(String[] strings) {
-		return null;
+	public String getDisplayString(String[] children) {
+		return name + "(" + StringUtils.join(children, ", ") + ")";
 	}
 
 }
@@ -0,0 +1,33 @@
+package com.github.mlnick.hive.udf;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.LongWritable;
+
+@Description(name = "sketch_cardinality", value = "_FUNC_(sketch) - Estimated number of distinct values in a stored HyperLogLog++ or KMV sketch", extended = "Example:"
+		+ "\n> SELECT day, sketch_cardinality(sketch) FROM daily")
+public class UDFSketchCardinality extends UDFCardinalityEstimator {
+
+	private LongWritable result = new LongWritable();
+
+	public UDFSketchCardinality() {
+		super("sketch_cardinality", 1, 1);
+	}
+
+	@Override
+	protected ObjectInspector outputObjectInspector() {
+		return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+	}
+
+	@Override
+	public Object evaluate(DeferredObject[] arguments) throws HiveException {
+		Object sketch = sketch(arguments, 0);
+		if (sketch == null) {
+			return null;
+		}
+		result.set(cardinality(sketch));
+		return result;
+	}
+}
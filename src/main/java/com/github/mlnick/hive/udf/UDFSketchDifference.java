@@ -0,0 +1,34 @@
+package com.github.mlnick.hive.udf;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.LongWritable;
+
+@Description(name = "sketch_difference_estimate", value = "_FUNC_(a, b) - Estimated number of distinct values in a but not in b, from two stored sketches of the same kind", extended = "Example:"
+		+ "\n> SELECT _FUNC_(voice.sketch, data.sketch) FROM voice JOIN data ON voice.day = data.day; -- voice users without data")
+public class UDFSketchDifference extends UDFCardinalityEstimator {
+
+	private LongWritable result = new LongWritable();
+
+	public UDFSketchDifference() {
+		super("sketch_difference_estimate", 2, 2);
+	}
+
+	@Override
+	protected ObjectInspector outputObjectInspector() {
+		return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+	}
+
+	@Override
+	public Object evaluate(DeferredObject[] arguments) throws HiveException {
+		Object a = sketch(arguments, 0);
+		Object b = sketch(arguments, 1);
+		if (a == null || b == null) {
+			return null;
+		}
+		result.set(Math.round(difference(a, b)));
+		return result;
+	}
+}
@@ -0,0 +1,34 @@
+package com.github.mlnick.hive.udf;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+@Description(name = "sketch_jaccard", value = "_FUNC_(a, b) - Estimated Jaccard similarity |a & b| / |a | b| of two stored sketches of the same kind", extended = "Example:"
+		+ "\n> SELECT _FUNC_(voice.sketch, data.sketch) FROM voice JOIN data ON voice.day = data.day")
+public class UDFSketchJaccard extends UDFCardinalityEstimator {
+
+	private DoubleWritable result = new DoubleWritable();
+
+	public UDFSketchJaccard() {
+		super("sketch_jaccard", 2, 2);
+	}
+
+	@Override
+	protected ObjectInspector outputObjectInspector() {
+		return PrimitiveObjectInspectorFactory.writableDoubleObjectInspector;
+	}
+
+	@Override
+	public Object evaluate(DeferredObject[] arguments) throws HiveException {
+		Object a = sketch(arguments, 0);
+		Object b = sketch(arguments, 1);
+		if (a == null || b == null) {
+			return null;
+		}
+		result.set(jaccard(a, b));
+		return result;
+	}
+}
@@ -0,0 +1,37 @@
+package com.github.mlnick.hive.udf;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+@Description(name = "sketch_union", value = "_FUNC_(a, b, ...) - Merges stored sketches of the same kind into one, skipping nulls", extended = "Example:"
+		+ "\n> SELECT sketch_cardinality(sketch_union(voice.sketch, data.sketch)) FROM voice JOIN data ON voice.day = data.day")
+public class UDFSketchUnion extends UDFCardinalityEstimator {
+
+	public UDFSketchUnion() {
+		super("sketch_union", 1, Integer.MAX_VALUE);
+	}
+
+	@Override
+	protected ObjectInspector outputObjectInspector() {
+		return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+	}
+
+	@Override
+	public Object evaluate(DeferredObject[] arguments) throws HiveException {
+		Object union = null;
+		for (int i = 0; i < arguments.length; i++) {
+			Object sketch = sketch(arguments, i);
+			if (sketch == null) {
+				continue;
+			}
+			if (union == null) {
+				union = sketch;
+			} else {
+				addAll(union, sketch);
+			}
+		}
+		return union == null ? null : serialize(union);
+	}
+}
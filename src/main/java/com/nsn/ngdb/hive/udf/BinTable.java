@@ -0,0 +1,326 @@
+package com.nsn.ngdb.hive.udf;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * The bin definitions of {@link GetRange}, compiled for lookup: per bin type
+ * the bins sorted by lower bound, as primitive arrays, with their labels
+ * built once as {@link Text}.
+ * <p>
+ * A bin matches values from its lower to its upper bound, both inclusive.
+ * Where bins of a type overlap the one with the greatest lower bound wins,
+ * and of bins with the same lower bound the one defined first, so the result
+ * no longer depends on hash order. A lookup is a binary search for the last
+ * bin starting at or below the value, and only steps back over overlapping
+ * bins that end before it.
+ * </p>
+ * <p>
+ * {@link #write(DataOutputStream)} and {@link #read(ByteBuffer)} store a
+ * table in a compact binary form: a magic int and the number of types, then
+ * per type its name, the number of bins and per bin the label, lower and
+ * upper bound. Strings are an int length and UTF-8 bytes.
+ * {@link #parse(ByteBuffer)} also takes the same definitions as UTF-8 CSV
+ * lines of type, label, lower and upper bound, as the bin queries return
+ * them.
+ * </p>
+ */
+public final class BinTable {
+
+	static final int MAGIC = 0x42494E31;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Map<String, Bins> types;
+
+	private BinTable(Map<String, Bins> types) {
+		this.types = types;
+	}
+
+	/**
+	 * @return the bins of a type, or null if the type is not defined
+	 */
+	public Bins get(String type) {
+		return types.get(type);
+	}
+
+	/**
+	 * @return the label of the bin holding the value, or null if the type is
+	 *         not defined or no bin holds it
+	 */
+	public Text lookup(String type, double value) {
+		Bins bins = types.get(type);
+		return bins == null ? null : bins.lookup(value);
+	}
+
+	public int size() {
+		return types.size();
+	}
+
+	/**
+	 * Writes the table so that {@link #read(ByteBuffer)} compiles the same
+	 * lookups.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(types.size());
+		for (Map.Entry<String, Bins> e : types.entrySet()) {
+			writeString(out, e.getKey());
+			Bins bins = e.getValue();
+			out.writeInt(bins.size());
+			// in reverse, so that of equal lower bounds the one that won is
+			// added first again
+			for (int i = bins.size() - 1; i >= 0; i--) {
+				writeString(out, bins.labels[i].toString());
+				out.writeFloat(bins.lower[i]);
+				out.writeFloat(bins.upper[i]);
+			}
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		byte[] b = s.getBytes(UTF8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	/**
+	 * Reads a table written by {@link #write(DataOutputStream)}, from the
+	 * buffer's position.
+	 */
+	public static BinTable read(ByteBuffer buf) throws IOException {
+		try {
+			if (buf.getInt() != MAGIC) {
+				throw new IOException("Not a bin table");
+			}
+			Builder builder = new Builder();
+			int types = buf.getInt();
+			for (int t = 0; t < types; t++) {
+				String type = readString(buf);
+				int n = buf.getInt();
+				for (int i = 0; i < n; i++) {
+					String label = readString(buf);
+					float lower = buf.getFloat();
+					float upper = buf.getFloat();
+					builder.add(type, label, lower, upper);
+				}
+			}
+			return builder.build();
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated bin table", e);
+		}
+	}
+
+	/**
+	 * Reads a table in either the binary or the CSV form from a file, which
+	 * is memory mapped rather than read onto the heap.
+	 */
+	public static BinTable read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads a table in the binary form if the buffer starts with its magic
+	 * int, and as CSV otherwise.
+	 */
+	public static BinTable parse(ByteBuffer buf) throws IOException {
+		if (buf.remaining() >= 4 && buf.getInt(buf.position()) == MAGIC) {
+			return read(buf);
+		}
+		return readCsv(UTF8.decode(buf));
+	}
+
+	/**
+	 * Reads {@code type,label,lower,upper} lines. The label may itself hold
+	 * commas; blank lines and lines starting with # are skipped.
+	 */
+	static BinTable readCsv(CharSequence csv) throws IOException {
+		Builder builder = new Builder();
+		int lineNo = 0;
+		for (String line : csv.toString().split("\r?\n")) {
+			lineNo++;
+			line = line.trim();
+			if (line.isEmpty() || line.charAt(0) == '#') {
+				continue;
+			}
+			int first = line.indexOf(',');
+			int last = line.lastIndexOf(',');
+			int second = last < 0 ? -1 : line.lastIndexOf(',', last - 1);
+			if (first < 0 || second <= first) {
+				throw new IOException("Bin definition line " + lineNo
+						+ " is not type,label,lower,upper: " + line);
+			}
+			try {
+				builder.add(line.substring(0, first).trim(),
+						line.substring(first + 1, second).trim(),
+						Float.parseFloat(line.substring(second + 1, last)),
+						Float.parseFloat(line.substring(last + 1)));
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad bound on bin definition line "
+						+ lineNo + ": " + line, e);
+			}
+		}
+		return builder.build();
+	}
+
+	private static String readString(ByteBuffer buf) throws IOException {
+		int len = buf.getInt();
+		if (len < 0 || len > buf.remaining()) {
+			throw new IOException("Corrupt bin table string of " + len
+					+ " bytes");
+		}
+		byte[] b = new byte[len];
+		buf.get(b);
+		return new String(b, UTF8);
+	}
+
+	@Override
+	public String toString() {
+		return "BinTable" + types.keySet();
+	}
+
+	/**
+	 * The bins of one type.
+	 */
+	public static final class Bins {
+		private final float[] lower;
+		private final float[] upper;
+		// maxUpper[i] is the greatest upper bound of bins 0..i
+		private final float[] maxUpper;
+		private final Text[] labels;
+
+		Bins(float[] lower, float[] upper, Text[] labels) {
+			this.lower = lower;
+			this.upper = upper;
+			this.labels = labels;
+			maxUpper = new float[upper.length];
+			for (int i = 0; i < upper.length; i++) {
+				maxUpper[i] = i == 0 ? upper[i] : Math.max(maxUpper[i - 1],
+						upper[i]);
+			}
+		}
+
+		/**
+		 * @return the index of the bin holding the value, or -1
+		 */
+		public int find(double value) {
+			// last bin with lower <= value, NaN matches nothing
+			int lo = 0;
+			int hi = lower.length - 1;
+			int i = -1;
+			while (lo <= hi) {
+				int mid = (lo + hi) >>> 1;
+				if (lower[mid] <= value) {
+					i = mid;
+					lo = mid + 1;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			// earlier bins can only hold the value while some reach it
+			for (; i >= 0 && maxUpper[i] >= value; i--) {
+				if (upper[i] >= value) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * @return the label of the bin holding the value, or null
+		 */
+		public Text lookup(double value) {
+			int i = find(value);
+			return i < 0 ? null : labels[i];
+		}
+
+		/**
+		 * The shared label of a bin, which must not be modified.
+		 */
+		public Text label(int i) {
+			return labels[i];
+		}
+
+		public int size() {
+			return labels.length;
+		}
+	}
+
+	/**
+	 * Collects bin definitions. A type's bins keep the order they were first
+	 * added in; adding a label again replaces its bounds.
+	 */
+	public static final class Builder {
+		private final Map<String, LinkedHashMap<String, float[]>> types = new LinkedHashMap<String, LinkedHashMap<String, float[]>>();
+
+		public Builder add(String type, String label, float lower,
+				float upper) {
+			LinkedHashMap<String, float[]> bins = types.get(type);
+			if (bins == null) {
+				bins = new LinkedHashMap<String, float[]>();
+				types.put(type, bins);
+			}
+			bins.put(label, new float[] { lower, upper });
+			return this;
+		}
+
+		public BinTable build() {
+			Map<String, Bins> compiled = new HashMap<String, Bins>();
+			for (Map.Entry<String, LinkedHashMap<String, float[]>> e : types
+					.entrySet()) {
+				compiled.put(e.getKey(), compile(e.getValue()));
+			}
+			return new BinTable(compiled);
+		}
+
+		private static Bins compile(LinkedHashMap<String, float[]> bins) {
+			int n = bins.size();
+			final String[] names = bins.keySet().toArray(new String[n]);
+			final float[][] bounds = bins.values().toArray(new float[n][]);
+			Integer[] order = new Integer[n];
+			for (int i = 0; i < n; i++) {
+				order[i] = i;
+			}
+			// of equal lower bounds the first defined sorts last, where the
+			// search finds it first
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int c = Float.compare(bounds[a][0], bounds[b][0]);
+					return c != 0 ? c : b.compareTo(a);
+				}
+			});
+			float[] lower = new float[n];
+			float[] upper = new float[n];
+			Text[] labels = new Text[n];
+			for (int i = 0; i < n; i++) {
+				int k = order[i];
+				lower[i] = bounds[k][0];
+				upper[i] = bounds[k][1];
+				labels[i] = new Text(names[k]);
+			}
+			return new Bins(lower, upper, labels);
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package com.nsn.ngdb.hive.udf;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bin tables shared by every {@link GetRange} in the JVM, so that reused
+ * containers and parallel tasks load them from the database once rather than
+ * once per UDF instance.
+ * <p>
+ * Tables are cached by a key naming their source, such as the JDBC URL and
+ * queries, for a time to live. Loads are single flight: callers that find a
+ * table loading wait for that load instead of starting their own. Once a
+ * table expires the first caller reloads it while the others keep using the
+ * old one, which also stays in use if the reload fails.
+ * </p>
+ * <p>
+ * A table can also be kept in a local snapshot file, in the
+ * {@link BinTable#write(java.io.DataOutputStream)} form. A JVM whose
+ * snapshot is younger than the time to live reads it instead of the
+ * database, and an older snapshot stands in for the database when that
+ * cannot be reached.
+ * </p>
+ */
+public final class BinTableCache {
+
+	static final Log LOG = LogFactory.getLog(BinTableCache.class);
+
+	private static final ConcurrentMap<String, Entry> CACHE = new ConcurrentHashMap<String, Entry>();
+
+	private BinTableCache() {
+	}
+
+	private static final class Entry {
+		final FutureTask<BinTable> load;
+		// the table this entry replaces, served while it loads
+		final BinTable previous;
+		volatile long loadedAt;
+
+		Entry(final Callable<BinTable> loader, BinTable previous) {
+			this.load = new FutureTask<BinTable>(new Callable<BinTable>() {
+				@Override
+				public BinTable call() throws Exception {
+					BinTable table = loader.call();
+					loadedAt = System.currentTimeMillis();
+					return table;
+				}
+			});
+			this.previous = previous;
+		}
+
+		boolean isExpired(long ttlMillis) {
+			return load.isDone()
+					&& System.currentTimeMillis() - loadedAt > ttlMillis;
+		}
+
+		/**
+		 * @return the loaded table, or null if the load failed
+		 */
+		BinTable loaded() throws IOException {
+			try {
+				return load.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted loading bin table", e);
+			} catch (ExecutionException e) {
+				return null;
+			}
+		}
+
+		IOException failure() {
+			try {
+				load.get();
+				return null;
+			} catch (Exception e) {
+				Throwable cause = e instanceof ExecutionException ? e
+						.getCause() : e;
+				return cause instanceof IOException ? (IOException) cause
+						: new IOException("Could not load bin table", cause);
+			}
+		}
+	}
+
+	/**
+	 * Returns the cached table for a key, loading it once per time to live.
+	 *
+	 * @param key
+	 *            names the source of the table
+	 * @param ttlMillis
+	 *            how long a loaded table is used before it is loaded again
+	 * @param snapshot
+	 *            local file the table is kept in, or null
+	 * @param loader
+	 *            loads the table from its source
+	 */
+	public static BinTable get(String key, final long ttlMillis,
+			final File snapshot, final Callable<BinTable> loader)
+			throws IOException {
+		while (true) {
+			Entry entry = CACHE.get(key);
+			if (entry != null && !entry.isExpired(ttlMillis)) {
+				if (!entry.load.isDone() && entry.previous != null) {
+					// someone else is reloading, keep using the old table
+					return entry.previous;
+				}
+				BinTable table = entry.loaded();
+				if (table != null) {
+					return table;
+				}
+				// failed loads are not cached, the next caller retries
+				CACHE.remove(key, entry);
+				throw entry.failure();
+			}
+			BinTable previous = entry == null ? null : entry.loaded();
+			Entry fresh = new Entry(new Callable<BinTable>() {
+				@Override
+				public BinTable call() throws Exception {
+					return load(ttlMillis, snapshot, loader);
+				}
+			}, previous);
+			if (entry == null ? CACHE.putIfAbsent(key, fresh) != null
+					: !CACHE.replace(key, entry, fresh)) {
+				// another caller got there first, use its entry
+				continue;
+			}
+			fresh.load.run();
+			BinTable table = fresh.loaded();
+			if (table != null) {
+				return table;
+			}
+			if (previous != null) {
+				LOG.warn("Could not reload bin table " + key
+						+ ", keeping the loaded one", fresh.failure());
+				// retried once the old table expires again
+				CACHE.replace(key, fresh, completed(previous));
+				return previous;
+			}
+			CACHE.remove(key, fresh);
+			throw fresh.failure();
+		}
+	}
+
+	private static Entry completed(final BinTable table) {
+		Entry entry = new Entry(new Callable<BinTable>() {
+			@Override
+			public BinTable call() {
+				return table;
+			}
+		}, null);
+		entry.load.run();
+		return entry;
+	}
+
+	/**
+	 * Drops every cached table, so that the next lookups load them again.
+	 */
+	public static void clear() {
+		CACHE.clear();
+	}
+
+	private static BinTable load(long ttlMillis, File snapshot,
+			Callable<BinTable> loader) throws Exception {
+		if (snapshot != null
+				&& snapshot.isFile()
+				&& System.currentTimeMillis() - snapshot.lastModified() <= ttlMillis) {
+			try {
+				return readSnapshot(snapshot);
+			} catch (IOException e) {
+				LOG.warn("Ignoring unreadable bin table snapshot " + snapshot,
+						e);
+			}
+		}
+		BinTable table;
+		try {
+			table = loader.call();
+		} catch (Exception e) {
+			if (snapshot == null || !snapshot.isFile()) {
+				throw e;
+			}
+			LOG.warn("Could not load bin table, using the snapshot "
+					+ snapshot + " of " + snapshot.lastModified(), e);
+			return readSnapshot(snapshot);
+		}
+		if (snapshot != null) {
+			try {
+				writeSnapshot(table, snapshot);
+			} catch (IOException e) {
+				LOG.warn("Could not write bin table snapshot " + snapshot, e);
+			}
+		}
+		return table;
+	}
+
+	static BinTable readSnapshot(File file) throws IOException {
+		return BinTable.read(file);
+	}
+
+	/**
+	 * Writes a temp file next to the snapshot and renames it over, so that
+	 * other tasks never read half a snapshot.
+	 */
+	static void writeSnapshot(BinTable table, File file) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		boolean done = false;
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				table.write(out);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Could not rename " + tmp + " to "
+						+ file);
+			}
+			done = true;
+		} finally {
+			if (!done && !tmp.delete()) {
+				tmp.deleteOnExit();
+			}
+		}
+	}
+}
@@ -1,28 +1,35 @@
 package com.nsn.ngdb.hive.udf;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDFUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.io.Text;
 
 
@@ -32,34 +39,141 @@ public class GetRange extends GenericUDF {
 	
 	public static final Log LOG = LogFactory.getLog(GetRange.class);
 	
-	private  Map<String, HashMap<String, ArrayList<Float>>> binTableMap = null;
+	private BinTable binTable = null;
 	
 	private static final String DB_URL = "db_url";
 
 	private static final String DB_Driver = "db_driver";
 
-	private static String NO_RANGE_FOUND = "No Range Found";
+	static final Text NO_RANGE_FOUND = new Text("No Range Found");
 	
 	private static String CEI_BIN_QUERY ="cei_bin" ;
 	
 	private static String CQI_BIN_QUERY ="cqi_bin";
+
+	/** seconds a loaded bin table is used in the JVM, see {@link BinTableCache} */
+	private static final String BIN_CACHE_TTL = "bin_cache_ttl";
+
+	private static final String DEFAULT_BIN_CACHE_TTL = "3600";
+
+	/** optional local file the bin table is kept in between JVMs */
+	private static final String BIN_SNAPSHOT = "bin_snapshot";
+
+	/**
+	 * optional bin definitions file, binary or CSV, see {@link BinTable}. It
+	 * is shipped to the tasks through the distributed cache and replaces the
+	 * database queries
+	 */
+	private static final String BIN_FILE = "bin_file";
 	
 	private static Properties prop = new Properties();
 	
-	private Text text = new Text();
-	
-	
-	private void loadMap() throws SQLException{
+	private void loadMap() throws IOException {
+		binTable = loadBinTable();
+	}
+
+	/**
+	 * Takes the bin table from the JVM wide cache, which reads the bin file
+	 * or queries the database only for the first instance per time to live.
+	 */
+	static BinTable loadBinTable() throws IOException {
 			loadProperties();
-			cacheBintable(prop.getProperty(CQI_BIN_QUERY));
-			cacheBintable(prop.getProperty(CEI_BIN_QUERY));
+			long ttl = 1000L * Long.parseLong(prop.getProperty(BIN_CACHE_TTL,
+					DEFAULT_BIN_CACHE_TTL).trim());
+			String binFile = prop.getProperty(BIN_FILE);
+			if (binFile != null && !binFile.trim().isEmpty()) {
+				return loadBinFile(binFile.trim(), ttl);
+			}
+			final String url = prop.getProperty(DB_URL);
+			final String driver = prop.getProperty(DB_Driver);
+			final String cqi = prop.getProperty(CQI_BIN_QUERY);
+			final String cei = prop.getProperty(CEI_BIN_QUERY);
+			String snapshot = prop.getProperty(BIN_SNAPSHOT);
+			return BinTableCache.get(url + "\n" + cqi + "\n" + cei, ttl,
+					snapshot == null ? null : new File(snapshot),
+					new Callable<BinTable>() {
+						@Override
+						public BinTable call() throws SQLException {
+							return queryBintable(url, driver, cqi, cei);
+						}
+					});
 	}
 	
+	/**
+	 * Maps the bin file from the task's working directory, where the
+	 * distributed cache links it. Where it was not shipped, as when the query
+	 * runs locally, it is read from its own path.
+	 */
+	private static BinTable loadBinFile(String binFile, long ttl)
+			throws IOException {
+		final Path path = new Path(binFile);
+		final File local = new File(path.getName());
+		if (local.isFile()) {
+			// a reused container sees a new file under a new key
+			return BinTableCache.get("file:" + local.getAbsolutePath() + "@"
+					+ local.lastModified() + ":" + local.length(),
+					Long.MAX_VALUE, null, new Callable<BinTable>() {
+						@Override
+						public BinTable call() throws IOException {
+							return BinTable.read(local);
+						}
+					});
+		}
+		return BinTableCache.get(binFile, ttl, null, new Callable<BinTable>() {
+			@Override
+			public BinTable call() throws IOException {
+				return readBinFile(path);
+			}
+		});
+	}
+
+	private static BinTable readBinFile(Path path) throws IOException {
+		FileSystem fs = path.getFileSystem(new Configuration());
+		long len = fs.getFileStatus(path).getLen();
+		if (len > Integer.MAX_VALUE) {
+			throw new IOException("Bin file " + path + " is too large");
+		}
+		byte[] b = new byte[(int) len];
+		FSDataInputStream in = fs.open(path);
+		try {
+			in.readFully(0, b);
+		} finally {
+			in.close();
+		}
+		return BinTable.parse(ByteBuffer.wrap(b));
+	}
+
+	/**
+	 * Ships the bin file, if one is configured, to the tasks.
+	 */
+	@Override
+	public String[] getRequiredFiles() {
+		return requiredFiles();
+	}
+
+	static String[] requiredFiles() {
+		loadProperties();
+		String binFile = prop.getProperty(BIN_FILE);
+		if (binFile == null || binFile.trim().isEmpty()) {
+			return null;
+		}
+		return new String[] { binFile.trim() };
+	}
+
 	private GenericUDFUtils.ReturnObjectInspectorResolver returnOIResolver;
 
 
 	private ObjectInspector returnInspector;
 
+	private PrimitiveObjectInspector typeInspector;
+
+	private PrimitiveObjectInspector valueInspector;
+
+	// the bins of a constant bin type, resolved once
+	private BinTable.Bins constantBins;
+
+	private boolean constantType;
+
 	
 //	private String[] cei = {"AGE","SMS_CEI_INDEX_SAT_LEVEL","CEI_INDEX_SAT_LEVEL","CEI_INDEX","VOICE_CEI_INDEX_SAT_LEVEL","SUBS_COUNT","DATA_CEI_INDEX_SAT_LEVEL"};
 //	
@@ -75,7 +189,14 @@ public class GetRange extends GenericUDF {
 			throw new UDFArgumentLengthException(
 					"The operator 'Range' accepts 2 arguments.");
 		}
-		binTableMap = new HashMap<String, HashMap<String, ArrayList<Float>>>();
+		for (int i = 0; i < 2; i++) {
+			if (arguments[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+				throw new UDFArgumentTypeException(i,
+						"The operator 'Range' takes primitive arguments.");
+			}
+		}
+		typeInspector = (PrimitiveObjectInspector) arguments[0];
+		valueInspector = (PrimitiveObjectInspector) arguments[1];
 		returnInspector = PrimitiveObjectInspectorFactory.writableStringObjectInspector;
 		returnOIResolver = new GenericUDFUtils.ReturnObjectInspectorResolver(
 				true);
@@ -83,43 +204,46 @@ public class GetRange extends GenericUDF {
 		returnOIResolver.update(arguments[1]);
 		try {
 			loadMap();
-		} catch (SQLException e) {
-			LOG.error("Error :"+e.getMessage());
+		} catch (IOException e) {
+			// an empty table would turn every row into NO_RANGE_FOUND
+			throw new UDFArgumentException(e);
+		}
+		LOG.debug("Bin Table Map Object:"+binTable);
+		constantType = arguments[0] instanceof ConstantObjectInspector;
+		if (constantType) {
+			Object type = ((ConstantObjectInspector) arguments[0])
+					.getWritableConstantValue();
+			constantBins = type == null ? null : binTable.get(type.toString());
 		}
-		LOG.debug("Bin Table Map Object:"+binTableMap);
 		return returnInspector;
 		
 	}
 
-	@SuppressWarnings({ "rawtypes", "unchecked" })
+	/**
+	 * @return the label of the bin holding the value, shared between rows
+	 *         and never modified, see {@link BinTable}
+	 */
 	@Override
 	public Object evaluate(DeferredObject[] arguments)	throws HiveException {
 		if (arguments != null && arguments.length > 0) {
 			
-			if (arguments[0].get() != null && arguments[1].get() != null) {
-				double fieldValue = Double.parseDouble(arguments[1].get().toString());
-				String binType =  arguments[0].get().toString();
+			Object type = arguments[0].get();
+			Object value = arguments[1].get();
+			if (type != null && value != null) {
+				// numbers are read as they are, only strings are parsed
+				double fieldValue = PrimitiveObjectInspectorUtils.getDouble(
+						value, valueInspector);
+				BinTable.Bins bins = constantType ? constantBins : binTable
+						.get(PrimitiveObjectInspectorUtils.getString(type,
+								typeInspector));
 			
-				 if(binTableMap.get(binType) != null){
-				    	HashMap<String, ArrayList<Float>> binValues = binTableMap.get(binType);
-				    	Iterator iterator = binValues.entrySet().iterator();
-				    	while (iterator.hasNext()) {
-				    		Map.Entry pairs = (Map.Entry)iterator.next();
-				            ArrayList<Float> valuePair =(ArrayList<Float>) pairs.getValue();
-				            if(fieldValue >= valuePair.get(0) && fieldValue <= valuePair.get(1)){
-				            	text.set(pairs.getKey().toString());
-//				            	text.set(valuePair.get(0) + "-" + valuePair.get(1));
-			            		LOG.debug("Range Returning:"+text);
-				            	return text;
-				            }
-				    	}
-				    	 
-				 }
-				
+				Text label = bins == null ? null : bins.lookup(fieldValue);
+				if (label != null) {
+					return label;
+				}
 			}
 		 }
-		 text.set(NO_RANGE_FOUND);
-		 return text;
+		 return NO_RANGE_FOUND;
 	}
 
 	@Override
@@ -134,48 +258,46 @@ public class GetRange extends GenericUDF {
 
 
 
-	private  void cacheBintable(String query) throws SQLException  {
-		 Connection conn = null;
-		 Statement st = null;
-		 ResultSet result = null;
-		 try{
-			 String url = prop.getProperty(DB_URL);
-			 String driver = prop.getProperty(DB_Driver);
-			 Class.forName(driver);
-			 conn =  DriverManager.getConnection(url, "", "");
-			 st = conn.createStatement();
-			 result = st.executeQuery(query);
-			 while (result.next()) {
-				 HashMap<String, ArrayList<Float>> innerlist = new HashMap<String, ArrayList<Float>>();
-				 ArrayList<Float> list = new ArrayList<Float>();
-				 list.add(result.getFloat(3));
-				 list.add(result.getFloat(4));
-				 innerlist.put(result.getString(2),list);
-				 if (binTableMap.get(result.getString(1)) == null){
-					  binTableMap.put(result.getString(1),innerlist);
-				 }else{
-					 binTableMap.get(result.getString(1)).put(result.getString(2), list);
-				 }
-		    }
-			}catch(Exception e){
-					  LOG.error("Error :"+e.getMessage());
+	/**
+	 * Runs the bin queries on one connection. Errors are thrown rather than
+	 * logged, so that a failed load is not cached as an empty table.
+	 */
+	private static BinTable queryBintable(String url, String driver,
+			String... queries) throws SQLException {
+		try {
+			Class.forName(driver);
+		} catch (ClassNotFoundException e) {
+			throw new SQLException("No JDBC driver " + driver, e);
+		}
+		BinTable.Builder builder = new BinTable.Builder();
+		Connection conn = DriverManager.getConnection(url, "", "");
+		try {
+			for (String query : queries) {
+				cacheBintable(conn, builder, query);
 			}
-		 finally{
-		     LOG.debug("Closing Connection...");
-			 if (result != null)
-			 {
-				 result.close();
-			 }
-			 if (st != null)
-			 {
-				 st.close() ;
-			 }
-			 if(conn != null)
-			 {
-				 conn.close() ;
-			 }
+		} finally {
+			LOG.debug("Closing Connection...");
+			conn.close();
+		}
+		return builder.build();
+	}
 
-		 }
+	private static void cacheBintable(Connection conn,
+			BinTable.Builder builder, String query) throws SQLException {
+		Statement st = conn.createStatement();
+		try {
+			ResultSet result = st.executeQuery(query);
+			try {
+				while (result.next()) {
+					builder.add(result.getString(1), result.getString(2),
+							result.getFloat(3), result.getFloat(4));
+				}
+			} finally {
+				result.close();
+			}
+		} finally {
+			st.close();
+		}
 	}
 	
 	
@@ -205,10 +327,12 @@ public class GetRange extends GenericUDF {
 
 	
 	@SuppressWarnings("resource")
-	public static void main(String[] args) throws HiveException, SQLException{
+	public static void main(String[] args) throws HiveException{
 //		loadProperties();
 		GetRange getRange = new GetRange();
-		getRange.loadMap();
+		getRange.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+				PrimitiveObjectInspectorFactory.javaIntObjectInspector });
 		   Object result = getRange.evaluate(new DeferredObject[]{new DeferredJavaObject("B2"), new DeferredJavaObject(6145)});
 		   System.out.println("result:"+result);
 //		System.out.println("Age                      :" +getRange(32,"AGE"));
@@ -0,0 +1,131 @@
+package com.nsn.ngdb.hive.udf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.io.Text;
+
+/**
+ * {@link GetRange} over several bin types in one call:
+ * {@code get_ranges(type1, value1, type2, value2, ...)} returns the array of
+ * the labels of each value's bin, in argument order, with "No Range Found"
+ * where a value is null or in no bin.
+ * <p>
+ * Constant bin types, the usual case, are resolved to their compiled bins
+ * once in {@link #initialize(ObjectInspector[])}, so a row costs one binary
+ * search per pair. Other types are looked up per row. The bins come from the
+ * same JVM wide {@link BinTableCache} as those of {@link GetRange}.
+ * </p>
+ */
+public class GetRanges extends GenericUDF {
+
+	public static final Log LOG = LogFactory.getLog(GetRanges.class);
+
+	private BinTable binTable;
+
+	private PrimitiveObjectInspector[] typeInspectors;
+
+	private PrimitiveObjectInspector[] valueInspectors;
+
+	// the bins of each constant type, null where the type is not constant
+	private BinTable.Bins[] bins;
+
+	private boolean[] constantType;
+
+	// reused between rows, the labels are shared and never modified
+	private final List<Text> result = new ArrayList<Text>();
+
+	@Override
+	public ObjectInspector initialize(ObjectInspector[] arguments)
+			throws UDFArgumentException {
+		if (arguments.length == 0 || arguments.length % 2 != 0) {
+			throw new UDFArgumentLengthException(
+					"The operator 'Ranges' accepts pairs of bin type and value.");
+		}
+		for (int i = 0; i < arguments.length; i++) {
+			if (arguments[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+				throw new UDFArgumentTypeException(i,
+						"The operator 'Ranges' takes primitive arguments.");
+			}
+		}
+		try {
+			binTable = GetRange.loadBinTable();
+		} catch (IOException e) {
+			// an empty table would turn every row into NO_RANGE_FOUND
+			throw new UDFArgumentException(e);
+		}
+		int n = arguments.length / 2;
+		typeInspectors = new PrimitiveObjectInspector[n];
+		valueInspectors = new PrimitiveObjectInspector[n];
+		bins = new BinTable.Bins[n];
+		constantType = new boolean[n];
+		for (int k = 0; k < n; k++) {
+			typeInspectors[k] = (PrimitiveObjectInspector) arguments[2 * k];
+			valueInspectors[k] = (PrimitiveObjectInspector) arguments[2 * k + 1];
+			if (arguments[2 * k] instanceof ConstantObjectInspector) {
+				constantType[k] = true;
+				Object type = ((ConstantObjectInspector) arguments[2 * k])
+						.getWritableConstantValue();
+				bins[k] = type == null ? null : binTable.get(type.toString());
+			}
+		}
+		LOG.debug("Bin Table Map Object:" + binTable);
+		return ObjectInspectorFactory
+				.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.writableStringObjectInspector);
+	}
+
+	@Override
+	public Object evaluate(DeferredObject[] arguments) throws HiveException {
+		result.clear();
+		for (int k = 0; k < typeInspectors.length; k++) {
+			Text label = null;
+			Object type = arguments[2 * k].get();
+			Object value = arguments[2 * k + 1].get();
+			if (type != null && value != null) {
+				BinTable.Bins b = constantType[k] ? bins[k] : binTable
+						.get(PrimitiveObjectInspectorUtils.getString(type,
+								typeInspectors[k]));
+				if (b != null) {
+					label = b.lookup(PrimitiveObjectInspectorUtils.getDouble(
+							value, valueInspectors[k]));
+				}
+			}
+			result.add(label == null ? GetRange.NO_RANGE_FOUND : label);
+		}
+		return result;
+	}
+
+	/**
+	 * Ships the bin file, if one is configured, to the tasks.
+	 */
+	@Override
+	public String[] getRequiredFiles() {
+		return GetRange.requiredFiles();
+	}
+
+	@Override
+	public String getDisplayString(String[] children) {
+		StringBuilder sb = new StringBuilder("get_ranges(");
+		for (int i = 0; i < children.length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(children[i]);
+		}
+		return sb.append(')').toString();
+	}
+}
@@ -0,0 +1,87 @@
+package com.wandisco.hive.udaf;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+
+/**
+ * Job configuration switches shared by the exact distinct counters. They are
+ * read in {@code configure(MapredContext)}, so they can be changed per query
+ * with {@code SET key=value}.
+ */
+public final class DistinctConf {
+
+	/**
+	 * Encoding of sorted long partials: {@code varint} (default) or
+	 * {@code pfor} for FastPFOR block packing of the deltas.
+	 */
+	public static final String LONG_ENCODING = "wandisco.distinct.long.encoding";
+
+	public static final String ENCODING_VARINT = "varint";
+	public static final String ENCODING_PFOR = "pfor";
+
+	/**
+	 * Distinct values a single group of count_distinct_long, _int or _imsi
+	 * may hold in a heap hash set before it moves to an
+	 * {@link OffHeapLongSet}. 0 (default) keeps every group on the heap.
+	 */
+	public static final String OFFHEAP_THRESHOLD = "wandisco.distinct.offheap.threshold";
+
+	/**
+	 * Table size in bytes above which an off-heap set is mapped from a local
+	 * temp file instead of direct memory.
+	 */
+	public static final String OFFHEAP_SPILL_BYTES = "wandisco.distinct.offheap.spill.bytes";
+
+	public static final long DEFAULT_OFFHEAP_SPILL_BYTES = 1L << 30;
+
+	/**
+	 * Values a group of count_distinct_long or _imsi may hold in memory, in
+	 * its hash set and again in sorted runs, before they are sorted and
+	 * written to local temp files. The result is then merged from the files.
+	 * 0 (default) never spills.
+	 */
+	public static final String SPILL_THRESHOLD = "wandisco.distinct.spill.threshold";
+
+	/**
+	 * Threads merging partials into a group of count_distinct_long, _double
+	 * or the generic count_distinct on the reduce side, see
+	 * {@link ParallelMerge}. 0 or 1 (default) merges on the task's own
+	 * thread. Whether more threads pay off depends on the cores the reducer
+	 * gets, measure with ParallelMergeBenchmark in benchmarks/ first.
+	 */
+	public static final String MERGE_THREADS = "wandisco.distinct.merge.threads";
+
+	private DistinctConf() {
+	}
+
+	static Configuration conf(MapredContext mapredContext) {
+		return mapredContext == null ? null : mapredContext.getJobConf();
+	}
+
+	public static boolean usePFor(MapredContext mapredContext) {
+		Configuration conf = conf(mapredContext);
+		return conf != null
+				&& ENCODING_PFOR.equalsIgnoreCase(conf.get(LONG_ENCODING,
+						ENCODING_VARINT));
+	}
+
+	public static OffHeapLongSet.Pool offHeapPool(MapredContext mapredContext) {
+		Configuration conf = conf(mapredContext);
+		if (conf == null) {
+			return new OffHeapLongSet.Pool(0, DEFAULT_OFFHEAP_SPILL_BYTES);
+		}
+		return new OffHeapLongSet.Pool(conf.getLong(OFFHEAP_THRESHOLD, 0),
+				conf.getLong(OFFHEAP_SPILL_BYTES, DEFAULT_OFFHEAP_SPILL_BYTES));
+	}
+
+	public static long spillThreshold(MapredContext mapredContext) {
+		Configuration conf = conf(mapredContext);
+		return conf == null ? 0 : conf.getLong(SPILL_THRESHOLD, 0);
+	}
+
+	public static ParallelMerge parallelMerge(MapredContext mapredContext) {
+		Configuration conf = conf(mapredContext);
+		return new ParallelMerge(conf == null ? 0 : conf.getInt(
+				MERGE_THREADS, 0));
+	}
+}
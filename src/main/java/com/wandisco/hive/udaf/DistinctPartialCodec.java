@@ -0,0 +1,1055 @@
+package com.wandisco.hive.udaf;
+
+import gnu.trove.procedure.TDoubleProcedure;
+import gnu.trove.procedure.TIntProcedure;
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.set.hash.TDoubleHashSet;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+import me.lemire.integercompression.Composition;
+import me.lemire.integercompression.FastPFOR;
+import me.lemire.integercompression.IntWrapper;
+import me.lemire.integercompression.IntegerCODEC;
+import me.lemire.integercompression.VariableByte;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Binary format for the partial results of the exact distinct counters.
+ * <p>
+ * Every partial starts with a fixed header: a magic byte, the format version,
+ * a type tag describing the payload and the number of elements that follow.
+ * The payload is a packed array of primitives, so {@link Reader} can stream
+ * the values straight into the receiving set without building an intermediate
+ * collection.
+ * </p>
+ */
+public final class DistinctPartialCodec {
+
+	public static final byte MAGIC = (byte) 0xDC;
+	public static final byte VERSION = 1;
+
+	/** big-endian 64 bit values */
+	public static final byte TYPE_LONG = 1;
+	/** big-endian 32 bit values */
+	public static final byte TYPE_INT = 2;
+	/** IEEE 754 64 bit values */
+	public static final byte TYPE_DOUBLE = 3;
+	/** varint length followed by UTF-8 bytes, per value */
+	public static final byte TYPE_STRING = 4;
+	/** the 64 bit words of a bitmap, count is the number of words */
+	public static final byte TYPE_BITSET = 5;
+	/** java serialised values, for types without a packed form */
+	public static final byte TYPE_OBJECT = 6;
+	/**
+	 * ascending 64 bit values: the first value, then the unsigned gaps as
+	 * varints
+	 */
+	public static final byte TYPE_LONG_SORTED_VARINT = 7;
+	/**
+	 * ascending 64 bit values: the first value, then the unsigned 32 bit gaps
+	 * packed with FastPFOR in blocks of up to {@link #PFOR_BLOCK} gaps, each
+	 * block laid out as in {@link #TYPE_INT_SORTED_PFOR}
+	 */
+	public static final byte TYPE_LONG_SORTED_PFOR = 8;
+	/** a {@link RoaringLongBitmap}, count is the number of containers */
+	public static final byte TYPE_ROARING = 9;
+	/**
+	 * a HyperLogLog++ sketch as written by {@code HyperLogLogPlus.getBytes()},
+	 * count is unused
+	 */
+	public static final byte TYPE_HLL = 10;
+	/**
+	 * the sparse phase of a {@link HLLSketch}: p and sp as bytes, then the
+	 * ascending hashes as in {@link #TYPE_LONG_SORTED_VARINT}, count is the
+	 * number of hashes
+	 */
+	public static final byte TYPE_HLL_SPARSE = 11;
+	/**
+	 * a {@link KMVSketch}: k as an int, then the ascending hashes as in
+	 * {@link #TYPE_LONG_SORTED_VARINT}, count is the number of hashes
+	 */
+	public static final byte TYPE_KMV = 12;
+	/**
+	 * ascending 32 bit values as gaps from the previous value, the first from
+	 * 0, packed with FastPFOR in blocks of up to {@link #PFOR_BLOCK} values:
+	 * per block the int number of values and of packed words, then the words
+	 */
+	public static final byte TYPE_INT_SORTED_PFOR = 13;
+
+	/**
+	 * 32 bit values relative to the constant base of the int counters: the
+	 * base as a long, the min and max value as ints and a layout byte, then
+	 * for {@link #RANGE_BITMAP} the 64 bit words covering min to max, the
+	 * first holding values from {@code (min >> 6) << 6}, or for
+	 * {@link #RANGE_SORTED} the values as in {@link #TYPE_INT_SORTED_PFOR}.
+	 * count is the number of values
+	 */
+	public static final byte TYPE_INT_RANGE = 14;
+	/**
+	 * a {@link PartitionedBitSet}: the base as a long, then per bucket the
+	 * high 32 bits as an int, the number of values for {@link #RANGE_SORTED}
+	 * (0 for {@link #RANGE_BITMAP}) and a layout byte, followed by the int
+	 * index of the first word and the number of 64 bit words, then the
+	 * words, or by the unsigned low 32 bits as in
+	 * {@link #TYPE_INT_SORTED_PFOR}. count is the number of buckets
+	 */
+	public static final byte TYPE_PARTITIONED_BITSET = 15;
+
+	/** values per FastPFOR block of {@link #TYPE_INT_SORTED_PFOR} */
+	public static final int PFOR_BLOCK = 1 << 16;
+
+	public static final byte RANGE_BITMAP = 0;
+	public static final byte RANGE_SORTED = 1;
+
+	/**
+	 * A range partial is a bitmap while that costs at most this many bits per
+	 * value; it is then merged with a word-wise OR.
+	 */
+	static final int DENSE_BITS_PER_VALUE = 8;
+
+	/** magic, version, type and element count */
+	public static final int HEADER_SIZE = 7;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private DistinctPartialCodec() {
+	}
+
+	public static BytesWritable encodeLongs(TLongHashSet set) {
+		final Writer w = new Writer(TYPE_LONG, set.size(), 8L * set.size());
+		set.forEach(new TLongProcedure() {
+			@Override
+			public boolean execute(long value) {
+				w.putLong(value);
+				return true;
+			}
+		});
+		return w.toBytesWritable();
+	}
+
+	public static BytesWritable encodeInts(TIntHashSet set) {
+		final Writer w = new Writer(TYPE_INT, set.size(), 4L * set.size());
+		set.forEach(new TIntProcedure() {
+			@Override
+			public boolean execute(int value) {
+				w.putInt(value);
+				return true;
+			}
+		});
+		return w.toBytesWritable();
+	}
+
+	/**
+	 * Encodes a set of ints as {@link #TYPE_INT_SORTED_PFOR}. Sorting keeps
+	 * the gaps, and so the packed width, small.
+	 */
+	public static BytesWritable encodeSortedIntsPFor(TIntHashSet set) {
+		int[] values = set.toArray();
+		Arrays.sort(values);
+		int n = values.length;
+		Writer w = new Writer(TYPE_INT_SORTED_PFOR, n, 8L + 2L * n);
+		putPForBlocks(w, values, n);
+		return w.toBytesWritable();
+	}
+
+	static void putPForBlocks(Writer w, int[] values, int n) {
+		IntegerCODEC codec = newIntCodec();
+		int[] gaps = new int[Math.min(n, PFOR_BLOCK)];
+		int[] packed = new int[packedCapacity(gaps.length)];
+		int prev = 0;
+		for (int off = 0; off < n; off += PFOR_BLOCK) {
+			int len = Math.min(PFOR_BLOCK, n - off);
+			for (int i = 0; i < len; i++) {
+				int v = values[off + i];
+				// wraps for the first, negative value; decoding wraps back
+				gaps[i] = v - prev;
+				prev = v;
+			}
+			putPForBlock(w, codec, gaps, len, packed);
+		}
+	}
+
+	/**
+	 * Room for a packed block: FastPFOR's worst case is about len + len / 256
+	 * words plus the page metadata.
+	 */
+	private static int packedCapacity(int len) {
+		return len + len / 128 + 1024;
+	}
+
+	private static void putPForBlock(Writer w, IntegerCODEC codec,
+			int[] block, int len, int[] packed) {
+		IntWrapper outpos = new IntWrapper(0);
+		codec.compress(block, new IntWrapper(0), len, packed, outpos);
+		int words = outpos.intValue();
+		w.putInt(len);
+		w.putInt(words);
+		for (int i = 0; i < words; i++) {
+			w.putInt(packed[i]);
+		}
+	}
+
+	/**
+	 * Encodes a set of ints relative to {@code base} as
+	 * {@link #TYPE_INT_RANGE}.
+	 */
+	public static BytesWritable encodeIntRange(long base, TIntHashSet set) {
+		return encodeIntRange(base, set.toArray());
+	}
+
+	/**
+	 * Encodes the int values of an off-heap set relative to {@code base} as
+	 * {@link #TYPE_INT_RANGE}.
+	 */
+	public static BytesWritable encodeIntRange(long base, OffHeapLongSet set) {
+		final int[] values = new int[(int) set.size()];
+		set.forEach(new TLongProcedure() {
+			int k;
+
+			@Override
+			public boolean execute(long value) {
+				values[k++] = (int) value;
+				return true;
+			}
+		});
+		return encodeIntRange(base, values);
+	}
+
+	private static BytesWritable encodeIntRange(long base, int[] values) {
+		Arrays.sort(values);
+		int n = values.length;
+		if (n > 0 && isDense(values[0], values[n - 1], n)) {
+			int min = values[0];
+			int max = values[n - 1];
+			long[] words = new long[wordCount(min, max)];
+			int first = min >> 6;
+			for (int i = 0; i < n; i++) {
+				words[(values[i] >> 6) - first] |= 1L << values[i];
+			}
+			return encodeRangeBitmap(base, min, max, n, words, 0);
+		}
+		return encodeRangeSorted(base, values, n);
+	}
+
+	/**
+	 * Encodes the offsets in a bitmap relative to {@code base} as
+	 * {@link #TYPE_INT_RANGE}.
+	 */
+	public static BytesWritable encodeIntRange(long base, BitSet set) {
+		int n = set.cardinality();
+		if (n == 0) {
+			return encodeRangeSorted(base, new int[0], 0);
+		}
+		int min = set.nextSetBit(0);
+		int max = set.length() - 1;
+		if (isDense(min, max, n)) {
+			return encodeRangeBitmap(base, min, max, n, set.toLongArray(),
+					min >> 6);
+		}
+		int[] values = new int[n];
+		int k = 0;
+		for (int i = min; i >= 0; i = set.nextSetBit(i + 1)) {
+			values[k++] = i;
+		}
+		return encodeRangeSorted(base, values, n);
+	}
+
+	private static boolean isDense(int min, int max, int n) {
+		return (long) max - min + 1 <= (long) DENSE_BITS_PER_VALUE * n;
+	}
+
+	private static int wordCount(int min, int max) {
+		return (max >> 6) - (min >> 6) + 1;
+	}
+
+	private static BytesWritable encodeRangeBitmap(long base, int min,
+			int max, int n, long[] words, int from) {
+		int count = wordCount(min, max);
+		Writer w = new Writer(TYPE_INT_RANGE, n, 17L + 8L * count);
+		putRangeHeader(w, base, min, max, RANGE_BITMAP);
+		for (int i = 0; i < count; i++) {
+			w.putLong(words[from + i]);
+		}
+		return w.toBytesWritable();
+	}
+
+	private static BytesWritable encodeRangeSorted(long base, int[] sorted,
+			int n) {
+		Writer w = new Writer(TYPE_INT_RANGE, n, 17L + 2L * n);
+		putRangeHeader(w, base, n == 0 ? 0 : sorted[0], n == 0 ? -1
+				: sorted[n - 1], RANGE_SORTED);
+		putPForBlocks(w, sorted, n);
+		return w.toBytesWritable();
+	}
+
+	private static void putRangeHeader(Writer w, long base, int min, int max,
+			byte layout) {
+		w.putLong(base);
+		w.putInt(min);
+		w.putInt(max);
+		w.putByte(layout);
+	}
+
+	public static BytesWritable encodeDoubles(TDoubleHashSet set) {
+		final Writer w = new Writer(TYPE_DOUBLE, set.size(), 8L * set.size());
+		set.forEach(new TDoubleProcedure() {
+			@Override
+			public boolean execute(double value) {
+				w.putLong(Double.doubleToLongBits(value));
+				return true;
+			}
+		});
+		return w.toBytesWritable();
+	}
+
+	/**
+	 * Encodes doubles held as their {@link Double#doubleToLongBits(double)}
+	 * as {@link #TYPE_DOUBLE}, the same partial as
+	 * {@link #encodeDoubles(TDoubleHashSet)} writes.
+	 */
+	public static BytesWritable encodeDoubleBits(TLongHashSet bits) {
+		final Writer w = new Writer(TYPE_DOUBLE, bits.size(), 8L * bits.size());
+		bits.forEach(new TLongProcedure() {
+			@Override
+			public boolean execute(long value) {
+				w.putLong(value);
+				return true;
+			}
+		});
+		return w.toBytesWritable();
+	}
+
+	/**
+	 * Encodes an ascending, duplicate free run of longs as a first value
+	 * followed by the gaps between neighbours. With {@code pfor} the gaps are
+	 * block packed with FastPFOR, as long as every gap fits in 32 bits;
+	 * otherwise, or without {@code pfor}, they are written as varints.
+	 */
+	public static BytesWritable encodeSortedLongs(long[] sorted, int length,
+			boolean pfor) {
+		if (pfor && length > 1 && maxGap(sorted, length) <= 0xFFFFFFFFL) {
+			// packed a block at a time, so neither the gaps nor the words of
+			// the whole partial are ever held at once
+			int n = length - 1;
+			IntegerCODEC codec = newIntCodec();
+			int[] gaps = new int[Math.min(n, PFOR_BLOCK)];
+			int[] packed = new int[packedCapacity(gaps.length)];
+			Writer w = new Writer(TYPE_LONG_SORTED_PFOR, length, 8L + 2L * n);
+			w.putLong(sorted[0]);
+			for (int off = 0; off < n; off += PFOR_BLOCK) {
+				int len = Math.min(PFOR_BLOCK, n - off);
+				for (int i = 0; i < len; i++) {
+					gaps[i] = (int) (sorted[off + i + 1] - sorted[off + i]);
+				}
+				putPForBlock(w, codec, gaps, len, packed);
+			}
+			return w.toBytesWritable();
+		}
+		Writer w = new Writer(TYPE_LONG_SORTED_VARINT, length,
+				8L + 2L * length);
+		if (length > 0) {
+			w.putLong(sorted[0]);
+			for (int i = 1; i < length; i++) {
+				w.putVarLong(sorted[i] - sorted[i - 1]);
+			}
+		}
+		return w.toBytesWritable();
+	}
+
+	private static long maxGap(long[] sorted, int length) {
+		long max = 0;
+		for (int i = 1; i < length; i++) {
+			long gap = sorted[i] - sorted[i - 1];
+			// gaps are unsigned, anything that wraps is larger than 2^32
+			if (gap < 0) {
+				return -1L >>> 1;
+			}
+			max = Math.max(max, gap);
+		}
+		return max;
+	}
+
+	static IntegerCODEC newIntCodec() {
+		return new Composition(new FastPFOR(), new VariableByte());
+	}
+
+	/**
+	 * Wraps an opaque serialised payload, such as a sketch, in the partial
+	 * header.
+	 */
+	public static BytesWritable encodeBytes(byte type, byte[] payload) {
+		Writer w = new Writer(type, 0, payload.length);
+		w.putBytes(payload, 0, payload.length);
+		return w.toBytesWritable();
+	}
+
+	public static BytesWritable encodeBitSet(BitSet set) {
+		long[] words = set.toLongArray();
+		Writer w = new Writer(TYPE_BITSET, words.length, 8L * words.length);
+		for (int i = 0; i < words.length; i++) {
+			w.putLong(words[i]);
+		}
+		return w.toBytesWritable();
+	}
+
+	/**
+	 * Encodes a set of standard java objects, as produced by
+	 * {@link org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils#copyToStandardObject}.
+	 * Strings and the common numeric types get a packed payload, anything
+	 * else falls back to java serialisation.
+	 */
+	public static BytesWritable encodeObjects(Set<?> set) throws HiveException {
+		byte type = objectType(set);
+		int size = set.size();
+		Iterator<?> it = set.iterator();
+		Writer w;
+		switch (type) {
+		case TYPE_LONG:
+			w = new Writer(type, size, 8L * size);
+			while (it.hasNext()) {
+				w.putLong(((Long) it.next()).longValue());
+			}
+			break;
+		case TYPE_INT:
+			w = new Writer(type, size, 4L * size);
+			while (it.hasNext()) {
+				w.putInt(((Integer) it.next()).intValue());
+			}
+			break;
+		case TYPE_DOUBLE:
+			w = new Writer(type, size, 8L * size);
+			while (it.hasNext()) {
+				w.putLong(Double.doubleToLongBits(((Double) it.next())
+						.doubleValue()));
+			}
+			break;
+		case TYPE_STRING:
+			w = new Writer(type, size, 8L * size);
+			while (it.hasNext()) {
+				byte[] b = ((String) it.next()).getBytes(UTF8);
+				w.putVarLong(b.length);
+				w.putBytes(b, 0, b.length);
+			}
+			break;
+		default:
+			ByteArrayOutputStream b = new ByteArrayOutputStream();
+			try {
+				ObjectOutputStream o = new ObjectOutputStream(b);
+				o.writeObject(new ArrayList<Object>(set));
+				o.close();
+			} catch (IOException e) {
+				throw new HiveException(e.getMessage());
+			}
+			byte[] arr = b.toByteArray();
+			w = new Writer(type, size, arr.length);
+			w.putBytes(arr, 0, arr.length);
+		}
+		return w.toBytesWritable();
+	}
+
+	private static byte objectType(Set<?> set) {
+		Class<?> c = null;
+		for (Object o : set) {
+			if (c == null) {
+				c = o.getClass();
+			} else if (c != o.getClass()) {
+				return TYPE_OBJECT;
+			}
+		}
+		if (c == null || c == String.class) {
+			return TYPE_STRING;
+		} else if (c == Long.class) {
+			return TYPE_LONG;
+		} else if (c == Integer.class) {
+			return TYPE_INT;
+		} else if (c == Double.class) {
+			return TYPE_DOUBLE;
+		}
+		return TYPE_OBJECT;
+	}
+
+	/**
+	 * @return true if the bytes start with the partial header, which tells
+	 *         them apart from raw serialised sketches
+	 */
+	public static boolean isPartial(BytesWritable bytes) {
+		return bytes.getLength() >= HEADER_SIZE
+				&& bytes.getBytes()[0] == MAGIC;
+	}
+
+	public static Reader reader(BytesWritable partial) throws HiveException {
+		return new Reader(partial.getBytes(), 0, partial.getLength());
+	}
+
+	/**
+	 * Appends a header and a packed payload to a growable byte array.
+	 */
+	public static final class Writer {
+		private byte[] buf;
+		private int pos;
+
+		public Writer(byte type, int count, long payloadHint) {
+			buf = new byte[HEADER_SIZE
+					+ (int) Math.min(payloadHint, Integer.MAX_VALUE
+							- HEADER_SIZE)];
+			buf[pos++] = MAGIC;
+			buf[pos++] = VERSION;
+			buf[pos++] = type;
+			putInt(count);
+		}
+
+		private void ensure(int n) {
+			if (pos + n > buf.length) {
+				byte[] nb = new byte[Math.max(buf.length << 1, pos + n)];
+				System.arraycopy(buf, 0, nb, 0, pos);
+				buf = nb;
+			}
+		}
+
+		public void putByte(int v) {
+			ensure(1);
+			buf[pos++] = (byte) v;
+		}
+
+		public void putShort(int v) {
+			ensure(2);
+			buf[pos++] = (byte) (v >>> 8);
+			buf[pos++] = (byte) v;
+		}
+
+		public void putInt(int v) {
+			ensure(4);
+			buf[pos++] = (byte) (v >>> 24);
+			buf[pos++] = (byte) (v >>> 16);
+			buf[pos++] = (byte) (v >>> 8);
+			buf[pos++] = (byte) v;
+		}
+
+		public void putLong(long v) {
+			ensure(8);
+			buf[pos++] = (byte) (v >>> 56);
+			buf[pos++] = (byte) (v >>> 48);
+			buf[pos++] = (byte) (v >>> 40);
+			buf[pos++] = (byte) (v >>> 32);
+			buf[pos++] = (byte) (v >>> 24);
+			buf[pos++] = (byte) (v >>> 16);
+			buf[pos++] = (byte) (v >>> 8);
+			buf[pos++] = (byte) v;
+		}
+
+		/**
+		 * Unsigned LEB128: seven bits per byte, high bit set on all but the
+		 * last byte.
+		 */
+		public void putVarLong(long v) {
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[pos++] = (byte) v;
+		}
+
+		public void putBytes(byte[] b, int off, int len) {
+			ensure(len);
+			System.arraycopy(b, off, buf, pos, len);
+			pos += len;
+		}
+
+		public int length() {
+			return pos;
+		}
+
+		public BytesWritable toBytesWritable() {
+			if (pos == buf.length) {
+				return new BytesWritable(buf);
+			}
+			BytesWritable bw = new BytesWritable();
+			bw.set(buf, 0, pos);
+			return bw;
+		}
+	}
+
+	/**
+	 * Reads the header of a partial and streams its payload into a target
+	 * set.
+	 */
+	public static final class Reader {
+		private final byte[] buf;
+		private final int limit;
+		private int pos;
+		private final byte type;
+		private final int count;
+		// TYPE_INT_RANGE and TYPE_PARTITIONED_BITSET
+		private long base;
+		// TYPE_INT_RANGE only
+		private int min;
+		private int max;
+		private byte layout;
+
+		Reader(byte[] buf, int off, int len) throws HiveException {
+			this.buf = buf;
+			this.pos = off;
+			this.limit = off + len;
+			if (len < HEADER_SIZE || buf[pos] != MAGIC) {
+				throw new HiveException(
+						"Partial result is not in the distinct partial format");
+			}
+			if (buf[pos + 1] > VERSION) {
+				throw new HiveException("Unsupported partial format version "
+						+ buf[pos + 1]);
+			}
+			type = buf[pos + 2];
+			pos += 3;
+			count = getInt();
+			if (type == TYPE_INT_RANGE) {
+				require(17);
+				base = getLong();
+				min = getInt();
+				max = getInt();
+				layout = (byte) getByte();
+				if (layout != RANGE_BITMAP && layout != RANGE_SORTED) {
+					throw new HiveException("Unknown range partial layout "
+							+ layout);
+				}
+			} else if (type == TYPE_PARTITIONED_BITSET) {
+				require(8);
+				base = getLong();
+			}
+		}
+
+		public byte type() {
+			return type;
+		}
+
+		/**
+		 * @return true if the payload is an ascending, duplicate free run
+		 */
+		public boolean isSorted() {
+			return type == TYPE_LONG_SORTED_VARINT
+					|| type == TYPE_LONG_SORTED_PFOR;
+		}
+
+		public int count() {
+			return count;
+		}
+
+		/**
+		 * @return the base a {@link #TYPE_INT_RANGE} or
+		 *         {@link #TYPE_PARTITIONED_BITSET} partial's values are
+		 *         relative to
+		 */
+		public long base() {
+			return base;
+		}
+
+		private void check(byte expected) throws HiveException {
+			if (type != expected) {
+				throw new HiveException("Expected partial of type "
+						+ expected + " but got " + type);
+			}
+		}
+
+		public int getByte() {
+			return buf[pos++] & 0xFF;
+		}
+
+		/**
+		 * @return a copy of the rest of the payload
+		 */
+		public byte[] readBytes() {
+			byte[] b = Arrays.copyOfRange(buf, pos, limit);
+			pos = limit;
+			return b;
+		}
+
+		public int getUnsignedShort() {
+			int v = ((buf[pos] & 0xFF) << 8) | (buf[pos + 1] & 0xFF);
+			pos += 2;
+			return v;
+		}
+
+		public int getInt() {
+			int v = ((buf[pos] & 0xFF) << 24) | ((buf[pos + 1] & 0xFF) << 16)
+					| ((buf[pos + 2] & 0xFF) << 8) | (buf[pos + 3] & 0xFF);
+			pos += 4;
+			return v;
+		}
+
+		public long getLong() {
+			long hi = getInt() & 0xFFFFFFFFL;
+			long lo = getInt() & 0xFFFFFFFFL;
+			return (hi << 32) | lo;
+		}
+
+		public long getVarLong() throws HiveException {
+			long v = 0;
+			int shift = 0;
+			while (pos < limit) {
+				byte b = buf[pos++];
+				v |= (long) (b & 0x7F) << shift;
+				if (b >= 0) {
+					return v;
+				}
+				shift += 7;
+			}
+			throw new HiveException("Truncated varint in partial result");
+		}
+
+		public void require(long bytes) throws HiveException {
+			if (bytes > limit - pos) {
+				throw new HiveException("Truncated partial result: expected "
+						+ bytes + " bytes, have " + (limit - pos));
+			}
+		}
+
+		public boolean forEachLong(final TLongProcedure procedure)
+				throws HiveException {
+			if (type == TYPE_INT_SORTED_PFOR || type == TYPE_INT_RANGE) {
+				return forEachInt(new TIntProcedure() {
+					@Override
+					public boolean execute(int value) {
+						return procedure.execute(value);
+					}
+				});
+			}
+			if (isSorted()) {
+				long[] values = readSortedLongs();
+				for (int i = 0; i < values.length; i++) {
+					if (!procedure.execute(values[i])) {
+						return false;
+					}
+				}
+				return true;
+			}
+			if (type == TYPE_INT) {
+				require(4L * count);
+				for (int i = 0; i < count; i++) {
+					if (!procedure.execute(getInt())) {
+						return false;
+					}
+				}
+				return true;
+			}
+			check(TYPE_LONG);
+			require(8L * count);
+			for (int i = 0; i < count; i++) {
+				if (!procedure.execute(getLong())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Decodes a sorted long payload into a new array of {@link #count()}
+		 * values.
+		 */
+		public long[] readSortedLongs() throws HiveException {
+			long[] values = new long[count];
+			if (count == 0) {
+				return values;
+			}
+			if (type == TYPE_LONG_SORTED_PFOR) {
+				require(8);
+				final long[] out = values;
+				out[0] = getLong();
+				forEachPForBlock(count - 1, new TIntProcedure() {
+					int i = 1;
+
+					@Override
+					public boolean execute(int gap) {
+						out[i] = out[i - 1] + (gap & 0xFFFFFFFFL);
+						i++;
+						return true;
+					}
+				});
+				return values;
+			}
+			check(TYPE_LONG_SORTED_VARINT);
+			require(8);
+			long v = getLong();
+			values[0] = v;
+			for (int i = 1; i < count; i++) {
+				v += getVarLong();
+				values[i] = v;
+			}
+			return values;
+		}
+
+		public boolean forEachInt(TIntProcedure procedure)
+				throws HiveException {
+			if (type == TYPE_INT_SORTED_PFOR) {
+				return forEachPForInt(procedure);
+			}
+			if (type == TYPE_INT_RANGE) {
+				if (layout == RANGE_SORTED) {
+					return forEachPForInt(procedure);
+				}
+				return forEachBitmapInt(procedure);
+			}
+			check(TYPE_INT);
+			require(4L * count);
+			for (int i = 0; i < count; i++) {
+				if (!procedure.execute(getInt())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Decodes {@link #TYPE_INT_SORTED_PFOR} one block at a time, so only
+		 * a block of values is ever held besides the target.
+		 */
+		private boolean forEachPForInt(TIntProcedure procedure)
+				throws HiveException {
+			return forEachPForInt(count, procedure);
+		}
+
+		/**
+		 * Decodes {@code count} values packed as in
+		 * {@link #TYPE_INT_SORTED_PFOR} from the current position.
+		 */
+		boolean forEachPForInt(int count, final TIntProcedure procedure)
+				throws HiveException {
+			return forEachPForBlock(count, new TIntProcedure() {
+				int v;
+
+				@Override
+				public boolean execute(int gap) {
+					v += gap;
+					return procedure.execute(v);
+				}
+			});
+		}
+
+		/**
+		 * Decodes {@code count} ints packed in FastPFOR blocks from the
+		 * current position, one block at a time, as they were written.
+		 */
+		private boolean forEachPForBlock(int count, TIntProcedure procedure)
+				throws HiveException {
+			IntegerCODEC codec = newIntCodec();
+			int[] gaps = new int[Math.min(count, PFOR_BLOCK)];
+			int[] packed = new int[0];
+			int remaining = count;
+			while (remaining > 0) {
+				require(8);
+				int len = getInt();
+				int words = getInt();
+				if (len <= 0 || len > Math.min(remaining, PFOR_BLOCK)
+						|| words < 0) {
+					throw new HiveException("Corrupt FastPFOR block of " + len
+							+ " values in " + words + " words");
+				}
+				require(4L * words);
+				if (packed.length < words) {
+					packed = new int[words];
+				}
+				for (int i = 0; i < words; i++) {
+					packed[i] = getInt();
+				}
+				IntWrapper outpos = new IntWrapper(0);
+				codec.uncompress(packed, new IntWrapper(0), words, gaps, outpos);
+				if (outpos.intValue() != len) {
+					throw new HiveException("Corrupt FastPFOR block: expected "
+							+ len + " values, decoded " + outpos.intValue());
+				}
+				for (int i = 0; i < len; i++) {
+					if (!procedure.execute(gaps[i])) {
+						return false;
+					}
+				}
+				remaining -= len;
+			}
+			return true;
+		}
+
+		private boolean forEachBitmapInt(TIntProcedure procedure)
+				throws HiveException {
+			int words = wordCount(min, max);
+			require(8L * words);
+			long first = (long) (min >> 6) << 6;
+			for (int k = 0; k < words; k++) {
+				long word = getLong();
+				while (word != 0) {
+					int value = (int) (first + 64L * k + Long
+							.numberOfTrailingZeros(word));
+					if (!procedure.execute(value)) {
+						return false;
+					}
+					word &= word - 1;
+				}
+			}
+			return true;
+		}
+
+		public void readInto(final TLongHashSet target) throws HiveException {
+			target.ensureCapacity(target.size() + count);
+			forEachLong(new TLongProcedure() {
+				@Override
+				public boolean execute(long value) {
+					target.add(value);
+					return true;
+				}
+			});
+		}
+
+		public void readInto(final OffHeapLongSet target)
+				throws HiveException {
+			forEachLong(new TLongProcedure() {
+				@Override
+				public boolean execute(long value) {
+					target.add(value);
+					return true;
+				}
+			});
+		}
+
+		public void readInto(final TIntHashSet target) throws HiveException {
+			if (type == TYPE_INT_SORTED_PFOR || type == TYPE_INT_RANGE) {
+				target.ensureCapacity(target.size() + count);
+				forEachInt(new TIntProcedure() {
+					@Override
+					public boolean execute(int value) {
+						target.add(value);
+						return true;
+					}
+				});
+				return;
+			}
+			check(TYPE_INT);
+			require(4L * count);
+			target.ensureCapacity(target.size() + count);
+			for (int i = 0; i < count; i++) {
+				target.add(getInt());
+			}
+		}
+
+		public boolean forEachDouble(TDoubleProcedure procedure)
+				throws HiveException {
+			check(TYPE_DOUBLE);
+			require(8L * count);
+			for (int i = 0; i < count; i++) {
+				if (!procedure.execute(Double.longBitsToDouble(getLong()))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		public void readInto(TDoubleHashSet target) throws HiveException {
+			check(TYPE_DOUBLE);
+			require(8L * count);
+			target.ensureCapacity(target.size() + count);
+			for (int i = 0; i < count; i++) {
+				target.add(Double.longBitsToDouble(getLong()));
+			}
+		}
+
+		public void readInto(final BitSet target) throws HiveException {
+			if (type == TYPE_INT_RANGE && count > 0 && min < 0) {
+				throw new HiveException("Cannot set negative value " + min
+						+ " in a bitmap");
+			}
+			if (type == TYPE_INT_RANGE && layout == RANGE_BITMAP) {
+				// OR the words into place, below min they are zero
+				int first = min >> 6;
+				int words = wordCount(min, max);
+				require(8L * words);
+				long[] aligned = new long[first + words];
+				for (int i = 0; i < words; i++) {
+					aligned[first + i] = getLong();
+				}
+				target.or(BitSet.valueOf(aligned));
+				return;
+			}
+			if (type == TYPE_INT_RANGE) {
+				forEachPForInt(new TIntProcedure() {
+					@Override
+					public boolean execute(int value) {
+						target.set(value);
+						return true;
+					}
+				});
+				return;
+			}
+			if (type == TYPE_INT) {
+				require(4L * count);
+				for (int i = 0; i < count; i++) {
+					target.set(getInt());
+				}
+				return;
+			}
+			check(TYPE_BITSET);
+			require(8L * count);
+			long[] words = new long[count];
+			for (int i = 0; i < count; i++) {
+				words[i] = getLong();
+			}
+			target.or(BitSet.valueOf(words));
+		}
+
+		@SuppressWarnings("unchecked")
+		public void readInto(Collection<Object> target) throws HiveException {
+			switch (type) {
+			case TYPE_LONG:
+				require(8L * count);
+				for (int i = 0; i < count; i++) {
+					target.add(Long.valueOf(getLong()));
+				}
+				break;
+			case TYPE_INT:
+				require(4L * count);
+				for (int i = 0; i < count; i++) {
+					target.add(Integer.valueOf(getInt()));
+				}
+				break;
+			case TYPE_DOUBLE:
+				require(8L * count);
+				for (int i = 0; i < count; i++) {
+					target.add(Double.valueOf(Double
+							.longBitsToDouble(getLong())));
+				}
+				break;
+			case TYPE_STRING:
+				for (int i = 0; i < count; i++) {
+					int len = (int) getVarLong();
+					require(len);
+					target.add(new String(buf, pos, len, UTF8));
+					pos += len;
+				}
+				break;
+			case TYPE_OBJECT:
+				try {
+					ObjectInputStream oi = new ObjectInputStream(
+							new ByteArrayInputStream(buf, pos, limit - pos));
+					target.addAll((List<Object>) oi.readObject());
+				} catch (Exception e) {
+					throw new HiveException(e.getMessage());
+				}
+				pos = limit;
+				break;
+			default:
+				throw new HiveException("Unknown partial type " + type);
+			}
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package com.wandisco.hive.udaf;
+
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.set.hash.TLongHashSet;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A HyperLogLog++ sketch with its own sparse phase: small sketches keep the
+ * distinct 64 bit hashes themselves, and switch to a dense
+ * {@link HyperLogLogPlus} of precision p once the hashes would take more
+ * room than its registers. Until then the count is exact (up to hash
+ * collisions) and the sketch costs about 8 bytes per distinct value, in
+ * memory and serialised.
+ * <p>
+ * stream-lib's own sparse mode is not used: in 2.5.0 it does not remove
+ * repeated values from the sparse list, so a sparse sketch overcounts any
+ * input with duplicates. sp is kept as a switch, 0 starts dense.
+ * </p>
+ */
+public final class HLLSketch {
+
+	private final int p;
+	private final int sp;
+	private TLongHashSet hashes;
+	private HyperLogLogPlus dense;
+
+	public HLLSketch(int p, int sp) {
+		this.p = p;
+		this.sp = sp;
+		if (sp == 0) {
+			dense = new HyperLogLogPlus(p);
+		} else {
+			hashes = new TLongHashSet();
+		}
+	}
+
+	private HLLSketch(HyperLogLogPlus dense, int p) {
+		this.p = p;
+		this.sp = 0;
+		this.dense = dense;
+	}
+
+	/**
+	 * @param hash
+	 *            64 bit hash of the value, see {@link SketchHasher}
+	 */
+	public void offerHashed(long hash) {
+		if (dense != null) {
+			dense.offerHashed(hash);
+		} else if (hashes.add(hash) && hashes.size() > sparseLimit(p)) {
+			toDense();
+		}
+	}
+
+	/**
+	 * The number of hashes that take as many bytes as the 6 bit registers.
+	 */
+	static int sparseLimit(int p) {
+		return (3 << p) / 32;
+	}
+
+	private void toDense() {
+		final HyperLogLogPlus hll = new HyperLogLogPlus(p);
+		hashes.forEach(new TLongProcedure() {
+			@Override
+			public boolean execute(long hash) {
+				hll.offerHashed(hash);
+				return true;
+			}
+		});
+		hashes = null;
+		dense = hll;
+	}
+
+	public boolean isSparse() {
+		return dense == null;
+	}
+
+	public int precision() {
+		return p;
+	}
+
+	public long cardinality() {
+		return dense != null ? dense.cardinality() : hashes.size();
+	}
+
+	/**
+	 * Merges {@code that} into this sketch. Dense sketches only merge with
+	 * dense sketches of the same precision.
+	 */
+	public void addAll(HLLSketch that) throws HiveException {
+		if (that.dense == null) {
+			that.hashes.forEach(new TLongProcedure() {
+				@Override
+				public boolean execute(long hash) {
+					offerHashed(hash);
+					return true;
+				}
+			});
+			return;
+		}
+		if (dense == null) {
+			toDense();
+		}
+		try {
+			dense.addAll(that.dense);
+		} catch (Exception e) {
+			throw new HiveException("Failed to merge HyperLogLog++ sketches of precision "
+					+ p + " and " + that.p, e);
+		}
+	}
+
+	/**
+	 * Approximate heap footprint in bytes.
+	 */
+	public int sizeof() {
+		return dense != null ? dense.sizeof() : hashes.capacity() * 9;
+	}
+
+	/**
+	 * Sparse sketches are written as {@link DistinctPartialCodec#TYPE_HLL_SPARSE}:
+	 * p and sp as bytes, then the sorted hashes as a first value and varint
+	 * gaps. Dense ones as {@link DistinctPartialCodec#TYPE_HLL}.
+	 */
+	public BytesWritable serialize() throws HiveException {
+		if (dense != null) {
+			try {
+				return DistinctPartialCodec.encodeBytes(
+						DistinctPartialCodec.TYPE_HLL, dense.getBytes());
+			} catch (IOException e) {
+				throw new HiveException(
+						"Failed to serialise HyperLogLog++ sketch. ", e);
+			}
+		}
+		long[] sorted = hashes.toArray();
+		Arrays.sort(sorted);
+		DistinctPartialCodec.Writer w = new DistinctPartialCodec.Writer(
+				DistinctPartialCodec.TYPE_HLL_SPARSE, sorted.length,
+				10L + 8L * sorted.length);
+		w.putByte(p);
+		w.putByte(sp);
+		if (sorted.length > 0) {
+			w.putLong(sorted[0]);
+			for (int i = 1; i < sorted.length; i++) {
+				w.putVarLong(sorted[i] - sorted[i - 1]);
+			}
+		}
+		return w.toBytesWritable();
+	}
+
+	/**
+	 * Reads either serialised form, or the raw
+	 * {@code HyperLogLogPlus.getBytes()} of partials and sketches written
+	 * before this class.
+	 */
+	public static HLLSketch deserialize(BytesWritable bytes)
+			throws HiveException {
+		byte[] raw;
+		if (DistinctPartialCodec.isPartial(bytes)) {
+			DistinctPartialCodec.Reader r = DistinctPartialCodec.reader(bytes);
+			if (r.type() == DistinctPartialCodec.TYPE_HLL_SPARSE) {
+				int n = r.count();
+				r.require(2);
+				HLLSketch sketch = new HLLSketch(r.getByte(), r.getByte());
+				if (sketch.dense == null) {
+					sketch.hashes.ensureCapacity(n);
+				}
+				if (n > 0) {
+					r.require(8);
+					long v = r.getLong();
+					sketch.offerHashed(v);
+					for (int i = 1; i < n; i++) {
+						v += r.getVarLong();
+						sketch.offerHashed(v);
+					}
+				}
+				return sketch;
+			}
+			if (r.type() != DistinctPartialCodec.TYPE_HLL) {
+				throw new HiveException(
+						"Expected a HyperLogLog++ sketch but got type "
+								+ r.type());
+			}
+			raw = r.readBytes();
+		} else {
+			raw = bytes.copyBytes();
+		}
+		try {
+			return new HLLSketch(HyperLogLogPlus.Builder.build(raw),
+					precisionOf(raw));
+		} catch (IOException e) {
+			throw new HiveException("Failed to parse HyperLogLog++ sketch. ",
+					e);
+		}
+	}
+
+	/**
+	 * stream-lib does not expose p: its current format starts with the int
+	 * -2 followed by p as a varint, the legacy one with p as an int.
+	 */
+	private static int precisionOf(byte[] raw) throws HiveException {
+		if (raw.length < 5) {
+			throw new HiveException("Truncated HyperLogLog++ sketch");
+		}
+		int first = ((raw[0] & 0xFF) << 24) | ((raw[1] & 0xFF) << 16)
+				| ((raw[2] & 0xFF) << 8) | (raw[3] & 0xFF);
+		return first < 0 ? raw[4] & 0x7F : first;
+	}
+}
@@ -0,0 +1,61 @@
+package com.wandisco.hive.udaf;
+
+import com.clearspring.analytics.stream.cardinality.LinearCounting;
+
+/**
+ * {@link LinearCounting} that takes precomputed hashes, which stream-lib
+ * 2.5.0 does not implement, and merges in place so the buffer keeps this
+ * type. Serialised form is unchanged.
+ */
+public final class HashedLinearCounting extends LinearCounting {
+
+	public HashedLinearCounting(int size) {
+		super(size);
+	}
+
+	public HashedLinearCounting(byte[] map) {
+		super(map);
+	}
+
+	/**
+	 * Sets the bit for the low 32 bits of {@code hash}, the same bit
+	 * {@link LinearCounting#offer(Object)} uses for a 32 bit hash.
+	 */
+	@Override
+	public boolean offerHashed(long hash) {
+		int bit = (int) ((hash & 0xFFFFFFFFL) % length);
+		int i = bit >>> 3;
+		byte b = map[i];
+		byte mask = (byte) (1 << (bit & 7));
+		if ((b & mask) != 0) {
+			return false;
+		}
+		map[i] = (byte) (b | mask);
+		count--;
+		return true;
+	}
+
+	@Override
+	public boolean offerHashed(int hash) {
+		return offerHashed((long) hash);
+	}
+
+	/**
+	 * ORs {@code that} into this bitmap.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the sizes differ
+	 */
+	public void addAll(LinearCounting that) {
+		byte[] other = that.getBytes();
+		if (other.length != map.length) {
+			throw new IllegalArgumentException(
+					"Cannot merge Linear Counting estimators of " + length
+							+ " and " + other.length * 8 + " bits");
+		}
+		for (int i = 0; i < map.length; i++) {
+			map[i] |= other[i];
+		}
+		count = computeCount();
+	}
+}
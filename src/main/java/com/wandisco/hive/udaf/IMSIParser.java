@@ -0,0 +1,133 @@
+package com.wandisco.hive.udaf;
+
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Packs an IMSI into a long in one pass over its UTF-8 bytes: the digits
+ * times 100, plus 10-35 for a trailing letter suffix ('a'/'A' is 10). Values
+ * shorter than 10 bytes pack to -1, and values whose digits do not
+ * parse pack to just the suffix.
+ * <p>
+ * Rejected values are counted in {@link Counter} on the task's reporter
+ * rather than logged. Hive sets the reporter on the context after the UDFs
+ * are configured, so it is looked up when a value is first rejected.
+ * Instances keep state between calls and are not thread safe; use one per
+ * evaluator.
+ * </p>
+ */
+public final class IMSIParser {
+
+	public static final int MIN_LENGTH = 10;
+
+	private static final long MALFORMED = Long.MIN_VALUE;
+
+	public enum Counter {
+		SHORT_IMSI, MALFORMED_IMSI
+	}
+
+	private StringObjectInspector stringOI;
+	private PrimitiveObjectInspector otherOI;
+	private final Text text = new Text();
+	private MapredContext context;
+	private Reporter reporter;
+
+	/**
+	 * Reads values through {@code oi}; string columns are read as their
+	 * {@link Text} without a copy.
+	 */
+	public IMSIParser(PrimitiveObjectInspector oi) {
+		if (oi instanceof StringObjectInspector) {
+			stringOI = (StringObjectInspector) oi;
+		} else {
+			otherOI = oi;
+		}
+	}
+
+	public void setContext(MapredContext context) {
+		this.context = context;
+		this.reporter = null;
+	}
+
+	public long parse(Object o) {
+		Text t;
+		if (stringOI != null) {
+			t = stringOI.getPrimitiveWritableObject(o);
+		} else {
+			text.set(PrimitiveObjectInspectorUtils.getString(o, otherOI));
+			t = text;
+		}
+		return parse(t.getBytes(), 0, t.getLength());
+	}
+
+	public long parse(byte[] bytes, int start, int length) {
+		if (length < MIN_LENGTH) {
+			count(Counter.SHORT_IMSI);
+			return -1;
+		}
+		int end = start + length;
+		int last = bytes[end - 1] | 0x20;
+		long suffix = 0;
+		if (last >= 'a' && last <= 'z') {
+			suffix = last - 'a' + 10;
+			end--;
+		}
+		long num = parseDigits(bytes, start, end);
+		if (num == MALFORMED) {
+			count(Counter.MALFORMED_IMSI);
+			num = 0;
+		}
+		return num * 100 + suffix;
+	}
+
+	/**
+	 * Same accepted syntax as {@link Long#parseLong(String)}, accumulating
+	 * negatively so that the full range fits. Long.MIN_VALUE itself comes back
+	 * as malformed, it overflowed on the multiply before anyway.
+	 *
+	 * @return the value, or {@link #MALFORMED} if the bytes do not parse
+	 */
+	private static long parseDigits(byte[] bytes, int i, int end) {
+		boolean negative = false;
+		long limit = -Long.MAX_VALUE;
+		byte first = bytes[i];
+		if (first < '0') {
+			if (first == '-') {
+				negative = true;
+				limit = Long.MIN_VALUE + 1;
+			} else if (first != '+') {
+				return MALFORMED;
+			}
+			if (++i == end) {
+				return MALFORMED;
+			}
+		}
+		long multmin = limit / 10;
+		long result = 0;
+		while (i < end) {
+			int digit = bytes[i++] - '0';
+			if (digit < 0 || digit > 9 || result < multmin) {
+				return MALFORMED;
+			}
+			result *= 10;
+			if (result < limit + digit) {
+				return MALFORMED;
+			}
+			result -= digit;
+		}
+		return negative ? result : -result;
+	}
+
+	private void count(Counter counter) {
+		if (reporter == null && context != null) {
+			reporter = context.getReporter();
+		}
+		if (reporter != null) {
+			reporter.incrCounter(counter, 1);
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package com.wandisco.hive.udaf;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.util.Arrays;
+
+/**
+ * K Minimum Values sketch: keeps the k smallest distinct 64 bit hashes seen
+ * and estimates the cardinality from how closely they are packed, (k - 1) /
+ * U(k) where U(k) is the k-th smallest hash scaled to [0, 1). Below k
+ * distinct values the count is exact (up to hash collisions).
+ * <p>
+ * Unlike HyperLogLog the retained hashes are a uniform sample of the set, so
+ * two sketches also estimate their intersection and differences, see
+ * {@link #jaccard}.
+ * </p>
+ * <p>
+ * Hashes are kept shifted right by one so that they sort as signed longs.
+ * New hashes below the current k-th smallest are appended to a buffer of up
+ * to 2k values, which is sorted and cut back to the k smallest distinct ones
+ * when it fills.
+ * </p>
+ */
+public final class KMVSketch {
+
+	public static final int DEFAULT_K = 4096;
+	public static final int MIN_K = 16;
+	public static final int MAX_K = 1 << 20;
+
+	private static final int INITIAL_CAPACITY = 16;
+	private static final double TWO_63 = 9.223372036854775808E18;
+
+	private int k;
+	// values[0, sorted) are ascending and distinct, values[sorted, size) are
+	// pending
+	private long[] values;
+	private int size;
+	private int sorted;
+	// the k-th smallest hash once there are k, nothing at or above it is kept
+	private long threshold = Long.MAX_VALUE;
+
+	public KMVSketch(int k) {
+		this(k, new long[Math.min(2 * k, INITIAL_CAPACITY)], 0);
+	}
+
+	private KMVSketch(int k, long[] values, int size) {
+		this.k = k;
+		this.values = values;
+		this.size = size;
+		this.sorted = size;
+		if (size == k) {
+			threshold = values[k - 1];
+		}
+	}
+
+	/**
+	 * @param hash
+	 *            64 bit hash of the value, see {@link SketchHasher}
+	 */
+	public void offerHashed(long hash) {
+		long v = hash >>> 1;
+		if (v >= threshold) {
+			return;
+		}
+		if (size == values.length) {
+			compact();
+			if (size >= values.length / 2 && values.length < 2 * k) {
+				values = Arrays.copyOf(values,
+						Math.min(2 * k, 2 * values.length));
+			}
+		}
+		values[size++] = v;
+	}
+
+	private void compact() {
+		if (sorted == size) {
+			return;
+		}
+		Arrays.sort(values, 0, size);
+		int n = 0;
+		for (int i = 0; i < size && n < k; i++) {
+			if (n == 0 || values[i] != values[n - 1]) {
+				values[n++] = values[i];
+			}
+		}
+		size = n;
+		sorted = n;
+		if (n == k) {
+			threshold = values[k - 1];
+		}
+	}
+
+	public int k() {
+		return k;
+	}
+
+	/**
+	 * @return true while fewer than k distinct values have been seen, so
+	 *         {@link #cardinality()} is exact
+	 */
+	public boolean isExact() {
+		compact();
+		return size < k;
+	}
+
+	public long cardinality() {
+		return Math.round(estimate());
+	}
+
+	public double estimate() {
+		compact();
+		if (size < k) {
+			return size;
+		}
+		return (k - 1) * TWO_63 / values[k - 1];
+	}
+
+	/**
+	 * Merges {@code that} into this sketch. Sketches of different k merge to
+	 * the smaller k.
+	 */
+	public void addAll(KMVSketch that) {
+		compact();
+		that.compact();
+		int mergedK = Math.min(k, that.k);
+		long[] merged = new long[Math.min(2 * mergedK,
+				Math.max(INITIAL_CAPACITY, size + that.size))];
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		while (n < mergedK && (i < size || j < that.size)) {
+			long v;
+			if (j == that.size
+					|| (i < size && values[i] <= that.values[j])) {
+				v = values[i++];
+				if (j < that.size && that.values[j] == v) {
+					j++;
+				}
+			} else {
+				v = that.values[j++];
+			}
+			merged[n++] = v;
+		}
+		k = mergedK;
+		values = merged;
+		size = n;
+		sorted = n;
+		threshold = n == k ? merged[k - 1] : Long.MAX_VALUE;
+	}
+
+	private boolean contains(long v) {
+		return Arrays.binarySearch(values, 0, size, v) >= 0;
+	}
+
+	/**
+	 * Estimated Jaccard similarity |A & B| / |A | B|: the share of the k
+	 * smallest hashes of the union that are in both sketches. Exact while the
+	 * union is.
+	 */
+	public static double jaccard(KMVSketch a, KMVSketch b) {
+		KMVSketch union = union(a, b);
+		if (union.size == 0) {
+			return 0;
+		}
+		return (double) countIn(union, a, b, true) / union.size;
+	}
+
+	/**
+	 * Estimated |A & B|.
+	 */
+	public static double intersection(KMVSketch a, KMVSketch b) {
+		KMVSketch union = union(a, b);
+		if (union.size == 0) {
+			return 0;
+		}
+		return union.estimate() * countIn(union, a, b, true) / union.size;
+	}
+
+	/**
+	 * Estimated |A - B|, the values of a that are not in b.
+	 */
+	public static double difference(KMVSketch a, KMVSketch b) {
+		KMVSketch union = union(a, b);
+		if (union.size == 0) {
+			return 0;
+		}
+		return union.estimate() * countIn(union, a, b, false) / union.size;
+	}
+
+	public static KMVSketch union(KMVSketch a, KMVSketch b) {
+		KMVSketch union = new KMVSketch(a.k);
+		union.addAll(a);
+		union.addAll(b);
+		return union;
+	}
+
+	/**
+	 * Counts the union's hashes that are in a and, depending on
+	 * {@code inB}, in b or not in b. Both sketches hold every hash below
+	 * the union's k-th smallest, so membership is exact.
+	 */
+	private static int countIn(KMVSketch union, KMVSketch a, KMVSketch b,
+			boolean inB) {
+		int count = 0;
+		for (int i = 0; i < union.size; i++) {
+			long v = union.values[i];
+			if (a.contains(v) && b.contains(v) == inB) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Approximate heap footprint in bytes.
+	 */
+	public int sizeof() {
+		return 8 * values.length + 40;
+	}
+
+	/**
+	 * Written as {@link DistinctPartialCodec#TYPE_KMV}: k as an int, then the
+	 * ascending hashes as a first value and varint gaps.
+	 */
+	public BytesWritable serialize() {
+		compact();
+		DistinctPartialCodec.Writer w = new DistinctPartialCodec.Writer(
+				DistinctPartialCodec.TYPE_KMV, size, 12L + 2L * size);
+		w.putInt(k);
+		if (size > 0) {
+			w.putLong(values[0]);
+			for (int i = 1; i < size; i++) {
+				w.putVarLong(values[i] - values[i - 1]);
+			}
+		}
+		return w.toBytesWritable();
+	}
+
+	public static KMVSketch deserialize(BytesWritable bytes)
+			throws HiveException {
+		DistinctPartialCodec.Reader r = DistinctPartialCodec.reader(bytes);
+		if (r.type() != DistinctPartialCodec.TYPE_KMV) {
+			throw new HiveException("Expected a KMV sketch but got type "
+					+ r.type());
+		}
+		int n = r.count();
+		r.require(4);
+		int k = r.getInt();
+		if (k < MIN_K || k > MAX_K || n > k) {
+			throw new HiveException("Corrupt KMV sketch: k=" + k + ", " + n
+					+ " values");
+		}
+		long[] values = new long[Math.min(2 * k,
+				Math.max(INITIAL_CAPACITY, 2 * n))];
+		if (n > 0) {
+			r.require(8);
+			long v = r.getLong();
+			values[0] = v;
+			for (int i = 1; i < n; i++) {
+				v += r.getVarLong();
+				values[i] = v;
+			}
+		}
+		return new KMVSketch(k, values, n);
+	}
+}
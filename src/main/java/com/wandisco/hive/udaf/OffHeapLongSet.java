@@ -0,0 +1,356 @@
+package com.wandisco.hive.udaf;
+
+import gnu.trove.procedure.TIntProcedure;
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Open addressing set of longs kept outside the Java heap, for groups of the
+ * exact distinct counters that grow too large for a heap hash set, see
+ * {@link DistinctConf#OFFHEAP_THRESHOLD}.
+ * <p>
+ * The table is linearly probed and split into pages of up to 16M slots. It
+ * lives in direct buffers until it would grow past the spill size, after
+ * which each new table is memory mapped from a local temp file, so the page
+ * cache rather than the task's memory limit holds it. The temp file is
+ * unlinked as soon as it is mapped. Memory is given back in
+ * {@link #release()} rather than left to the garbage collector, which only
+ * sees the small buffer objects.
+ * </p>
+ * <p>
+ * 0 marks an empty slot, so 0 itself is tracked with a flag.
+ * </p>
+ */
+public final class OffHeapLongSet {
+	static final Log LOG = LogFactory.getLog(OffHeapLongSet.class.getName());
+
+	private static final int PAGE_SHIFT = 24;
+	private static final long MIN_CAPACITY = 1 << 16;
+	private static final long MAX_CAPACITY = 1L << 36;
+	private static final double LOAD_FACTOR = 0.7;
+
+	// set once the JVM has refused to hand out a buffer's cleaner
+	private static final AtomicBoolean NO_CLEANER = new AtomicBoolean();
+
+	private final long spillBytes;
+
+	private ByteBuffer[] pages;
+	private int pageShift;
+	private long pageMask;
+	private long mask;
+	private long resizeAt;
+	private boolean mapped;
+
+	private long size;
+	private boolean containsZero;
+
+	/**
+	 * @param expected
+	 *            number of values to size the first table for
+	 * @param spillBytes
+	 *            table size in bytes above which it is mapped from a temp
+	 *            file
+	 */
+	public OffHeapLongSet(long expected, long spillBytes) {
+		this.spillBytes = spillBytes;
+		long capacity = MIN_CAPACITY;
+		while (capacity * LOAD_FACTOR < expected && capacity < MAX_CAPACITY) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	private void allocate(long capacity) {
+		pageShift = Math.min(PAGE_SHIFT, Long.numberOfTrailingZeros(capacity));
+		pageMask = (1L << pageShift) - 1;
+		int pageBytes = 8 << pageShift;
+		int n = (int) (capacity >>> pageShift);
+		mapped = 8 * capacity > spillBytes;
+		pages = mapped ? map(n, pageBytes) : new ByteBuffer[n];
+		if (!mapped) {
+			for (int i = 0; i < n; i++) {
+				pages[i] = ByteBuffer.allocateDirect(pageBytes).order(
+						ByteOrder.nativeOrder());
+			}
+		}
+		mask = capacity - 1;
+		resizeAt = (long) (capacity * LOAD_FACTOR);
+	}
+
+	private static ByteBuffer[] map(int n, int pageBytes) {
+		File file = null;
+		RandomAccessFile raf = null;
+		try {
+			file = File.createTempFile("distinct-", ".offheap");
+			raf = new RandomAccessFile(file, "rw");
+			FileChannel channel = raf.getChannel();
+			ByteBuffer[] pages = new ByteBuffer[n];
+			for (int i = 0; i < n; i++) {
+				// mapping past the end grows the file with zeros
+				pages[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+						(long) i * pageBytes, pageBytes).order(
+						ByteOrder.nativeOrder());
+			}
+			LOG.info("Mapped " + (long) n * pageBytes
+					+ " byte distinct set from " + file);
+			return pages;
+		} catch (IOException e) {
+			throw new IllegalStateException(
+					"Could not map off-heap distinct set from " + file, e);
+		} finally {
+			// the mappings stay valid once the file is closed and unlinked
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					LOG.warn("Could not close " + file, e);
+				}
+			}
+			if (file != null && !file.delete()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	private long get(long slot) {
+		return pages[(int) (slot >>> pageShift)].getLong((int) (slot & pageMask) << 3);
+	}
+
+	private void put(long slot, long value) {
+		pages[(int) (slot >>> pageShift)].putLong((int) (slot & pageMask) << 3,
+				value);
+	}
+
+	/**
+	 * @return true if the value was not in the set
+	 */
+	public boolean add(long value) {
+		if (value == 0) {
+			if (containsZero) {
+				return false;
+			}
+			containsZero = true;
+			size++;
+			return true;
+		}
+		long slot = Murmur3.fmix64(value) & mask;
+		while (true) {
+			long v = get(slot);
+			if (v == value) {
+				return false;
+			}
+			if (v == 0) {
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		put(slot, value);
+		if (++size > resizeAt) {
+			grow();
+		}
+		return true;
+	}
+
+	private void grow() {
+		long capacity = mask + 1;
+		if (capacity >= MAX_CAPACITY) {
+			throw new IllegalStateException("Off-heap distinct set is full at "
+					+ size + " values");
+		}
+		ByteBuffer[] old = pages;
+		long oldMask = mask;
+		int oldShift = pageShift;
+		long oldPageMask = pageMask;
+		allocate(capacity << 1);
+		for (long slot = 0; slot <= oldMask; slot++) {
+			long value = old[(int) (slot >>> oldShift)]
+					.getLong((int) (slot & oldPageMask) << 3);
+			if (value != 0) {
+				long s = Murmur3.fmix64(value) & mask;
+				while (get(s) != 0) {
+					s = (s + 1) & mask;
+				}
+				put(s, value);
+			}
+		}
+		free(old);
+	}
+
+	public void addAll(TLongHashSet set) {
+		set.forEach(new TLongProcedure() {
+			@Override
+			public boolean execute(long value) {
+				add(value);
+				return true;
+			}
+		});
+	}
+
+	public void addAll(TIntHashSet set) {
+		set.forEach(new TIntProcedure() {
+			@Override
+			public boolean execute(int value) {
+				add(value);
+				return true;
+			}
+		});
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return true once the table is mapped from a temp file
+	 */
+	public boolean isSpilled() {
+		return mapped;
+	}
+
+	/**
+	 * Visits every value once, in no particular order.
+	 */
+	public boolean forEach(TLongProcedure procedure) {
+		if (containsZero && !procedure.execute(0)) {
+			return false;
+		}
+		for (long slot = 0; slot <= mask; slot++) {
+			long v = get(slot);
+			if (v != 0 && !procedure.execute(v)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the values onto the heap, in no particular order.
+	 */
+	public long[] toArray() {
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new IllegalStateException(size
+					+ " distinct values do not fit in an array");
+		}
+		final long[] values = new long[(int) size];
+		forEach(new TLongProcedure() {
+			int n;
+
+			@Override
+			public boolean execute(long value) {
+				values[n++] = value;
+				return true;
+			}
+		});
+		return values;
+	}
+
+	/**
+	 * Frees the table. The set must not be used afterwards; releasing twice
+	 * is harmless.
+	 */
+	public void release() {
+		if (pages != null) {
+			free(pages);
+			pages = null;
+			size = 0;
+			containsZero = false;
+		}
+	}
+
+	private static void free(ByteBuffer[] buffers) {
+		for (int i = 0; i < buffers.length; i++) {
+			free(buffers[i]);
+			buffers[i] = null;
+		}
+	}
+
+	/**
+	 * Unmaps or frees a direct buffer through its cleaner. Where the JVM
+	 * hides the cleaner (Java 9 on, unless java.nio is opened to this code)
+	 * the memory is left to the garbage collector, which is logged once and
+	 * not tried again.
+	 */
+	private static void free(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect() || NO_CLEANER.get()) {
+			return;
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				Method clean = cleaner.getClass().getMethod("clean");
+				clean.setAccessible(true);
+				clean.invoke(cleaner);
+			}
+		} catch (Exception e) {
+			if (NO_CLEANER.compareAndSet(false, true)) {
+				LOG.warn("Cannot free direct buffers on this JVM, off-heap"
+						+ " distinct sets are left to the garbage collector: "
+						+ e);
+			}
+		}
+	}
+
+	/**
+	 * Off-heap sets handed out by one evaluator, so that {@code close()} can
+	 * release those of groups Hive dropped without a {@code reset}.
+	 */
+	public static final class Pool {
+		private final long threshold;
+		private final long spillBytes;
+		private final List<OffHeapLongSet> live = new ArrayList<OffHeapLongSet>();
+
+		/**
+		 * @param threshold
+		 *            heap set size at which a group moves off heap, 0 to
+		 *            never move
+		 * @param spillBytes
+		 *            see {@link OffHeapLongSet#OffHeapLongSet(long, long)}
+		 */
+		public Pool(long threshold, long spillBytes) {
+			this.threshold = threshold;
+			this.spillBytes = spillBytes;
+		}
+
+		/**
+		 * @return true if a group holding {@code heapSize} values on the heap
+		 *         should move off heap
+		 */
+		public boolean isHot(int heapSize) {
+			return threshold > 0 && heapSize >= threshold;
+		}
+
+		public OffHeapLongSet allocate(long expected) {
+			OffHeapLongSet set = new OffHeapLongSet(expected, spillBytes);
+			live.add(set);
+			return set;
+		}
+
+		public void release(OffHeapLongSet set) {
+			set.release();
+			live.remove(set);
+		}
+
+		public void releaseAll() {
+			for (OffHeapLongSet set : live) {
+				set.release();
+			}
+			live.clear();
+		}
+	}
+}
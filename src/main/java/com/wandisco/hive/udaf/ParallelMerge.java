@@ -0,0 +1,353 @@
+package com.wandisco.hive.udaf;
+
+import gnu.trove.procedure.TDoubleProcedure;
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.set.hash.THashSet;
+import gnu.trove.set.hash.TDoubleHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Merges partials into a group on several threads, see
+ * {@link DistinctConf#MERGE_THREADS}.
+ * <p>
+ * A group merged this way keeps its values in one sub-set per thread, picked
+ * by a hash of the value, so no two sub-sets share a value and the distinct
+ * count is the sum of their sizes. Each partial is decoded on the calling
+ * thread into a batch of values per sub-set, and the batches are then added
+ * on a fork-join pool, one task per sub-set, so no set is ever shared
+ * between threads. Batches are flushed every {@link #BATCH} values, which
+ * bounds the extra memory whatever the size of the partial. Partials smaller
+ * than {@link #MIN_PARALLEL} values are added directly.
+ * </p>
+ */
+public final class ParallelMerge {
+
+	static final int BATCH = 1 << 20;
+	static final int MIN_PARALLEL = 1 << 14;
+
+	private final int threads;
+	private ForkJoinPool pool;
+
+	/**
+	 * @param threads
+	 *            number of sub-sets and pool threads, merging is serial below
+	 *            2
+	 */
+	public ParallelMerge(int threads) {
+		this.threads = threads;
+	}
+
+	public boolean isEnabled() {
+		return threads > 1;
+	}
+
+	private synchronized ForkJoinPool pool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
+	}
+
+	/**
+	 * Stops the pool threads, a later merge starts new ones.
+	 */
+	public synchronized void close() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
+
+	static int partition(long hash, int n) {
+		// maps the high 32 bits of the mixed hash onto 0..n-1
+		return (int) (((Murmur3.fmix64(hash) >>> 32) * n) >>> 32);
+	}
+
+	private void run(final List<RecursiveAction> tasks) {
+		if (tasks.isEmpty()) {
+			return;
+		}
+		pool().invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+	}
+
+	/**
+	 * @return new sub-sets holding the values of {@code seed}
+	 */
+	public TLongHashSet[] split(TLongHashSet seed) {
+		final TLongHashSet[] sets = new TLongHashSet[threads];
+		for (int i = 0; i < threads; i++) {
+			sets[i] = new TLongHashSet();
+		}
+		seed.forEach(new TLongProcedure() {
+			@Override
+			public boolean execute(long value) {
+				sets[partition(value, threads)].add(value);
+				return true;
+			}
+		});
+		return sets;
+	}
+
+	public void addAll(DistinctPartialCodec.Reader reader,
+			final TLongHashSet[] sets) throws HiveException {
+		final int n = sets.length;
+		if (reader.count() < MIN_PARALLEL) {
+			reader.forEachLong(new TLongProcedure() {
+				@Override
+				public boolean execute(long value) {
+					sets[partition(value, n)].add(value);
+					return true;
+				}
+			});
+			return;
+		}
+		final long[][] batches = new long[n][];
+		final int[] sizes = new int[n];
+		for (int i = 0; i < n; i++) {
+			batches[i] = new long[Math.min(reader.count(), BATCH) / n + 16];
+		}
+		reader.forEachLong(new TLongProcedure() {
+			int buffered;
+
+			@Override
+			public boolean execute(long value) {
+				int p = partition(value, n);
+				if (sizes[p] == batches[p].length) {
+					batches[p] = Arrays.copyOf(batches[p], sizes[p] << 1);
+				}
+				batches[p][sizes[p]++] = value;
+				if (++buffered == BATCH) {
+					flush(sets, batches, sizes);
+					buffered = 0;
+				}
+				return true;
+			}
+		});
+		flush(sets, batches, sizes);
+	}
+
+	private void flush(final TLongHashSet[] sets, final long[][] batches,
+			final int[] sizes) {
+		List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (int i = 0; i < sets.length; i++) {
+			if (sizes[i] == 0) {
+				continue;
+			}
+			final int p = i;
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					TLongHashSet set = sets[p];
+					long[] batch = batches[p];
+					int size = sizes[p];
+					set.ensureCapacity(set.size() + size);
+					for (int j = 0; j < size; j++) {
+						set.add(batch[j]);
+					}
+				}
+			});
+		}
+		run(tasks);
+		Arrays.fill(sizes, 0);
+	}
+
+	/**
+	 * @return new sub-sets holding the values of {@code seed}
+	 */
+	public TDoubleHashSet[] split(TDoubleHashSet seed) {
+		final TDoubleHashSet[] sets = new TDoubleHashSet[threads];
+		for (int i = 0; i < threads; i++) {
+			sets[i] = new TDoubleHashSet();
+		}
+		seed.forEach(new TDoubleProcedure() {
+			@Override
+			public boolean execute(double value) {
+				sets[partition(Double.doubleToLongBits(value), threads)]
+						.add(value);
+				return true;
+			}
+		});
+		return sets;
+	}
+
+	public void addAll(DistinctPartialCodec.Reader reader,
+			final TDoubleHashSet[] sets) throws HiveException {
+		final int n = sets.length;
+		if (reader.count() < MIN_PARALLEL) {
+			reader.forEachDouble(new TDoubleProcedure() {
+				@Override
+				public boolean execute(double value) {
+					sets[partition(Double.doubleToLongBits(value), n)]
+							.add(value);
+					return true;
+				}
+			});
+			return;
+		}
+		final double[][] batches = new double[n][];
+		final int[] sizes = new int[n];
+		for (int i = 0; i < n; i++) {
+			batches[i] = new double[Math.min(reader.count(), BATCH) / n + 16];
+		}
+		reader.forEachDouble(new TDoubleProcedure() {
+			int buffered;
+
+			@Override
+			public boolean execute(double value) {
+				int p = partition(Double.doubleToLongBits(value), n);
+				if (sizes[p] == batches[p].length) {
+					batches[p] = Arrays.copyOf(batches[p], sizes[p] << 1);
+				}
+				batches[p][sizes[p]++] = value;
+				if (++buffered == BATCH) {
+					flush(sets, batches, sizes);
+					buffered = 0;
+				}
+				return true;
+			}
+		});
+		flush(sets, batches, sizes);
+	}
+
+	private void flush(final TDoubleHashSet[] sets,
+			final double[][] batches, final int[] sizes) {
+		List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (int i = 0; i < sets.length; i++) {
+			if (sizes[i] == 0) {
+				continue;
+			}
+			final int p = i;
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					TDoubleHashSet set = sets[p];
+					double[] batch = batches[p];
+					int size = sizes[p];
+					set.ensureCapacity(set.size() + size);
+					for (int j = 0; j < size; j++) {
+						set.add(batch[j]);
+					}
+				}
+			});
+		}
+		run(tasks);
+		Arrays.fill(sizes, 0);
+	}
+
+	/**
+	 * @return new sub-sets holding the values of {@code seed}
+	 */
+	@SuppressWarnings("unchecked")
+	public THashSet<Object>[] split(THashSet<Object> seed) {
+		THashSet<Object>[] sets = new THashSet[threads];
+		for (int i = 0; i < threads; i++) {
+			sets[i] = new THashSet<Object>();
+		}
+		for (Object value : seed) {
+			sets[partition(value.hashCode(), threads)].add(value);
+		}
+		return sets;
+	}
+
+	/**
+	 * Decodes the whole partial before adding it, the values of the generic
+	 * counter can only be read in one go.
+	 */
+	@SuppressWarnings("unchecked")
+	public void addAll(DistinctPartialCodec.Reader reader,
+			final THashSet<Object>[] sets) throws HiveException {
+		int n = sets.length;
+		List<Object> values = new ArrayList<Object>(reader.count());
+		reader.readInto(values);
+		if (values.size() < MIN_PARALLEL) {
+			for (Object value : values) {
+				sets[partition(value.hashCode(), n)].add(value);
+			}
+			return;
+		}
+		final List<Object>[] batches = new List[n];
+		for (int i = 0; i < n; i++) {
+			batches[i] = new ArrayList<Object>(values.size() / n + 16);
+		}
+		for (Object value : values) {
+			batches[partition(value.hashCode(), n)].add(value);
+		}
+		values = null;
+		List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+		for (int i = 0; i < n; i++) {
+			final int p = i;
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					sets[p].ensureCapacity(sets[p].size() + batches[p].size());
+					sets[p].addAll(batches[p]);
+				}
+			});
+		}
+		run(tasks);
+	}
+
+	public static long size(TLongHashSet[] sets) {
+		long size = 0;
+		for (int i = 0; i < sets.length; i++) {
+			size += sets[i].size();
+		}
+		return size;
+	}
+
+	public static long size(TDoubleHashSet[] sets) {
+		long size = 0;
+		for (int i = 0; i < sets.length; i++) {
+			size += sets[i].size();
+		}
+		return size;
+	}
+
+	public static long size(THashSet<?>[] sets) {
+		long size = 0;
+		for (int i = 0; i < sets.length; i++) {
+			size += sets[i].size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return the summed hash table capacities, for the buffers'
+	 *         {@code estimate()}
+	 */
+	public static long capacity(TLongHashSet[] sets) {
+		long capacity = 0;
+		for (int i = 0; i < sets.length; i++) {
+			capacity += sets[i].capacity();
+		}
+		return capacity;
+	}
+
+	public static long capacity(TDoubleHashSet[] sets) {
+		long capacity = 0;
+		for (int i = 0; i < sets.length; i++) {
+			capacity += sets[i].capacity();
+		}
+		return capacity;
+	}
+
+	public static long capacity(THashSet<?>[] sets) {
+		long capacity = 0;
+		for (int i = 0; i < sets.length; i++) {
+			capacity += sets[i].capacity();
+		}
+		return capacity;
+	}
+}
@@ -0,0 +1,330 @@
+package com.wandisco.hive.udaf;
+
+import gnu.trove.procedure.TIntProcedure;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.util.Arrays;
+
+/**
+ * A bitmap over the full 64 bit range: values are split into the high 32
+ * bits, used as a sorted bucket key, and the low 32 bits, set in the bucket's
+ * own bitmap. A bucket only holds the words between its lowest and highest
+ * value, so a dense ID range costs one bit per possible value wherever it
+ * sits in the long range, like a {@link java.util.BitSet} does below
+ * 2^31. Values spread thinly over a bucket cost up to 512MB for it, such
+ * sets belong in a {@link RoaringLongBitmap}.
+ * <p>
+ * The serialised form is a {@link DistinctPartialCodec} partial of type
+ * {@link DistinctPartialCodec#TYPE_PARTITIONED_BITSET}. Each bucket is
+ * written as its words while that costs at most
+ * {@link DistinctPartialCodec#DENSE_BITS_PER_VALUE} bits per value, and as
+ * its sorted values packed with FastPFOR otherwise.
+ * {@link #or(DistinctPartialCodec.Reader)} merges the buckets one by one into
+ * the existing ones.
+ * </p>
+ */
+public final class PartitionedBitSet {
+
+	private final int initialBits;
+
+	private int[] keys = new int[4];
+	private Bucket[] buckets = new Bucket[4];
+	private int size;
+	private long cardinality;
+	// the last bucket touched, rows for a group tend to cluster
+	private Bucket last;
+
+	public PartitionedBitSet() {
+		this(0);
+	}
+
+	/**
+	 * @param initialBits
+	 *            number of bits to size the first words of a bucket for
+	 */
+	public PartitionedBitSet(int initialBits) {
+		this.initialBits = Math.max(64, initialBits);
+	}
+
+	public void add(long value) {
+		int key = (int) (value >>> 32);
+		Bucket b = last;
+		if (b == null || b.key != key) {
+			// grows the arrays, so index them after the call
+			int i = bucketIndex(key);
+			b = buckets[i];
+			last = b;
+		}
+		if (b.set((int) value)) {
+			cardinality++;
+		}
+	}
+
+	public long cardinality() {
+		return cardinality;
+	}
+
+	public void clear() {
+		Arrays.fill(buckets, 0, size, null);
+		size = 0;
+		cardinality = 0;
+		last = null;
+	}
+
+	/**
+	 * Finds the bucket for a key, inserting an empty one if absent.
+	 */
+	private int bucketIndex(int key) {
+		int i = Arrays.binarySearch(keys, 0, size, key);
+		if (i >= 0) {
+			return i;
+		}
+		i = -i - 1;
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size << 1);
+			buckets = Arrays.copyOf(buckets, size << 1);
+		}
+		System.arraycopy(keys, i, keys, i + 1, size - i);
+		System.arraycopy(buckets, i, buckets, i + 1, size - i);
+		keys[i] = key;
+		buckets[i] = new Bucket(key, initialBits);
+		size++;
+		return i;
+	}
+
+	/**
+	 * Serialises the buckets, recording the base the values are relative to.
+	 */
+	public BytesWritable serialize(long base) {
+		long hint = 8L;
+		for (int i = 0; i < size; i++) {
+			hint += 17L + Math.min(8L * buckets[i].span(),
+					2L * buckets[i].card);
+		}
+		DistinctPartialCodec.Writer w = new DistinctPartialCodec.Writer(
+				DistinctPartialCodec.TYPE_PARTITIONED_BITSET, size, hint);
+		w.putLong(base);
+		for (int i = 0; i < size; i++) {
+			buckets[i].write(w);
+		}
+		return w.toBytesWritable();
+	}
+
+	/**
+	 * ORs a serialised bitmap into this one, bucket by bucket. The caller
+	 * checks the partial's base.
+	 */
+	public void or(DistinctPartialCodec.Reader r) throws HiveException {
+		if (r.type() != DistinctPartialCodec.TYPE_PARTITIONED_BITSET) {
+			throw new HiveException(
+					"Expected a partitioned bitset partial but got type "
+							+ r.type());
+		}
+		int n = r.count();
+		for (int k = 0; k < n; k++) {
+			r.require(9);
+			int key = r.getInt();
+			int card = r.getInt();
+			byte layout = (byte) r.getByte();
+			int i = bucketIndex(key);
+			final Bucket b = buckets[i];
+			long before = b.card;
+			switch (layout) {
+			case DistinctPartialCodec.RANGE_BITMAP:
+				r.require(8);
+				int first = r.getInt();
+				int words = r.getInt();
+				if (words < 0 || first + (long) words > Bucket.MAX_WORDS) {
+					throw new HiveException("Corrupt bitset bucket of "
+							+ words + " words from " + first);
+				}
+				r.require(8L * words);
+				b.or(r, first, words);
+				break;
+			case DistinctPartialCodec.RANGE_SORTED:
+				if (card < 0) {
+					throw new HiveException("Corrupt bitset bucket of " + card
+							+ " values");
+				}
+				r.forEachPForInt(card, new TIntProcedure() {
+					@Override
+					public boolean execute(int value) {
+						b.set(value);
+						return true;
+					}
+				});
+				break;
+			default:
+				throw new HiveException("Unknown bitset bucket layout "
+						+ layout);
+			}
+			cardinality += b.card - before;
+		}
+		last = null;
+	}
+
+	/**
+	 * Approximate heap footprint in bytes.
+	 */
+	public long sizeInBytes() {
+		long bytes = 12L * keys.length;
+		for (int i = 0; i < size; i++) {
+			bytes += 32 + 8L * buckets[i].words.length;
+		}
+		return bytes;
+	}
+
+	/**
+	 * The bits of one value of the high 32 bits, indexed by the unsigned low
+	 * 32 bits. words[0] holds the bits from {@code first << 6}.
+	 */
+	static final class Bucket {
+		static final long MAX_WORDS = 1L << 26;
+
+		final int key;
+		int first;
+		long[] words;
+		long card;
+
+		Bucket(int key, int initialBits) {
+			this.key = key;
+			this.words = new long[(initialBits + 63) >>> 6];
+			this.first = -1;
+		}
+
+		/**
+		 * @return true if the bit was not set
+		 */
+		boolean set(int low) {
+			int w = low >>> 6;
+			int i = w - first;
+			if (first < 0 || i < 0 || i >= words.length) {
+				i = cover(w, w);
+			}
+			long m = 1L << low;
+			long old = words[i];
+			if ((old & m) != 0) {
+				return false;
+			}
+			words[i] = old | m;
+			card++;
+			return true;
+		}
+
+		/**
+		 * Grows the words to cover word indices from..to, doubling so that a
+		 * range filled from either end is copied a logarithmic number of
+		 * times.
+		 *
+		 * @return the index into {@link #words} of {@code from}
+		 */
+		int cover(int from, int to) {
+			if (first < 0) {
+				// the first value places the initial words
+				first = (int) Math.max(0, Math.min(from, MAX_WORDS
+						- words.length));
+				if (to - first >= words.length) {
+					words = new long[to - first + 1];
+				}
+				return from - first;
+			}
+			int end = first + words.length - 1;
+			if (from >= first && to <= end) {
+				return from - first;
+			}
+			long len = Math.max((long) Math.max(end, to)
+					- Math.min(first, from) + 1,
+					Math.min(2L * words.length, MAX_WORDS));
+			long start;
+			if (from < first) {
+				// grow downwards, keeping the top where it is
+				start = Math.max(0, Math.max(end, to) - len + 1);
+			} else {
+				start = first;
+			}
+			len = Math.min(len, MAX_WORDS - start);
+			long[] nw = new long[(int) len];
+			System.arraycopy(words, 0, nw, (int) (first - start),
+					words.length);
+			words = nw;
+			first = (int) start;
+			return from - first;
+		}
+
+		void or(DistinctPartialCodec.Reader r, int from, int n) {
+			if (n == 0) {
+				return;
+			}
+			int i = cover(from, from + n - 1);
+			for (int k = 0; k < n; k++, i++) {
+				long old = words[i];
+				long now = old | r.getLong();
+				if (now != old) {
+					words[i] = now;
+					card += Long.bitCount(now) - Long.bitCount(old);
+				}
+			}
+		}
+
+		/**
+		 * @return the number of words from the lowest to the highest non-zero
+		 *         word, 0 if empty
+		 */
+		int span() {
+			if (card == 0) {
+				return 0;
+			}
+			return highest() - lowest() + 1;
+		}
+
+		private int lowest() {
+			int i = 0;
+			while (words[i] == 0) {
+				i++;
+			}
+			return i;
+		}
+
+		private int highest() {
+			int i = words.length - 1;
+			while (words[i] == 0) {
+				i--;
+			}
+			return i;
+		}
+
+		void write(DistinctPartialCodec.Writer w) {
+			w.putInt(key);
+			// at most 2^32 values in a bucket, which is written as words
+			int span = span();
+			boolean dense = card == 0
+					|| 64L * span <= DistinctPartialCodec.DENSE_BITS_PER_VALUE
+							* card;
+			w.putInt(dense ? 0 : (int) card);
+			if (dense) {
+				w.putByte(DistinctPartialCodec.RANGE_BITMAP);
+				int lo = span == 0 ? 0 : lowest();
+				w.putInt(first + lo);
+				w.putInt(span);
+				for (int i = 0; i < span; i++) {
+					w.putLong(words[lo + i]);
+				}
+				return;
+			}
+			w.putByte(DistinctPartialCodec.RANGE_SORTED);
+			int[] values = new int[(int) card];
+			int k = 0;
+			for (int i = 0; i < words.length; i++) {
+				long word = words[i];
+				long base = (long) (first + i) << 6;
+				while (word != 0) {
+					values[k++] = (int) (base + Long
+							.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			DistinctPartialCodec.putPForBlocks(w, values, k);
+		}
+	}
+}
@@ -0,0 +1,455 @@
+package com.wandisco.hive.udaf;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.util.Arrays;
+
+/**
+ * A 64 bit roaring bitmap: values are split into the high 48 bits, used as a
+ * sorted container key, and the low 16 bits, stored in a container. A
+ * container is a sorted array of 16 bit values while it holds at most
+ * {@link #ARRAY_MAX} of them, and a 1024 word bitmap beyond that, so memory
+ * is bounded by 2 bytes per value for sparse keys and 8KB per 65536 values
+ * for dense ones.
+ * <p>
+ * The serialised form is a {@link DistinctPartialCodec} partial of type
+ * {@link DistinctPartialCodec#TYPE_ROARING}. Each container is written in
+ * whichever of the array, bitmap or run encodings is smallest.
+ * {@link #or(BytesWritable)} ORs those containers straight into the
+ * existing ones, without deserialising the other bitmap first.
+ * </p>
+ */
+public final class RoaringLongBitmap {
+
+	static final int ARRAY_MAX = 4096;
+	static final int BITMAP_WORDS = 1024;
+
+	static final byte ARRAY = 0;
+	static final byte BITMAP = 1;
+	static final byte RUN = 2;
+
+	private long[] keys = new long[4];
+	private Container[] containers = new Container[4];
+	private int size;
+	private long cardinality;
+	// index of the last container touched, rows for a group tend to cluster
+	private int last = -1;
+
+	public void add(long value) {
+		long key = value >>> 16;
+		int i = last;
+		if (i < 0 || keys[i] != key) {
+			i = containerIndex(key, false);
+			last = i;
+		}
+		Container c = containers[i];
+		int before = c.card;
+		Container r = c.add((char) value);
+		containers[i] = r;
+		cardinality += r.card - before;
+	}
+
+	public long cardinality() {
+		return cardinality;
+	}
+
+	public void clear() {
+		Arrays.fill(containers, 0, size, null);
+		size = 0;
+		cardinality = 0;
+		last = -1;
+	}
+
+	/**
+	 * Finds the container for a key, inserting an empty one if absent.
+	 */
+	private int containerIndex(long key, boolean bitmap) {
+		int i = Arrays.binarySearch(keys, 0, size, key);
+		if (i >= 0) {
+			return i;
+		}
+		i = -i - 1;
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size << 1);
+			containers = Arrays.copyOf(containers, size << 1);
+		}
+		System.arraycopy(keys, i, keys, i + 1, size - i);
+		System.arraycopy(containers, i, containers, i + 1, size - i);
+		keys[i] = key;
+		containers[i] = bitmap ? new BitmapContainer() : new ArrayContainer();
+		size++;
+		return i;
+	}
+
+	public BytesWritable serialize() {
+		DistinctPartialCodec.Writer w = new DistinctPartialCodec.Writer(
+				DistinctPartialCodec.TYPE_ROARING, size, 16L * size
+						+ 2L * Math.min(cardinality, 1L << 28));
+		for (int i = 0; i < size; i++) {
+			w.putLong(keys[i]);
+			containers[i].write(w);
+		}
+		return w.toBytesWritable();
+	}
+
+	/**
+	 * ORs a serialised bitmap into this one, container by container.
+	 */
+	public void or(BytesWritable serialized) throws HiveException {
+		DistinctPartialCodec.Reader r = DistinctPartialCodec
+				.reader(serialized);
+		if (r.type() != DistinctPartialCodec.TYPE_ROARING) {
+			throw new HiveException("Expected a roaring partial but got type "
+					+ r.type());
+		}
+		int n = r.count();
+		for (int k = 0; k < n; k++) {
+			r.require(9);
+			long key = r.getLong();
+			byte kind = (byte) r.getByte();
+			int i = containerIndex(key, kind == BITMAP);
+			Container c = containers[i];
+			int before = c.card;
+			Container out;
+			switch (kind) {
+			case ARRAY:
+				out = c.orArray(r);
+				break;
+			case BITMAP:
+				out = c.toBitmap().orBitmap(r);
+				break;
+			case RUN:
+				out = c.orRuns(r);
+				break;
+			default:
+				throw new HiveException("Unknown roaring container kind "
+						+ kind);
+			}
+			containers[i] = out;
+			cardinality += out.card - before;
+		}
+		last = -1;
+	}
+
+	/**
+	 * Approximate heap footprint in bytes.
+	 */
+	public long sizeInBytes() {
+		long bytes = 16L * keys.length;
+		for (int i = 0; i < size; i++) {
+			bytes += containers[i].sizeInBytes();
+		}
+		return bytes;
+	}
+
+	abstract static class Container {
+		int card;
+
+		abstract Container add(char v);
+
+		abstract BitmapContainer toBitmap();
+
+		abstract Container orArray(DistinctPartialCodec.Reader r)
+				throws HiveException;
+
+		abstract Container orRuns(DistinctPartialCodec.Reader r)
+				throws HiveException;
+
+		abstract int runs();
+
+		abstract void write(DistinctPartialCodec.Writer w);
+
+		abstract long sizeInBytes();
+
+		/**
+		 * Picks the smallest encoding for the container, given its number of
+		 * runs.
+		 */
+		static byte encoding(int card, int runs) {
+			int array = 2 * card;
+			int bitmap = 8 * BITMAP_WORDS;
+			int run = 4 * runs;
+			if (run < array && run < bitmap) {
+				return RUN;
+			}
+			return array <= bitmap ? ARRAY : BITMAP;
+		}
+	}
+
+	static final class ArrayContainer extends Container {
+		char[] content = new char[4];
+
+		@Override
+		Container add(char v) {
+			int i = Arrays.binarySearch(content, 0, card, v);
+			if (i >= 0) {
+				return this;
+			}
+			if (card >= ARRAY_MAX) {
+				return toBitmap().add(v);
+			}
+			i = -i - 1;
+			if (card == content.length) {
+				content = Arrays.copyOf(content,
+						Math.min(card << 1, ARRAY_MAX));
+			}
+			System.arraycopy(content, i, content, i + 1, card - i);
+			content[i] = v;
+			card++;
+			return this;
+		}
+
+		@Override
+		BitmapContainer toBitmap() {
+			BitmapContainer b = new BitmapContainer();
+			for (int i = 0; i < card; i++) {
+				char v = content[i];
+				b.words[v >>> 6] |= 1L << v;
+			}
+			b.card = card;
+			return b;
+		}
+
+		@Override
+		Container orArray(DistinctPartialCodec.Reader r) throws HiveException {
+			r.require(4);
+			int n = r.getInt();
+			r.require(2L * n);
+			if (card + n > ARRAY_MAX) {
+				return toBitmap().orArrayValues(r, n);
+			}
+			char[] out = new char[Math.max(4, card + n)];
+			int i = 0, j = 0, k = 0;
+			int vj = n > 0 ? r.getUnsignedShort() : 0;
+			while (i < card && j < n) {
+				char vi = content[i];
+				if (vi < vj) {
+					out[k++] = vi;
+					i++;
+				} else {
+					if (vi == vj) {
+						i++;
+					}
+					out[k++] = (char) vj;
+					if (++j < n) {
+						vj = r.getUnsignedShort();
+					}
+				}
+			}
+			while (i < card) {
+				out[k++] = content[i++];
+			}
+			while (j < n) {
+				out[k++] = (char) vj;
+				if (++j < n) {
+					vj = r.getUnsignedShort();
+				}
+			}
+			content = out;
+			card = k;
+			return this;
+		}
+
+		@Override
+		Container orRuns(DistinctPartialCodec.Reader r) throws HiveException {
+			return toBitmap().orRuns(r);
+		}
+
+		@Override
+		int runs() {
+			int runs = 0;
+			for (int i = 0; i < card; i++) {
+				if (i == 0 || content[i] != content[i - 1] + 1) {
+					runs++;
+				}
+			}
+			return runs;
+		}
+
+		@Override
+		void write(DistinctPartialCodec.Writer w) {
+			int runs = runs();
+			if (encoding(card, runs) == RUN) {
+				w.putByte(RUN);
+				w.putInt(runs);
+				int i = 0;
+				while (i < card) {
+					int start = i;
+					while (i + 1 < card && content[i + 1] == content[i] + 1) {
+						i++;
+					}
+					w.putShort(content[start]);
+					w.putShort(i - start);
+					i++;
+				}
+				return;
+			}
+			w.putByte(ARRAY);
+			w.putInt(card);
+			for (int i = 0; i < card; i++) {
+				w.putShort(content[i]);
+			}
+		}
+
+		@Override
+		long sizeInBytes() {
+			return 24 + 2L * content.length;
+		}
+	}
+
+	static final class BitmapContainer extends Container {
+		final long[] words = new long[BITMAP_WORDS];
+
+		@Override
+		Container add(char v) {
+			int w = v >>> 6;
+			long m = 1L << v;
+			if ((words[w] & m) == 0) {
+				words[w] |= m;
+				card++;
+			}
+			return this;
+		}
+
+		@Override
+		BitmapContainer toBitmap() {
+			return this;
+		}
+
+		BitmapContainer orBitmap(DistinctPartialCodec.Reader r)
+				throws HiveException {
+			r.require(8L * BITMAP_WORDS);
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				long old = words[i];
+				long now = old | r.getLong();
+				if (now != old) {
+					words[i] = now;
+					card += Long.bitCount(now) - Long.bitCount(old);
+				}
+			}
+			return this;
+		}
+
+		BitmapContainer orArrayValues(DistinctPartialCodec.Reader r, int n) {
+			for (int j = 0; j < n; j++) {
+				add((char) r.getUnsignedShort());
+			}
+			return this;
+		}
+
+		@Override
+		Container orArray(DistinctPartialCodec.Reader r) throws HiveException {
+			r.require(4);
+			int n = r.getInt();
+			r.require(2L * n);
+			return orArrayValues(r, n);
+		}
+
+		@Override
+		Container orRuns(DistinctPartialCodec.Reader r) throws HiveException {
+			r.require(4);
+			int n = r.getInt();
+			r.require(4L * n);
+			for (int j = 0; j < n; j++) {
+				int start = r.getUnsignedShort();
+				int end = start + r.getUnsignedShort();
+				setRange(start, end);
+			}
+			return this;
+		}
+
+		/**
+		 * Sets bits start..end, both inclusive.
+		 */
+		void setRange(int start, int end) {
+			int first = start >>> 6;
+			int lastWord = end >>> 6;
+			for (int w = first; w <= lastWord; w++) {
+				long m = -1L;
+				if (w == first) {
+					m &= -1L << start;
+				}
+				if (w == lastWord) {
+					m &= -1L >>> (63 - (end & 63));
+				}
+				long old = words[w];
+				long now = old | m;
+				if (now != old) {
+					words[w] = now;
+					card += Long.bitCount(now) - Long.bitCount(old);
+				}
+			}
+		}
+
+		@Override
+		int runs() {
+			int runs = 0;
+			long carry = 0;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				long w = words[i];
+				runs += Long.bitCount(w & ~((w << 1) | carry));
+				carry = w >>> 63;
+			}
+			return runs;
+		}
+
+		@Override
+		void write(DistinctPartialCodec.Writer w) {
+			int runs = runs();
+			byte enc = encoding(card, runs);
+			if (enc == RUN) {
+				w.putByte(RUN);
+				w.putInt(runs);
+				int start = nextBit(0, true);
+				while (start >= 0) {
+					int end = nextBit(start, false);
+					if (end < 0) {
+						end = BITMAP_WORDS << 6;
+					}
+					w.putShort(start);
+					w.putShort(end - 1 - start);
+					start = end < (BITMAP_WORDS << 6) ? nextBit(end, true) : -1;
+				}
+			} else if (enc == ARRAY) {
+				w.putByte(ARRAY);
+				w.putInt(card);
+				for (int i = 0; i < BITMAP_WORDS; i++) {
+					long word = words[i];
+					while (word != 0) {
+						w.putShort((i << 6) + Long.numberOfTrailingZeros(word));
+						word &= word - 1;
+					}
+				}
+			} else {
+				w.putByte(BITMAP);
+				for (int i = 0; i < BITMAP_WORDS; i++) {
+					w.putLong(words[i]);
+				}
+			}
+		}
+
+		/**
+		 * @return the index of the next set (or clear) bit at or after from,
+		 *         or -1
+		 */
+		private int nextBit(int from, boolean set) {
+			int i = from >>> 6;
+			long word = (set ? words[i] : ~words[i]) & (-1L << from);
+			while (true) {
+				if (word != 0) {
+					return (i << 6) + Long.numberOfTrailingZeros(word);
+				}
+				if (++i == BITMAP_WORDS) {
+					return -1;
+				}
+				word = set ? words[i] : ~words[i];
+			}
+		}
+
+		@Override
+		long sizeInBytes() {
+			return 24 + 8L * BITMAP_WORDS;
+		}
+	}
+}
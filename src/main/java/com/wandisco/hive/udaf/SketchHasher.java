@@ -0,0 +1,61 @@
+package com.wandisco.hive.udaf;
+
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Hashes Hive primitives for the sketches with {@link Murmur3}, by value
+ * rather than through {@code toString()}, so lazy and writable inputs of the
+ * same value hash the same and no garbage is made per row.
+ * <p>
+ * Integer types hash their long value and floating point types the bits of
+ * their double value, so 5 hashes the same whether it comes as an int or a
+ * bigint, and a float column the same as its vectorized double column.
+ * Strings and binaries hash their raw bytes. Other types hash the UTF-8 bytes
+ * of their string form. Instances are not thread safe; use one per evaluator.
+ * </p>
+ */
+public final class SketchHasher {
+
+	private final PrimitiveObjectInspector oi;
+	private final Text text = new Text();
+
+	public SketchHasher(PrimitiveObjectInspector oi) {
+		this.oi = oi;
+	}
+
+	public long hash(Object o) {
+		switch (oi.getPrimitiveCategory()) {
+		case BOOLEAN:
+		case BYTE:
+		case SHORT:
+		case INT:
+		case LONG:
+			return Murmur3.hash64(PrimitiveObjectInspectorUtils.getLong(o, oi));
+		case FLOAT:
+		case DOUBLE:
+			return hashDouble(PrimitiveObjectInspectorUtils.getDouble(o, oi));
+		case STRING:
+			Text t = ((StringObjectInspector) oi).getPrimitiveWritableObject(o);
+			return Murmur3.hash64(t.getBytes(), 0, t.getLength());
+		case BINARY:
+			BytesWritable b = ((BinaryObjectInspector) oi)
+					.getPrimitiveWritableObject(o);
+			return Murmur3.hash64(b.getBytes(), 0, b.getLength());
+		default:
+			text.set(PrimitiveObjectInspectorUtils.getString(o, oi));
+			return Murmur3.hash64(text.getBytes(), 0, text.getLength());
+		}
+	}
+
+	/**
+	 * -0.0 hashes as 0.0, since they compare equal.
+	 */
+	public static long hashDouble(double d) {
+		return Murmur3.hash64(Double.doubleToLongBits(d == 0 ? 0d : d));
+	}
+}
@@ -0,0 +1,621 @@
+package com.wandisco.hive.udaf;
+
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.set.hash.TLongHashSet;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.BytesWritable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Union of sorted, duplicate free runs of longs, used on the merge side of
+ * the long distinct counters instead of re-hashing every partial.
+ * <p>
+ * Runs are kept with geometrically decreasing lengths: whenever the newest
+ * run is at least half as long as the one before it the two are merged. This
+ * bounds the number of runs to O(log n) and the total merge work to
+ * O(n log n), and the final union is a k-way merge over the remaining runs.
+ * </p>
+ * <p>
+ * With a spill threshold, see {@link DistinctConf#SPILL_THRESHOLD}, the runs
+ * in memory are merged and written to a local temp file, as a first value
+ * and varint gaps, whenever they hold more values than that. The union then
+ * streams over the files as well, so a group never needs to fit in memory.
+ * The files are deleted by {@link #clear()}, or by {@link SpillFiles} for
+ * groups that are never cleared.
+ * </p>
+ */
+final class SortedLongRuns {
+
+	// spilled runs merged into one file past this many, to bound open files
+	private static final int MAX_SPILLED_RUNS = 64;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private long[][] runs = new long[8][];
+	private int[] lengths = new int[8];
+	private int numRuns;
+
+	// values held in memory before the runs are spilled, 0 to never spill
+	private long spillThreshold;
+	private SpillFiles spillFiles = new SpillFiles();
+	private final List<SpilledRun> spilled = new ArrayList<SpilledRun>();
+
+	void setSpillThreshold(long spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 * Registers the files spilled from now on with {@code spillFiles}
+	 * instead of a registry of this instance's own.
+	 */
+	void setSpillFiles(SpillFiles spillFiles) {
+		this.spillFiles = spillFiles;
+	}
+
+	/**
+	 * Adds a sorted run without duplicates. The array is owned by this
+	 * instance afterwards.
+	 */
+	void add(long[] sorted, int length) throws HiveException {
+		if (length == 0) {
+			return;
+		}
+		if (numRuns == runs.length) {
+			runs = Arrays.copyOf(runs, numRuns << 1);
+			lengths = Arrays.copyOf(lengths, numRuns << 1);
+		}
+		runs[numRuns] = sorted;
+		lengths[numRuns] = length;
+		numRuns++;
+		while (numRuns > 1
+				&& lengths[numRuns - 2] <= 2 * lengths[numRuns - 1]) {
+			mergeLastTwo();
+		}
+		if (spillThreshold > 0 && inMemory() > spillThreshold) {
+			spill();
+		}
+	}
+
+	/**
+	 * Moves the contents of a hash set into a new run and clears the set.
+	 */
+	void addAll(TLongHashSet hash) throws HiveException {
+		if (hash.isEmpty()) {
+			return;
+		}
+		long[] values = hash.toArray();
+		Arrays.sort(values);
+		hash.clear();
+		add(values, values.length);
+	}
+
+	/**
+	 * Moves the contents of an off-heap set into a new run. The set is left
+	 * for the caller to release.
+	 */
+	void addAll(OffHeapLongSet set) throws HiveException {
+		if (set.size() == 0) {
+			return;
+		}
+		long[] values = set.toArray();
+		Arrays.sort(values);
+		add(values, values.length);
+	}
+
+	/**
+	 * Heap footprint of the runs in memory.
+	 */
+	long sizeInBytes() {
+		long bytes = 0;
+		for (int r = 0; r < numRuns; r++) {
+			bytes += 8L * runs[r].length;
+		}
+		return bytes;
+	}
+
+	private long inMemory() {
+		long n = 0;
+		for (int r = 0; r < numRuns; r++) {
+			n += lengths[r];
+		}
+		return n;
+	}
+
+	private void mergeLastTwo() {
+		int a = numRuns - 2;
+		int b = numRuns - 1;
+		long[] x = runs[a];
+		long[] y = runs[b];
+		int nx = lengths[a];
+		int ny = lengths[b];
+		long[] out = new long[nx + ny];
+		int i = 0, j = 0, n = 0;
+		while (i < nx && j < ny) {
+			long vx = x[i];
+			long vy = y[j];
+			if (vx < vy) {
+				out[n++] = vx;
+				i++;
+			} else if (vy < vx) {
+				out[n++] = vy;
+				j++;
+			} else {
+				out[n++] = vx;
+				i++;
+				j++;
+			}
+		}
+		while (i < nx) {
+			out[n++] = x[i++];
+		}
+		while (j < ny) {
+			out[n++] = y[j++];
+		}
+		runs[a] = out;
+		lengths[a] = n;
+		runs[b] = null;
+		numRuns--;
+	}
+
+	/**
+	 * Merges the runs in memory into one and writes it to a temp file.
+	 */
+	private void spill() throws HiveException {
+		compact();
+		SpilledRun run = SpilledRun.create(spillFiles);
+		try {
+			SpilledRun.Output out = run.output();
+			try {
+				long[] values = runs[0];
+				for (int i = 0; i < lengths[0]; i++) {
+					out.write(values[i]);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			run.delete();
+			throw new HiveException("Failed to spill distinct values to "
+					+ run.file, e);
+		}
+		spilled.add(run);
+		runs[0] = null;
+		numRuns = 0;
+		if (spilled.size() >= MAX_SPILLED_RUNS) {
+			mergeSpilled();
+		}
+	}
+
+	private void mergeSpilled() throws HiveException {
+		final SpilledRun run = SpilledRun.create(spillFiles);
+		try {
+			final SpilledRun.Output out = run.output();
+			try {
+				merge(cursors(false), new TLongProcedure() {
+					@Override
+					public boolean execute(long value) {
+						try {
+							out.write(value);
+						} catch (IOException e) {
+							throw new SpillException(e);
+						}
+						return true;
+					}
+				});
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			run.delete();
+			throw new HiveException(
+					"Failed to merge spilled distinct values into " + run.file,
+					e);
+		}
+		for (SpilledRun r : spilled) {
+			r.delete();
+		}
+		spilled.clear();
+		spilled.add(run);
+	}
+
+	/**
+	 * Merges all runs in memory into one.
+	 */
+	void compact() {
+		while (numRuns > 1) {
+			mergeLastTwo();
+		}
+	}
+
+	boolean isEmpty() {
+		return numRuns == 0 && spilled.isEmpty();
+	}
+
+	/**
+	 * @return the single run left after {@link #compact()}
+	 */
+	long[] values() {
+		return numRuns == 0 ? new long[0] : runs[0];
+	}
+
+	/**
+	 * @return length of the single run left after {@link #compact()}
+	 */
+	int length() {
+		return numRuns == 0 ? 0 : lengths[0];
+	}
+
+	/**
+	 * Exact number of distinct values, computed with a streaming k-way merge
+	 * so no merged copy is built.
+	 */
+	long count() throws HiveException {
+		if (spilled.isEmpty()) {
+			if (numRuns == 0) {
+				return 0;
+			}
+			if (numRuns == 1) {
+				return lengths[0];
+			}
+		}
+		final long[] n = new long[1];
+		forEachDistinct(new TLongProcedure() {
+			@Override
+			public boolean execute(long value) {
+				n[0]++;
+				return true;
+			}
+		});
+		return n[0];
+	}
+
+	/**
+	 * Encodes the union as a sorted long partial, see
+	 * {@link DistinctPartialCodec#encodeSortedLongs}. Once runs were spilled
+	 * the union is streamed from disk twice, to count and then to write it,
+	 * as varint gaps.
+	 */
+	BytesWritable encode(boolean pfor) throws HiveException {
+		if (spilled.isEmpty()) {
+			compact();
+			return DistinctPartialCodec.encodeSortedLongs(values(), length(),
+					pfor);
+		}
+		long count = count();
+		if (count > Integer.MAX_VALUE) {
+			throw new HiveException(count
+					+ " distinct values do not fit in one partial result");
+		}
+		final DistinctPartialCodec.Writer w = new DistinctPartialCodec.Writer(
+				DistinctPartialCodec.TYPE_LONG_SORTED_VARINT, (int) count,
+				8L + 2L * count);
+		forEachDistinct(new TLongProcedure() {
+			boolean first = true;
+			long last;
+
+			@Override
+			public boolean execute(long value) {
+				if (first) {
+					w.putLong(value);
+					first = false;
+				} else {
+					w.putVarLong(value - last);
+				}
+				last = value;
+				return true;
+			}
+		});
+		return w.toBytesWritable();
+	}
+
+	/**
+	 * Visits the union of all runs, in memory and spilled, in ascending
+	 * order, each value once.
+	 */
+	boolean forEachDistinct(TLongProcedure procedure) throws HiveException {
+		try {
+			return merge(cursors(true), procedure);
+		} catch (IOException e) {
+			throw new HiveException("Failed to read spilled distinct values",
+					e);
+		}
+	}
+
+	private List<Cursor> cursors(boolean inMemory) throws IOException {
+		List<Cursor> cursors = new ArrayList<Cursor>();
+		if (inMemory) {
+			for (int r = 0; r < numRuns; r++) {
+				cursors.add(new ArrayCursor(runs[r], lengths[r]));
+			}
+		}
+		for (SpilledRun run : spilled) {
+			cursors.add(run.cursor());
+		}
+		return cursors;
+	}
+
+	/**
+	 * k-way merge with duplicate elimination. Closes the cursors.
+	 */
+	private static boolean merge(List<Cursor> cursors,
+			TLongProcedure procedure) throws IOException {
+		try {
+			// binary min-heap of cursors ordered by their current head
+			Cursor[] heap = new Cursor[cursors.size()];
+			int size = 0;
+			for (Cursor c : cursors) {
+				if (c.next()) {
+					heap[size] = c;
+					siftUp(heap, size++);
+				}
+			}
+			boolean first = true;
+			long last = 0;
+			while (size > 0) {
+				Cursor c = heap[0];
+				long v = c.head;
+				if (first || v != last) {
+					if (!procedure.execute(v)) {
+						return false;
+					}
+					last = v;
+					first = false;
+				}
+				if (!c.next()) {
+					heap[0] = heap[--size];
+				}
+				siftDown(heap, size);
+			}
+			return true;
+		} catch (SpillException e) {
+			throw e.getCause();
+		} finally {
+			for (Cursor c : cursors) {
+				c.close();
+			}
+		}
+	}
+
+	private static void siftUp(Cursor[] heap, int i) {
+		Cursor c = heap[i];
+		while (i > 0) {
+			int p = (i - 1) >>> 1;
+			if (heap[p].head <= c.head) {
+				break;
+			}
+			heap[i] = heap[p];
+			i = p;
+		}
+		heap[i] = c;
+	}
+
+	private static void siftDown(Cursor[] heap, int size) {
+		if (size == 0) {
+			return;
+		}
+		int i = 0;
+		Cursor c = heap[0];
+		while (true) {
+			int k = (i << 1) + 1;
+			if (k >= size) {
+				break;
+			}
+			if (k + 1 < size && heap[k + 1].head < heap[k].head) {
+				k++;
+			}
+			if (c.head <= heap[k].head) {
+				break;
+			}
+			heap[i] = heap[k];
+			i = k;
+		}
+		heap[i] = c;
+	}
+
+	/**
+	 * Drops all runs and deletes the spilled ones.
+	 */
+	void clear() {
+		Arrays.fill(runs, 0, numRuns, null);
+		numRuns = 0;
+		for (SpilledRun run : spilled) {
+			run.delete();
+		}
+		spilled.clear();
+	}
+
+	/**
+	 * Ascending values of one run, {@link #head} is valid after
+	 * {@link #next()} returned true.
+	 */
+	private abstract static class Cursor {
+		long head;
+
+		abstract boolean next() throws IOException;
+
+		void close() {
+		}
+	}
+
+	private static final class ArrayCursor extends Cursor {
+		private final long[] values;
+		private final int length;
+		private int pos;
+
+		ArrayCursor(long[] values, int length) {
+			this.values = values;
+			this.length = length;
+		}
+
+		@Override
+		boolean next() {
+			if (pos == length) {
+				return false;
+			}
+			head = values[pos++];
+			return true;
+		}
+	}
+
+	/**
+	 * A run in a temp file: the first value as a long, then the gaps to the
+	 * next values as unsigned varints. The owner deletes it, see
+	 * {@link SortedLongRuns#clear()}.
+	 */
+	private static final class SpilledRun {
+		final File file;
+		private final SpillFiles owner;
+
+		private SpilledRun(File file, SpillFiles owner) {
+			this.file = file;
+			this.owner = owner;
+		}
+
+		static SpilledRun create(SpillFiles owner) throws HiveException {
+			return new SpilledRun(owner.create(), owner);
+		}
+
+		Output output() throws IOException {
+			return new Output(new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file), BUFFER_SIZE)));
+		}
+
+		Cursor cursor() throws IOException {
+			final DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file),
+							BUFFER_SIZE));
+			return new Cursor() {
+				boolean first = true;
+
+				@Override
+				boolean next() throws IOException {
+					try {
+						if (first) {
+							first = false;
+							head = in.readLong();
+						} else {
+							head += readVarLong(in);
+						}
+						return true;
+					} catch (EOFException e) {
+						return false;
+					}
+				}
+
+				@Override
+				void close() {
+					try {
+						in.close();
+					} catch (IOException e) {
+						// read only
+					}
+				}
+			};
+		}
+
+		private static long readVarLong(DataInputStream in) throws IOException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = in.readUnsignedByte();
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+			}
+			throw new IOException("Malformed varint in spilled run");
+		}
+
+		void delete() {
+			owner.delete(file);
+		}
+
+		static final class Output {
+			private final DataOutputStream out;
+			private boolean first = true;
+			private long last;
+
+			Output(DataOutputStream out) {
+				this.out = out;
+			}
+
+			void write(long value) throws IOException {
+				if (first) {
+					out.writeLong(value);
+					first = false;
+				} else {
+					long gap = value - last;
+					while ((gap & ~0x7FL) != 0) {
+						out.write((int) ((gap & 0x7F) | 0x80));
+						gap >>>= 7;
+					}
+					out.write((int) gap);
+				}
+				last = value;
+			}
+
+			void close() throws IOException {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * The spill files of the runs of one evaluator, so that {@code close()}
+	 * can delete those of groups Hive dropped without a {@code reset}.
+	 */
+	static final class SpillFiles {
+		private final Set<File> live = new HashSet<File>();
+
+		File create() throws HiveException {
+			try {
+				File file = File.createTempFile("distinct-", ".run");
+				live.add(file);
+				return file;
+			} catch (IOException e) {
+				throw new HiveException(
+						"Failed to create a spill file for distinct values", e);
+			}
+		}
+
+		void delete(File file) {
+			file.delete();
+			live.remove(file);
+		}
+
+		void deleteAll() {
+			for (File file : live) {
+				file.delete();
+			}
+			live.clear();
+		}
+	}
+
+	/**
+	 * Carries an IOException out of a {@link TLongProcedure}.
+	 */
+	private static final class SpillException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		SpillException(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+}
@@ -3,6 +3,7 @@ package com.wandisco.hive.udaf;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
@@ -12,19 +13,19 @@ import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.LongWritable;
 
 import gnu.trove.set.hash.THashSet;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -69,21 +70,37 @@ public class UDAFCnt extends AbstractGenericUDAFResolver { // implements
 		PrimitiveObjectInspector typeOI;
 		PrimitiveObjectInspector paramOI;
 
+		// LONG, INT or DOUBLE when iterate keeps the rows unboxed, else null
+		PrimitiveCategory unboxed;
+
 		// intermediate results
 		StandardListObjectInspector partialOI;
 
+		// see DistinctConf.MERGE_THREADS
+		private ParallelMerge parallel = DistinctConf.parallelMerge(null);
+
 		public ObjectInspector init(Mode m, ObjectInspector[] parameters)
 				throws HiveException {
 			super.init(m, parameters);
 			partialResult = new Object[2];
 			partialResult[0] = new LongWritable(0);
 			partialResult[1] = new DoubleWritable(0);
+			unboxed = null;
 			if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
 				assert (parameters.length == 1);
 				ObjectInspector.Category cat = parameters[0].getCategory();
 				switch (cat) {
 				case PRIMITIVE:
 					inputPrimitiveOI = (PrimitiveObjectInspector) parameters[0];
+					switch (inputPrimitiveOI.getPrimitiveCategory()) {
+					case LONG:
+					case INT:
+					case DOUBLE:
+						unboxed = inputPrimitiveOI.getPrimitiveCategory();
+						break;
+					default:
+						break;
+					}
 					break;
 				default:
 					throw new IllegalArgumentException(
@@ -102,6 +119,16 @@ public class UDAFCnt extends AbstractGenericUDAFResolver { // implements
 			}
 		}
 
+		@Override
+		public void configure(MapredContext mapredContext) {
+			parallel = DistinctConf.parallelMerge(mapredContext);
+		}
+
+		@Override
+		public void close() throws IOException {
+			parallel.close();
+		}
+
 		@Override
 		public AggregationBuffer getNewAggregationBuffer() throws HiveException {
 			CntAggregationBuffer ceb = new CntAggregationBuffer();
@@ -112,7 +139,15 @@ public class UDAFCnt extends AbstractGenericUDAFResolver { // implements
 		@Override
 		public void reset(AggregationBuffer aggregationBuffer)
 				throws HiveException {
-			((CntAggregationBuffer) aggregationBuffer).hash = new THashSet();
+			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
+			ceb.hash = new THashSet();
+			ceb.parts = null;
+			ceb.elementBytes = 0;
+			ceb.longs = unboxed == PrimitiveCategory.LONG
+					|| unboxed == PrimitiveCategory.DOUBLE ? new TLongHashSet()
+					: null;
+			ceb.ints = unboxed == PrimitiveCategory.INT ? new TIntHashSet()
+					: null;
 		}
 
 		@Override
@@ -122,25 +157,68 @@ public class UDAFCnt extends AbstractGenericUDAFResolver { // implements
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
+			// read without boxing or copying where a primitive set holds the
+			// rows, see terminatePartial for their partials
+			if (unboxed == PrimitiveCategory.LONG) {
+				ceb.longs.add(PrimitiveObjectInspectorUtils.getLong(
+						parameters[0], inputPrimitiveOI));
+				return;
+			} else if (unboxed == PrimitiveCategory.DOUBLE) {
+				// the bits, so that equality is that of Double.equals
+				double d = PrimitiveObjectInspectorUtils.getDouble(
+						parameters[0], inputPrimitiveOI);
+				ceb.longs.add(Double.doubleToLongBits(d));
+				return;
+			} else if (unboxed == PrimitiveCategory.INT) {
+				ceb.ints.add(PrimitiveObjectInspectorUtils.getInt(parameters[0],
+						inputPrimitiveOI));
+				return;
+			}
 			Object x = ObjectInspectorUtils.copyToStandardObject(parameters[0],
 					inputPrimitiveOI, ObjectInspectorCopyOption.JAVA);
-			ceb.hash.add(x);
+			if (ceb.hash.add(x)) {
+				ceb.elementBytes += sizeOf(x);
+			}
+		}
+
+		/**
+		 * Rough heap size of a value copied by iterate, for
+		 * {@link CntAggregationBuffer#estimate()}.
+		 */
+		static int sizeOf(Object x) {
+			if (x instanceof String) {
+				return 40 + 2 * ((String) x).length();
+			}
+			if (x instanceof byte[]) {
+				return 16 + ((byte[]) x).length;
+			}
+			// boxed primitives and small value objects
+			return 24;
 		}
 
 		@Override
 		public Object terminatePartial(AggregationBuffer aggregationBuffer)
 				throws HiveException {
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			ByteArrayOutputStream b = new ByteArrayOutputStream();
-			try {
-				ObjectOutputStream o = new ObjectOutputStream(b);
-				o.writeObject(ceb.hash);
-			} catch (IOException e) {
-				throw new HiveException(e.getMessage());
+			if (ceb.parts != null) {
+				// merged in parallel, gather the sub-sets again
+				for (int i = 0; i < ceb.parts.length; i++) {
+					ceb.hash.addAll(ceb.parts[i]);
+				}
+				ceb.parts = null;
 			}
-			byte[] arr = b.toByteArray();
 			List<BytesWritable> bl = new ArrayList<BytesWritable>();
-			bl.add(new BytesWritable(arr));
+			// the same partials encodeObjects writes for boxed Long, Double
+			// and Integer values
+			if (ceb.longs != null && unboxed == PrimitiveCategory.DOUBLE) {
+				bl.add(DistinctPartialCodec.encodeDoubleBits(ceb.longs));
+			} else if (ceb.longs != null) {
+				bl.add(DistinctPartialCodec.encodeLongs(ceb.longs));
+			} else if (ceb.ints != null) {
+				bl.add(DistinctPartialCodec.encodeInts(ceb.ints));
+			} else {
+				bl.add(DistinctPartialCodec.encodeObjects(ceb.hash));
+			}
 			return bl;
 		}
 
@@ -151,33 +229,24 @@ public class UDAFCnt extends AbstractGenericUDAFResolver { // implements
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			THashSet hh = null;
-			try {
-				List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
-						.getList(partial);
-				BytesWritable partialBytes = partialResult.get(0);
-				ByteArrayInputStream bais = new ByteArrayInputStream(
-						partialBytes.getBytes());
-				ObjectInputStream oi = new ObjectInputStream(bais);
-				hh = (THashSet) oi.readObject();
-			} catch (Exception e) {
-				throw new HiveException(e.getMessage());
-			}
-			mergeHashSets(hh, ceb);
-		}
-
-		private void mergeHashSets(THashSet hh, CntAggregationBuffer ceb) {
-			if (ceb.hash.size() == 0) {
-				ceb.hash = hh;
-				return;
-			}
-			if (ceb.hash.size() > hh.size()) {
-				ceb.hash.addAll(hh);
+			List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
+					.getList(partial);
+			long before = ceb.size();
+			DistinctPartialCodec.Reader reader = DistinctPartialCodec
+					.reader(partialResult.get(0));
+			if (parallel.isEnabled()) {
+				if (ceb.parts == null) {
+					ceb.parts = parallel.split(ceb.hash);
+					ceb.hash = new THashSet();
+				}
+				parallel.addAll(reader, ceb.parts);
 			} else {
-				hh.addAll(ceb.hash);
-				ceb.hash = hh;
+				reader.readInto(ceb.hash);
 			}
-
+			// merged values are not visited, count them at the average so far
+			long added = ceb.size() - before;
+			ceb.elementBytes += added
+					* (before == 0 ? 24 : ceb.elementBytes / before);
 		}
 
 		@Override
@@ -187,13 +256,55 @@ public class UDAFCnt extends AbstractGenericUDAFResolver { // implements
 			if (ceb.hash == null) {
 				return null;
 			}
-			return new LongWritable(ceb.hash.size());
+			return new LongWritable(ceb.size());
 		}
 
+		@AggregationType(estimable = true)
 		static class CntAggregationBuffer extends AbstractAggregationBuffer { // implements
 																				// AggregationBuffer
 																				// {
 			THashSet hash = new THashSet();
+			// disjoint sub-sets of a group merged in parallel, hash is then
+			// empty
+			THashSet<Object>[] parts;
+			// estimated size of the elements, see sizeOf
+			long elementBytes;
+			// the rows of a long or double (as bits) column, or of an int
+			// column, when iterated; null otherwise
+			TLongHashSet longs;
+			TIntHashSet ints;
+
+			long size() {
+				long size = hash.size();
+				if (parts != null) {
+					size += ParallelMerge.size(parts);
+				}
+				if (longs != null) {
+					size += longs.size();
+				}
+				if (ints != null) {
+					size += ints.size();
+				}
+				return size;
+			}
+
+			@Override
+			public int estimate() {
+				long capacity = hash.capacity();
+				if (parts != null) {
+					capacity += ParallelMerge.capacity(parts);
+				}
+				// a primitive set's slot is its value and a state byte
+				long primitiveBytes = 0;
+				if (longs != null) {
+					primitiveBytes += 9L * longs.capacity();
+				}
+				if (ints != null) {
+					primitiveBytes += 5L * ints.capacity();
+				}
+				return (int) Math.min(Integer.MAX_VALUE, capacity * 8L
+						+ elementBytes + primitiveBytes);
+			}
 
 		}
 	}
@@ -0,0 +1,308 @@
+package com.wandisco.hive.udaf;
+
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.set.hash.TLongHashSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Distinct count that stays exact while a group is small and switches to a
+ * HyperLogLog++ sketch once its exact set would exceed a memory budget. The
+ * sketch is seeded from the exact set, so the switch loses nothing but
+ * precision.
+ */
+@Description(name = "count_distinct_adaptive", value = "_FUNC_(x, [budget]) - Exact distinct count of integer values while the set stays under budget bytes (default 1MB),"
+		+ " HyperLogLog++ estimate beyond that."
+		+ "\nReturns a struct {cardinality: bigint, exact: boolean}", extended = "Example:"
+		+ "\n> SELECT count_distinct_adaptive(values, 4194304).cardinality FROM src")
+public class UDAFCntAdaptive extends AbstractGenericUDAFResolver {
+
+	static final Log LOG = LogFactory.getLog(UDAFCntAdaptive.class.getName());
+
+	public static final long DEFAULT_BUDGET = 1L << 20;
+	// dense from the start: the exact set already covers small groups
+	public static final int HLL_P = 14;
+
+	public static final String CARDINALITY = "cardinality";
+	public static final String EXACT = "exact";
+
+	// a trove long set at its default load factor costs about 18 bytes per
+	// element: 8 for the value and 1 for the state, at twice the capacity
+	static final int BYTES_PER_ELEMENT = 18;
+
+	@Override
+	public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo info)
+			throws SemanticException {
+		return getEvaluator(info.getParameters());
+	}
+
+	@Override
+	public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+			throws SemanticException {
+		if (parameters.length < 1 || parameters.length > 2) {
+			throw new UDFArgumentLengthException(
+					"count_distinct_adaptive takes 1 or 2 parameters.");
+		}
+		for (int i = 0; i < parameters.length; i++) {
+			if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+				throw new UDFArgumentTypeException(i,
+						"Only primitive type arguments are accepted but "
+								+ parameters[i].getTypeName()
+								+ " was passed as parameter " + (i + 1));
+			}
+			switch (((PrimitiveTypeInfo) parameters[i]).getPrimitiveCategory()) {
+			case BYTE:
+			case SHORT:
+			case INT:
+			case LONG:
+				break;
+			default:
+				throw new UDFArgumentTypeException(i,
+						"Only integer types are accepted but "
+								+ parameters[i].getTypeName()
+								+ " was passed as parameter " + (i + 1));
+			}
+		}
+		return new AdaptiveEvaluator();
+	}
+
+	public static class AdaptiveEvaluator extends GenericUDAFEvaluator {
+
+		// inputs
+		PrimitiveObjectInspector inputPrimitiveOI;
+
+		// intermediate results
+		StandardListObjectInspector partialOI;
+
+		// in merge mode the budget comes with the partials
+		private long budget = -1;
+
+		public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+				throws HiveException {
+			super.init(m, parameters);
+			if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+				inputPrimitiveOI = (PrimitiveObjectInspector) parameters[0];
+				budget = DEFAULT_BUDGET;
+				if (parameters.length == 2) {
+					if (!(parameters[1] instanceof ConstantObjectInspector)) {
+						throw new HiveException("Budget must be a constant");
+					}
+					ConstantObjectInspector budgetOI = (ConstantObjectInspector) parameters[1];
+					budget = PrimitiveObjectInspectorUtils.getLong(
+							budgetOI.getWritableConstantValue(),
+							(PrimitiveObjectInspector) budgetOI);
+				}
+			} else {
+				// partial input object inspector for intermediate results
+				partialOI = (StandardListObjectInspector) parameters[0];
+			}
+			if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+				return ObjectInspectorFactory
+						.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.writableBinaryObjectInspector);
+			} else {
+				ArrayList<String> fNames = new ArrayList<String>();
+				fNames.add(CARDINALITY);
+				fNames.add(EXACT);
+				ArrayList<ObjectInspector> foi = new ArrayList<ObjectInspector>();
+				foi.add(PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+				foi.add(PrimitiveObjectInspectorFactory.writableBooleanObjectInspector);
+				return ObjectInspectorFactory.getStandardStructObjectInspector(
+						fNames, foi);
+			}
+		}
+
+		@Override
+		public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+			AdaptiveBuffer ab = new AdaptiveBuffer();
+			reset(ab);
+			return ab;
+		}
+
+		@Override
+		public void reset(AggregationBuffer aggregationBuffer)
+				throws HiveException {
+			AdaptiveBuffer ab = (AdaptiveBuffer) aggregationBuffer;
+			ab.exact = new TLongHashSet();
+			ab.sketch = null;
+		}
+
+		@Override
+		public void iterate(AggregationBuffer aggregationBuffer,
+				Object[] parameters) throws HiveException {
+			if (parameters[0] == null) {
+				return;
+			}
+			AdaptiveBuffer ab = (AdaptiveBuffer) aggregationBuffer;
+			long value = PrimitiveObjectInspectorUtils.getLong(parameters[0],
+					inputPrimitiveOI);
+			if (ab.sketch != null) {
+				ab.sketch.offerHashed(Murmur3.hash64(value));
+			} else if (ab.exact.add(value)) {
+				checkBudget(ab);
+			}
+		}
+
+		/**
+		 * Partial result: the budget as 8 bytes, followed by either the
+		 * sorted exact set or the sketch.
+		 */
+		@Override
+		public Object terminatePartial(AggregationBuffer aggregationBuffer)
+				throws HiveException {
+			AdaptiveBuffer ab = (AdaptiveBuffer) aggregationBuffer;
+			DistinctPartialCodec.Writer bw = new DistinctPartialCodec.Writer(
+					DistinctPartialCodec.TYPE_LONG, 1, 8);
+			bw.putLong(budget);
+			BytesWritable state;
+			if (ab.sketch != null) {
+				try {
+					state = DistinctPartialCodec.encodeBytes(
+							DistinctPartialCodec.TYPE_HLL,
+							ab.sketch.getBytes());
+				} catch (IOException e) {
+					throw new HiveException(
+							"Failed to extract byte[] during partial termination. ",
+							e);
+				}
+			} else {
+				long[] values = ab.exact.toArray();
+				Arrays.sort(values);
+				state = DistinctPartialCodec.encodeSortedLongs(values,
+						values.length, false);
+			}
+			List<BytesWritable> bl = new ArrayList<BytesWritable>();
+			bl.add(bw.toBytesWritable());
+			bl.add(state);
+			return bl;
+		}
+
+		@Override
+		public void merge(AggregationBuffer aggregationBuffer, Object partial)
+				throws HiveException {
+			if (partial == null) {
+				return;
+			}
+			final AdaptiveBuffer ab = (AdaptiveBuffer) aggregationBuffer;
+			List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
+					.getList(partial);
+			if (budget < 0) {
+				budget = DistinctPartialCodec.reader(partialResult.get(0))
+						.getLong();
+			}
+			DistinctPartialCodec.Reader reader = DistinctPartialCodec
+					.reader(partialResult.get(1));
+			if (reader.type() == DistinctPartialCodec.TYPE_HLL) {
+				HyperLogLogPlus that;
+				try {
+					that = HyperLogLogPlus.Builder.build(reader.readBytes());
+				} catch (IOException e) {
+					throw new HiveException(
+							"Failed to parse byte[] from partial result. ", e);
+				}
+				if (ab.sketch == null) {
+					promote(ab, that);
+				} else {
+					try {
+						ab.sketch.addAll(that);
+					} catch (Exception e) {
+						throw new HiveException(
+								"Failed to merge HyperLogLog++ sketches. ", e);
+					}
+				}
+			} else if (ab.sketch != null) {
+				reader.forEachLong(new TLongProcedure() {
+					@Override
+					public boolean execute(long value) {
+						ab.sketch.offerHashed(Murmur3.hash64(value));
+						return true;
+					}
+				});
+			} else {
+				reader.readInto(ab.exact);
+				checkBudget(ab);
+			}
+		}
+
+		@Override
+		public Object terminate(AggregationBuffer aggregationBuffer)
+				throws HiveException {
+			AdaptiveBuffer ab = (AdaptiveBuffer) aggregationBuffer;
+			ArrayList<Object> result = new ArrayList<Object>();
+			if (ab.sketch != null) {
+				result.add(new LongWritable(ab.sketch.cardinality()));
+				result.add(new BooleanWritable(false));
+			} else {
+				result.add(new LongWritable(ab.exact.size()));
+				result.add(new BooleanWritable(true));
+			}
+			return result;
+		}
+
+		private void checkBudget(AdaptiveBuffer ab) throws HiveException {
+			if ((long) ab.exact.size() * BYTES_PER_ELEMENT > budget) {
+				promote(ab, null);
+			}
+		}
+
+		/**
+		 * Replaces the exact set with a sketch seeded from it, merged with
+		 * {@code that} if given.
+		 */
+		private static void promote(final AdaptiveBuffer ab,
+				HyperLogLogPlus that) throws HiveException {
+			final HyperLogLogPlus sketch = that != null ? that
+					: new HyperLogLogPlus(HLL_P);
+			ab.exact.forEach(new TLongProcedure() {
+				@Override
+				public boolean execute(long value) {
+					sketch.offerHashed(Murmur3.hash64(value));
+					return true;
+				}
+			});
+			LOG.debug("Promoting exact set of " + ab.exact.size()
+					+ " values to HyperLogLog++");
+			ab.exact = null;
+			ab.sketch = sketch;
+		}
+
+		/**
+		 * Holds the exact set until it is promoted, the sketch afterwards.
+		 */
+		@AggregationType(estimable = true)
+		static class AdaptiveBuffer extends AbstractAggregationBuffer {
+			TLongHashSet exact;
+			HyperLogLogPlus sketch;
+
+			@Override
+			public int estimate() {
+				if (sketch != null) {
+					return sketch.sizeof();
+				}
+				return exact == null ? 0 : exact.capacity() * 9;
+			}
+		}
+	}
+}
@@ -1,6 +1,5 @@
 package com.wandisco.hive.udaf;
 
-import gnu.trove.set.hash.TLongHashSet;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
@@ -12,19 +11,23 @@ import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 
-import java.io.*;
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.List;
 
-@Description(name = "count_distinct_bitset", value = "_FUNC_(x) - Distinct count for long values", extended = "Example:"
+/**
+ * Exact distinct count over a bitmap of {@code x - base}, for dense ID
+ * ranges. The bitmap is a {@link PartitionedBitSet}, so offsets anywhere in
+ * the long range are counted, not only those that fit a 31 bit
+ * {@link java.util.BitSet} index.
+ */
+@Description(name = "count_distinct_bitset", value = "_FUNC_(x, [base, [size]]) - Distinct count for long values", extended = "Example:"
 		+ "\n> SELECT count_distinct_bitset(values) FROM src")
 public class UDAFCntBitSet extends AbstractGenericUDAFResolver { // implements
 																	// GenericUDAFResolver2
@@ -137,7 +140,9 @@ public class UDAFCntBitSet extends AbstractGenericUDAFResolver { // implements
 		@Override
 		public void reset(AggregationBuffer aggregationBuffer)
 				throws HiveException {
-			((CntAggregationBuffer) aggregationBuffer).set.clear();
+			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
+			ceb.bitmap.clear();
+			ceb.hasBase = false;
 		}
 
 		@Override
@@ -147,28 +152,19 @@ public class UDAFCntBitSet extends AbstractGenericUDAFResolver { // implements
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			Object x = ObjectInspectorUtils.copyToStandardObject(parameters[0],
-					inputPrimitiveOI, ObjectInspectorCopyOption.JAVA);
+			long x = PrimitiveObjectInspectorUtils.getLong(parameters[0],
+					inputPrimitiveOI);
 
-			long value = Math.abs((Long) x - baseValue);
-			if (value > 0 && value < Integer.MAX_VALUE)
-				ceb.set.set((int) value);
+			// wraps rather than overflows, so distinct values stay distinct
+			ceb.bitmap.add(x - baseValue);
 		}
 
 		@Override
 		public Object terminatePartial(AggregationBuffer aggregationBuffer)
 				throws HiveException {
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			ByteArrayOutputStream b = new ByteArrayOutputStream();
-			try {
-				ObjectOutputStream o = new ObjectOutputStream(b);
-				o.writeObject(ceb.set);
-			} catch (IOException e) {
-				throw new HiveException(e.getMessage());
-			}
-			byte[] arr = b.toByteArray();
 			List<BytesWritable> bl = new ArrayList<BytesWritable>();
-			bl.add(new BytesWritable(arr));
+			bl.add(ceb.bitmap.serialize(ceb.hasBase ? ceb.base : baseValue));
 			return bl;
 		}
 
@@ -179,45 +175,60 @@ public class UDAFCntBitSet extends AbstractGenericUDAFResolver { // implements
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			BitSet mSet = null;
-
-			try {
-				List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
-						.getList(partial);
-				BytesWritable partialBytes = partialResult.get(0);
-				ByteArrayInputStream bais = new ByteArrayInputStream(
-						partialBytes.getBytes());
-				ObjectInputStream oi = new ObjectInputStream(bais);
-				mSet = (BitSet) oi.readObject();
-			} catch (Exception e) {
-				throw new HiveException(e.getMessage());
+			List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
+					.getList(partial);
+			DistinctPartialCodec.Reader reader = DistinctPartialCodec
+					.reader(partialResult.get(0));
+			mergeBase(ceb, reader);
+			ceb.bitmap.or(reader);
+		}
+
+		/**
+		 * Partials record the base their values are relative to. The merge
+		 * modes get no base argument, so the buffer takes it from the first
+		 * partial and rejects partials of another base. Empty partials carry
+		 * no values, so their base is neither checked nor taken.
+		 */
+		private static void mergeBase(CntAggregationBuffer ceb,
+				DistinctPartialCodec.Reader reader) throws HiveException {
+			if (reader.count() == 0) {
+				return;
+			}
+			if (!ceb.hasBase) {
+				ceb.base = reader.base();
+				ceb.hasBase = true;
+			} else if (ceb.base != reader.base()) {
+				throw new HiveException("Cannot merge values relative to base "
+						+ reader.base() + " into values relative to "
+						+ ceb.base);
 			}
-			ceb.set.or(mSet);
 		}
 
 		@Override
 		public Object terminate(AggregationBuffer aggregationBuffer)
 				throws HiveException {
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			if (ceb.set == null) {
-				return null;
-			}
-			return new LongWritable(ceb.set.cardinality());
+			return new LongWritable(ceb.bitmap.cardinality());
 		}
 
+		@AggregationType(estimable = true)
 		static class CntAggregationBuffer extends AbstractAggregationBuffer { // implements
 																				// AggregationBuffer
 																				// {
 			// TLongHashSet hash = new TLongHashSet();
 
-			BitSet set = null;
+			PartitionedBitSet bitmap = null;
+			// base of the merged partials, see mergeBase
+			long base;
+			boolean hasBase;
+
+			@Override
+			public int estimate() {
+				return (int) Math.min(Integer.MAX_VALUE, bitmap.sizeInBytes());
+			}
 
 			void init(int size) {
-				if (size == 0) {
-					set = new BitSet();
-				} else {
-					set = new BitSet(size);
-				}
+				bitmap = new PartitionedBitSet(size);
 			}
 
 			/*
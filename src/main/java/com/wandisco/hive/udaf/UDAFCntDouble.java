@@ -3,6 +3,7 @@ package com.wandisco.hive.udaf;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
@@ -11,8 +12,8 @@ import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DoubleWritable;
@@ -20,11 +21,7 @@ import org.apache.hadoop.io.LongWritable;
 
 import gnu.trove.set.hash.TDoubleHashSet;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -72,6 +69,9 @@ public class UDAFCntDouble extends AbstractGenericUDAFResolver { // implements
 		// intermediate results
 		StandardListObjectInspector partialOI;
 
+		// see DistinctConf.MERGE_THREADS
+		private ParallelMerge parallel = DistinctConf.parallelMerge(null);
+
 		public ObjectInspector init(Mode m, ObjectInspector[] parameters)
 				throws HiveException {
 			super.init(m, parameters);
@@ -102,6 +102,16 @@ public class UDAFCntDouble extends AbstractGenericUDAFResolver { // implements
 			}
 		}
 
+		@Override
+		public void configure(MapredContext mapredContext) {
+			parallel = DistinctConf.parallelMerge(mapredContext);
+		}
+
+		@Override
+		public void close() throws IOException {
+			parallel.close();
+		}
+
 		@Override
 		public AggregationBuffer getNewAggregationBuffer() throws HiveException {
 			CntAggregationBuffer ceb = new CntAggregationBuffer();
@@ -112,7 +122,9 @@ public class UDAFCntDouble extends AbstractGenericUDAFResolver { // implements
 		@Override
 		public void reset(AggregationBuffer aggregationBuffer)
 				throws HiveException {
-			((CntAggregationBuffer) aggregationBuffer).hash = new TDoubleHashSet();
+			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
+			ceb.hash = new TDoubleHashSet();
+			ceb.parts = null;
 		}
 
 		@Override
@@ -122,26 +134,23 @@ public class UDAFCntDouble extends AbstractGenericUDAFResolver { // implements
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			Object x = ObjectInspectorUtils.copyToStandardObject(parameters[0],
-					inputPrimitiveOI, ObjectInspectorCopyOption.JAVA);
-			Long value = (Long) x;
-			ceb.hash.add(value);
+			ceb.hash.add(PrimitiveObjectInspectorUtils.getDouble(parameters[0],
+					inputPrimitiveOI));
 		}
 
 		@Override
 		public Object terminatePartial(AggregationBuffer aggregationBuffer)
 				throws HiveException {
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			ByteArrayOutputStream b = new ByteArrayOutputStream();
-			try {
-				ObjectOutputStream o = new ObjectOutputStream(b);
-				o.writeObject(ceb.hash);
-			} catch (IOException e) {
-				throw new HiveException(e.getMessage());
+			if (ceb.parts != null) {
+				// merged in parallel, gather the sub-sets again
+				for (int i = 0; i < ceb.parts.length; i++) {
+					ceb.hash.addAll(ceb.parts[i]);
+				}
+				ceb.parts = null;
 			}
-			byte[] arr = b.toByteArray();
 			List<BytesWritable> bl = new ArrayList<BytesWritable>();
-			bl.add(new BytesWritable(arr));
+			bl.add(DistinctPartialCodec.encodeDoubles(ceb.hash));
 			return bl;
 		}
 
@@ -152,33 +161,19 @@ public class UDAFCntDouble extends AbstractGenericUDAFResolver { // implements
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			TDoubleHashSet hh = null;
-			try {
-				List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
-						.getList(partial);
-				BytesWritable partialBytes = partialResult.get(0);
-				ByteArrayInputStream bais = new ByteArrayInputStream(
-						partialBytes.getBytes());
-				ObjectInputStream oi = new ObjectInputStream(bais);
-				hh = (TDoubleHashSet) oi.readObject();
-			} catch (Exception e) {
-				throw new HiveException(e.getMessage());
-			}
-			mergeHashSets(hh, ceb);
-		}
-
-		private void mergeHashSets(TDoubleHashSet hh, CntAggregationBuffer ceb) {
-			if (ceb.hash.size() == 0) {
-				ceb.hash = hh;
-				return;
-			}
-			if (ceb.hash.size() > hh.size()) {
-				ceb.hash.addAll(hh);
+			List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
+					.getList(partial);
+			DistinctPartialCodec.Reader reader = DistinctPartialCodec
+					.reader(partialResult.get(0));
+			if (parallel.isEnabled()) {
+				if (ceb.parts == null) {
+					ceb.parts = parallel.split(ceb.hash);
+					ceb.hash = new TDoubleHashSet();
+				}
+				parallel.addAll(reader, ceb.parts);
 			} else {
-				hh.addAll(ceb.hash);
-				ceb.hash = hh;
+				reader.readInto(ceb.hash);
 			}
-
 		}
 
 		@Override
@@ -188,13 +183,30 @@ public class UDAFCntDouble extends AbstractGenericUDAFResolver { // implements
 			if (ceb.hash == null) {
 				return null;
 			}
-			return new LongWritable(ceb.hash.size());
+			long size = ceb.hash.size();
+			if (ceb.parts != null) {
+				size += ParallelMerge.size(ceb.parts);
+			}
+			return new LongWritable(size);
 		}
 
+		@AggregationType(estimable = true)
 		static class CntAggregationBuffer extends AbstractAggregationBuffer { // implements
 																				// AggregationBuffer
 																				// {
 			TDoubleHashSet hash = new TDoubleHashSet();
+			// disjoint sub-sets of a group merged in parallel, hash is then
+			// empty
+			TDoubleHashSet[] parts;
+
+			@Override
+			public int estimate() {
+				long capacity = hash.capacity();
+				if (parts != null) {
+					capacity += ParallelMerge.capacity(parts);
+				}
+				return (int) Math.min(Integer.MAX_VALUE, capacity * 9);
+			}
 
 		}
 	}
@@ -1,12 +1,10 @@
 package com.wandisco.hive.udaf;
 
-import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
-import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
-import com.clearspring.analytics.stream.cardinality.ICardinality;
 import com.clearspring.analytics.stream.cardinality.LinearCounting;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
@@ -14,16 +12,15 @@ import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
-import org.apache.hadoop.hive.serde2.lazy.LazyBinary;
-import org.apache.hadoop.hive.serde2.lazy.LazyString;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
@@ -36,14 +33,23 @@ import java.util.List;
  * performance and use improved HyperLogLog++ algorithm.
  */
 
-@Description(name = "approx_distinct_hll", value = "_FUNC_(x) - Adds values from x to new HyperLogLogPlus Cardinality Estimator "
-		+ "\nReturns a long cardinality", extended = "Example:"
-		+ "\n> SELECT approx_distinct(values) FROM src; -- calls HyperLogLogPlus with b=16")
+@Description(name = "approx_distinct_hll", value = "_FUNC_(x, [p, [sp]]) - Adds values from x to new HyperLogLogPlus Cardinality Estimator "
+		+ "with precision p (default 16) and sparse precision sp (default 25, 0 disables the sparse representation)"
+		+ "\nReturns a long cardinality. x may also be a struct whose binary field holds sketches from approx_distinct_hll_sketch, which are merged", extended = "Example:"
+		+ "\n> SELECT approx_distinct_hll(values) FROM src; -- calls HyperLogLogPlus with p=16, sp=25"
+		+ "\n> SELECT approx_distinct_hll(values, 14) FROM src; -- p=14, sp=25"
+		+ "\n> SELECT approx_distinct_hll(named_struct('binary', sketch)) FROM daily; -- merges stored sketches")
 public class UDAFCntHLL extends AbstractGenericUDAFResolver { // implements
 																// GenericUDAFResolver2
 																// {
 	static final Log LOG = LogFactory.getLog(UDAFCntHLL.class.getName());
 	public static final String BINARY = "binary";
+	public static final int DEFAULT_P = 16;
+	// sparse representation until the sketch would be smaller dense
+	public static final int DEFAULT_SP = 25;
+	public static final int MIN_P = 4;
+	public static final int MAX_P = 18;
+	public static final int MAX_SP = 32;
 
 	@Override
 	public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo info)
@@ -56,32 +62,65 @@ public class UDAFCntHLL extends AbstractGenericUDAFResolver { // implements
 							+ parameters[0].getTypeName()
 							+ " was passed as parameter 1.");
 		}
-		if (parameters.length == 2) {
-			if (parameters[1].getCategory() != ObjectInspector.Category.PRIMITIVE) {
-				throw new UDFArgumentTypeException(1,
-						"Only primitive type arguments are accepted but "
-								+ parameters[1].getTypeName()
-								+ " was passed as parameter 2.");
-			}
-			if (((PrimitiveTypeInfo) parameters[1]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.INT) {
-				throw new UDFArgumentTypeException(1,
-						"Only a int argument is accepted as parameter 2, but "
-								+ parameters[1].getTypeName()
-								+ " was passed instead.");
-			}
+		if (parameters.length > 3)
+			throw new IllegalArgumentException(
+					"Function only takes 1 to 3 parameters.");
+
+		ObjectInspector[] parameterOIs = info.getParameterObjectInspectors();
+		int p = DEFAULT_P;
+		int sp = DEFAULT_SP;
+		if (parameters.length > 1) {
+			p = constantInt(parameters, parameterOIs, 1);
+		}
+		if (parameters.length > 2) {
+			sp = constantInt(parameters, parameterOIs, 2);
 		}
+		if (p < MIN_P || p > MAX_P) {
+			throw new UDFArgumentException("Precision p must be between "
+					+ MIN_P + " and " + MAX_P + " but was " + p);
+		}
+		if (sp != 0 && (sp < p || sp > MAX_SP)) {
+			throw new UDFArgumentException(
+					"Sparse precision sp must be 0 (no sparse mode) or between p="
+							+ p + " and " + MAX_SP + " but was " + sp);
+		}
+		return newEvaluator(p, sp);
+	}
 
-		if (parameters.length > 2)
-			throw new IllegalArgumentException(
-					"Function only takes 1 or 2 parameters.");
+	protected CardinalityEstimatorEvaluator newEvaluator(int p, int sp) {
+		return new CardinalityEstimatorEvaluator(p, sp);
+	}
 
-		return new CardinalityEstimatorEvaluator();
+	/**
+	 * Reads a constant int argument, which getEvaluator needs to validate
+	 * before any rows are seen.
+	 */
+	static int constantInt(TypeInfo[] parameters,
+			ObjectInspector[] parameterOIs, int i) throws SemanticException {
+		if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE
+				|| ((PrimitiveTypeInfo) parameters[i]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.INT) {
+			throw new UDFArgumentTypeException(i,
+					"Only a int argument is accepted as parameter " + (i + 1)
+							+ ", but " + parameters[i].getTypeName()
+							+ " was passed instead.");
+		}
+		if (!(parameterOIs[i] instanceof ConstantObjectInspector)) {
+			throw new UDFArgumentTypeException(i, "Parameter " + (i + 1)
+					+ " must be a constant");
+		}
+		Object value = ((ConstantObjectInspector) parameterOIs[i])
+				.getWritableConstantValue();
+		if (value == null) {
+			throw new UDFArgumentTypeException(i, "Parameter " + (i + 1)
+					+ " must not be null");
+		}
+		return ((IntWritable) value).get();
 	}
 
 	@Override
 	public GenericUDAFEvaluator getEvaluator(TypeInfo[] typeInfos)
 			throws SemanticException {
-		return new CardinalityEstimatorEvaluator();
+		return newEvaluator(DEFAULT_P, DEFAULT_SP);
 	}
 
 	/**
@@ -94,10 +133,30 @@ public class UDAFCntHLL extends AbstractGenericUDAFResolver { // implements
 		PrimitiveObjectInspector inputPrimitiveOI;
 		StructObjectInspector inputStructOI;
 		PrimitiveObjectInspector paramOI;
+		SketchHasher hasher;
+		// stored sketches, the binary field of a struct input
+		BinaryObjectInspector sketchOI;
+		StructField sketchField;
 
 		// intermediate results
 		StandardListObjectInspector partialOI;
 
+		// sketch parameters, validated in getEvaluator
+		private int p;
+		private int sp;
+
+		// terminate returns the serialised sketch rather than its cardinality
+		protected boolean sketchOutput;
+
+		public CardinalityEstimatorEvaluator() {
+			this(DEFAULT_P, DEFAULT_SP);
+		}
+
+		public CardinalityEstimatorEvaluator(int p, int sp) {
+			this.p = p;
+			this.sp = sp;
+		}
+
 		public ObjectInspector init(Mode m, ObjectInspector[] parameters)
 				throws HiveException {
 			super.init(m, parameters);
@@ -108,7 +167,10 @@ public class UDAFCntHLL extends AbstractGenericUDAFResolver { // implements
 				ObjectInspector.Category cat = parameters[0].getCategory();
 				switch (cat) {
 				case PRIMITIVE:
+					// binary columns are values like any other, stored
+					// sketches only merge through a struct
 					inputPrimitiveOI = (PrimitiveObjectInspector) parameters[0];
+					hasher = new SketchHasher(inputPrimitiveOI);
 					switch (parameters.length) {
 					case 2:
 						paramOI = (PrimitiveObjectInspector) parameters[1];
@@ -117,6 +179,13 @@ public class UDAFCntHLL extends AbstractGenericUDAFResolver { // implements
 					break;
 				case STRUCT:
 					inputStructOI = (StructObjectInspector) parameters[0];
+					sketchField = inputStructOI.getStructFieldRef(BINARY);
+					if (!(sketchField.getFieldObjectInspector() instanceof BinaryObjectInspector)) {
+						throw new UDFArgumentTypeException(0, "Struct field "
+								+ BINARY + " must be binary");
+					}
+					sketchOI = (BinaryObjectInspector) sketchField
+							.getFieldObjectInspector();
 					break;
 				default:
 					throw new IllegalArgumentException(
@@ -133,6 +202,8 @@ public class UDAFCntHLL extends AbstractGenericUDAFResolver { // implements
 			if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
 				return ObjectInspectorFactory
 						.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.writableBinaryObjectInspector);
+			} else if (sketchOutput) {
+				return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
 			} else {
 				return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
 			}
@@ -157,37 +228,25 @@ public class UDAFCntHLL extends AbstractGenericUDAFResolver { // implements
 			if (parameters[0] == null) {
 				return;
 			}
-			/*
-			 * int param = -1; if (parameters.length == 2) { param =
-			 * PrimitiveObjectInspectorUtils.getInt(parameters[1], paramOI); }
-			 */
 			CardinalityEstimatorBuffer ceb = (CardinalityEstimatorBuffer) aggregationBuffer;
 
 			Object obj = parameters[0];
 			if (inputPrimitiveOI != null) {
 				// in this case, we process the object directly
 				if (ceb.cardinalityEstimator == null) {
-					// ceb.cardinalityEstimator = new HyperLogLogPlus(param < 0
-					// ? HLL_DEFAULT_B : param);
-					ceb.cardinalityEstimator = new HyperLogLogPlus(16);
+					ceb.cardinalityEstimator = new HLLSketch(p, sp);
 				}
-				ceb.cardinalityEstimator.offer(obj);
-			} else if (inputStructOI != null) {
-				// in this case we merge estimators
-				// LazyString type = (LazyString)
-				// inputStructOI.getStructFieldData(obj,
-				// inputStructOI.getStructFieldRef(ESTIMATOR_TYPE));
-				try {
-					LazyBinary lb = (LazyBinary) inputStructOI
-							.getStructFieldData(obj,
-									inputStructOI.getStructFieldRef(BINARY));
-					ICardinality that = HyperLogLogPlus.Builder.build(lb
-							.getWritableObject().getBytes());
-					mergeEstimators(that, ceb);
-				} catch (IOException e) {
-					throw new HiveException(
-							"Failed to parse byte[] from partial result. ", e);
+				ceb.cardinalityEstimator.offerHashed(hasher.hash(obj));
+			} else {
+				// in this case we merge stored sketches
+				if (inputStructOI != null) {
+					obj = inputStructOI.getStructFieldData(obj, sketchField);
+					if (obj == null) {
+						return;
+					}
 				}
+				mergeEstimators(HLLSketch.deserialize(sketchOI
+						.getPrimitiveWritableObject(obj)), ceb);
 			}
 		}
 
@@ -208,17 +267,14 @@ public class UDAFCntHLL extends AbstractGenericUDAFResolver { // implements
 				throws HiveException {
 			CardinalityEstimatorBuffer ceb = (CardinalityEstimatorBuffer) aggregationBuffer;
 
-			try {
-				byte[] ceBytes = ceb.cardinalityEstimator.getBytes();
-				List<BytesWritable> b = new ArrayList<BytesWritable>();
-				b.add(new BytesWritable(tb));
-				b.add(new BytesWritable(ceBytes));
-				return b;
-			} catch (IOException e) {
-				throw new HiveException(
-						"Failed to extract byte[] during partial termination. ",
-						e);
+			if (ceb.cardinalityEstimator == null) {
+				// every row was null
+				ceb.cardinalityEstimator = new HLLSketch(p, sp);
 			}
+			List<BytesWritable> b = new ArrayList<BytesWritable>();
+			b.add(new BytesWritable(tb));
+			b.add(ceb.cardinalityEstimator.serialize());
+			return b;
 		}
 
 		/**
@@ -252,15 +308,7 @@ public class UDAFCntHLL extends AbstractGenericUDAFResolver { // implements
 			BytesWritable partialBytes = partialResult.get(1);
 
 			// Parse the serialised partial result and merge
-			try {
-				ICardinality partialEstimator = HyperLogLogPlus.Builder
-						.build(partialBytes.getBytes());
-				mergeEstimators(partialEstimator, ceb);
-			} catch (IOException e) {
-				throw new HiveException(
-						"Failed to extract byte[] during partial termination: "
-								+ e.getMessage(), e);
-			}
+			mergeEstimators(HLLSketch.deserialize(partialBytes), ceb);
 		}
 
 		/**
@@ -268,9 +316,9 @@ public class UDAFCntHLL extends AbstractGenericUDAFResolver { // implements
 		 * 
 		 * @param aggregationBuffer
 		 *            current state of the aggregation
-		 * @return Hive struct data type, {type: string, cardinality: bigint,
-		 *         binary: binary}, containing the type of the estimator, the
-		 *         estimated cardinality, and the serialised estimator
+		 * @return the estimated cardinality as a bigint, or with
+		 *         {@link #sketchOutput} the serialised estimator as binary, see
+		 *         {@link HLLSketch#serialize()}
 		 * @throws HiveException
 		 */
 		@Override
@@ -280,21 +328,10 @@ public class UDAFCntHLL extends AbstractGenericUDAFResolver { // implements
 			if (ceb.cardinalityEstimator == null) {
 				return null;
 			}
-			try {
-				ArrayList<Object> result = new ArrayList<Object>();
-				result.add(new Text("HLL"));
-				long cardinality = ceb.cardinalityEstimator instanceof HyperLogLogPlus ? ((HyperLogLogPlus) ceb.cardinalityEstimator)
-						.cardinality() : ceb.cardinalityEstimator.cardinality();
-				return new LongWritable(cardinality);
-				// result.add(new LongWritable(cardinality));
-				// result.add(new
-				// BytesWritable(ceb.cardinalityEstimator.getBytes()));
-				// return result;
-			} catch (Exception e) {
-				throw new HiveException(
-						"Failed to extract serialised Cardinality Estimator instance. ",
-						e);
+			if (sketchOutput) {
+				return ceb.cardinalityEstimator.serialize();
 			}
+			return new LongWritable(ceb.cardinalityEstimator.cardinality());
 		}
 
 		// HELPER METHODS //
@@ -309,39 +346,31 @@ public class UDAFCntHLL extends AbstractGenericUDAFResolver { // implements
 		 *            the current aggregation buffer instance
 		 * @throws HiveException
 		 */
-		private static void mergeEstimators(ICardinality thatEstimator,
+		private static void mergeEstimators(HLLSketch thatEstimator,
 				CardinalityEstimatorBuffer thisEstimatorBuffer)
 				throws HiveException {
-			try {
-				if (thisEstimatorBuffer.cardinalityEstimator == null) {
-					thisEstimatorBuffer.cardinalityEstimator = thatEstimator;
-					LOG.debug("Aggregation buffer is null, using THAT partial instance. Cardinality result = "
-							+ thisEstimatorBuffer.cardinalityEstimator
-									.cardinality());
-				} else {
-					// LOG.debug("Merging estimator instances, with THIS partial result = "
-					// + thisEstimatorBuffer.cardinalityEstimator.cardinality()
-					// +
-					// " and THAT partial result = " +
-					// thatEstimator.cardinality());
-					thisEstimatorBuffer.cardinalityEstimator = thisEstimatorBuffer.cardinalityEstimator
-							.merge(thatEstimator);
-					// LOG.debug("MERGED partial result = " +
-					// thisEstimatorBuffer.cardinalityEstimator.cardinality());
-				}
-			} catch (CardinalityMergeException e) {
-				throw new HiveException(
-						"Failed to merge Cardinality Estimator instances due to cardinality error. ",
-						e);
+			if (thisEstimatorBuffer.cardinalityEstimator == null) {
+				thisEstimatorBuffer.cardinalityEstimator = thatEstimator;
+				LOG.debug("Aggregation buffer is null, using THAT partial instance. Cardinality result = "
+						+ thisEstimatorBuffer.cardinalityEstimator.cardinality());
+			} else {
+				thisEstimatorBuffer.cardinalityEstimator.addAll(thatEstimator);
 			}
 		}
 
 		/**
-		 * Wrapper for {@link ICardinality} instance to which values are added
+		 * Wrapper for {@link HLLSketch} instance to which values are added
 		 */
+		@AggregationType(estimable = true)
 		static class CardinalityEstimatorBuffer extends
 				AbstractAggregationBuffer { // implements AggregationBuffer {
-			ICardinality cardinalityEstimator;
+			HLLSketch cardinalityEstimator;
+
+			@Override
+			public int estimate() {
+				return cardinalityEstimator == null ? 0 : cardinalityEstimator
+						.sizeof();
+			}
 		}
 	}
 }
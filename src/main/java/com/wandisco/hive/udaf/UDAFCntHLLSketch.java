@@ -0,0 +1,28 @@
+package com.wandisco.hive.udaf;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+
+/**
+ * approx_distinct_hll, returning the HyperLogLog++ sketch instead of its
+ * cardinality. The sketch can be stored in a binary column and rolled up
+ * later by passing that column back to either function as the binary field
+ * of a struct: daily sketches give weekly or monthly distincts without
+ * rescanning the raw data. A plain binary column is counted as values.
+ * <p>
+ * Sketches only merge with sketches of the same precision p.
+ * </p>
+ */
+@Description(name = "approx_distinct_hll_sketch", value = "_FUNC_(x, [p, [sp]]) - Same as approx_distinct_hll but returns the serialised "
+		+ "HyperLogLog++ sketch as binary. x may itself be a struct whose binary field holds stored sketches, which are merged", extended = "Example:"
+		+ "\n> INSERT INTO TABLE daily SELECT day, approx_distinct_hll_sketch(user_id) FROM events GROUP BY day;"
+		+ "\n> SELECT approx_distinct_hll(named_struct('binary', sketch)) FROM daily WHERE day BETWEEN '2016-01-01' AND '2016-01-07';")
+public class UDAFCntHLLSketch extends UDAFCntHLL {
+
+	@Override
+	protected CardinalityEstimatorEvaluator newEvaluator(int p, int sp) {
+		CardinalityEstimatorEvaluator evaluator = new CardinalityEstimatorEvaluator(
+				p, sp);
+		evaluator.sketchOutput = true;
+		return evaluator;
+	}
+}
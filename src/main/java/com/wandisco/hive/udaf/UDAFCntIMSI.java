@@ -4,6 +4,7 @@ import gnu.trove.set.hash.TLongHashSet;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
@@ -12,14 +13,13 @@ import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.LongWritable;
 
-import java.io.*;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -67,6 +67,19 @@ public class UDAFCntIMSI extends AbstractGenericUDAFResolver { // implements
 		// intermediate results
 		StandardListObjectInspector partialOI;
 
+		// FastPFOR instead of varint gaps in terminatePartial
+		private boolean pfor;
+
+		// groups past DistinctConf.OFFHEAP_THRESHOLD move to off-heap sets
+		private OffHeapLongSet.Pool offHeap = DistinctConf.offHeapPool(null);
+
+		// values a group holds in memory before its runs spill to disk
+		private long spillThreshold;
+		private final SortedLongRuns.SpillFiles spillFiles = new SortedLongRuns.SpillFiles();
+
+		private IMSIParser parser;
+		private MapredContext context;
+
 		public ObjectInspector init(Mode m, ObjectInspector[] parameters)
 				throws HiveException {
 			super.init(m, parameters);
@@ -79,6 +92,8 @@ public class UDAFCntIMSI extends AbstractGenericUDAFResolver { // implements
 				switch (cat) {
 				case PRIMITIVE:
 					inputPrimitiveOI = (PrimitiveObjectInspector) parameters[0];
+					parser = new IMSIParser(inputPrimitiveOI);
+					parser.setContext(context);
 					break;
 				default:
 					throw new IllegalArgumentException(
@@ -97,6 +112,17 @@ public class UDAFCntIMSI extends AbstractGenericUDAFResolver { // implements
 			}
 		}
 
+		@Override
+		public void configure(MapredContext mapredContext) {
+			pfor = DistinctConf.usePFor(mapredContext);
+			offHeap = DistinctConf.offHeapPool(mapredContext);
+			spillThreshold = DistinctConf.spillThreshold(mapredContext);
+			context = mapredContext;
+			if (parser != null) {
+				parser.setContext(context);
+			}
+		}
+
 		@Override
 		public AggregationBuffer getNewAggregationBuffer() throws HiveException {
 			CntAggregationBuffer ceb = new CntAggregationBuffer();
@@ -107,7 +133,18 @@ public class UDAFCntIMSI extends AbstractGenericUDAFResolver { // implements
 		@Override
 		public void reset(AggregationBuffer aggregationBuffer)
 				throws HiveException {
-			((CntAggregationBuffer) aggregationBuffer).hash = new TLongHashSet();
+			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
+			releaseOffHeap(ceb);
+			ceb.hash = new TLongHashSet();
+			ceb.runs.clear();
+			ceb.runs.setSpillThreshold(spillThreshold);
+			ceb.runs.setSpillFiles(spillFiles);
+		}
+
+		@Override
+		public void close() throws IOException {
+			offHeap.releaseAll();
+			spillFiles.deleteAll();
 		}
 
 		@Override
@@ -117,25 +154,66 @@ public class UDAFCntIMSI extends AbstractGenericUDAFResolver { // implements
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			Object x = ObjectInspectorUtils.copyToStandardObject(parameters[0],
-					inputPrimitiveOI, ObjectInspectorCopyOption.JAVA);
-			ceb.hash.add(IMSI2Long((String) x));
+			long value = parser.parse(parameters[0]);
+			boolean added = ceb.offHeapHash != null ? ceb.offHeapHash
+					.add(value) : ceb.hash.add(value);
+			if (added) {
+				flushIfFull(ceb);
+			}
+		}
+
+		/**
+		 * Sorts a set that reached the spill threshold into the runs, which
+		 * then spill to disk, or else moves a hot heap set off heap.
+		 */
+		private void flushIfFull(CntAggregationBuffer ceb)
+				throws HiveException {
+			if (ceb.offHeapHash != null) {
+				if (spillThreshold > 0
+						&& ceb.offHeapHash.size() >= spillThreshold) {
+					drainOffHeap(ceb);
+				}
+			} else if (spillThreshold > 0 && ceb.hash.size() >= spillThreshold) {
+				ceb.runs.addAll(ceb.hash);
+			} else {
+				moveOffHeapIfHot(ceb);
+			}
+		}
+
+		private void moveOffHeapIfHot(CntAggregationBuffer ceb) {
+			if (offHeap.isHot(ceb.hash.size())) {
+				ceb.offHeapHash = offHeap.allocate(2L * ceb.hash.size());
+				ceb.offHeapHash.addAll(ceb.hash);
+				ceb.hash = new TLongHashSet();
+			}
+		}
+
+		/**
+		 * Moves the off-heap set, if any, into the sorted runs and frees it.
+		 */
+		private void drainOffHeap(CntAggregationBuffer ceb)
+				throws HiveException {
+			if (ceb.offHeapHash != null) {
+				ceb.runs.addAll(ceb.offHeapHash);
+				releaseOffHeap(ceb);
+			}
+		}
+
+		private void releaseOffHeap(CntAggregationBuffer ceb) {
+			if (ceb.offHeapHash != null) {
+				offHeap.release(ceb.offHeapHash);
+				ceb.offHeapHash = null;
+			}
 		}
 
 		@Override
 		public Object terminatePartial(AggregationBuffer aggregationBuffer)
 				throws HiveException {
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			ByteArrayOutputStream b = new ByteArrayOutputStream();
-			try {
-				ObjectOutputStream o = new ObjectOutputStream(b);
-				o.writeObject(ceb.hash);
-			} catch (IOException e) {
-				throw new HiveException(e.getMessage());
-			}
-			byte[] arr = b.toByteArray();
+			drainOffHeap(ceb);
+			ceb.runs.addAll(ceb.hash);
 			List<BytesWritable> bl = new ArrayList<BytesWritable>();
-			bl.add(new BytesWritable(arr));
+			bl.add(ceb.runs.encode(pfor));
 			return bl;
 		}
 
@@ -146,33 +224,21 @@ public class UDAFCntIMSI extends AbstractGenericUDAFResolver { // implements
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			TLongHashSet hh = null;
-			try {
-				List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
-						.getList(partial);
-				BytesWritable partialBytes = partialResult.get(0);
-				ByteArrayInputStream bais = new ByteArrayInputStream(
-						partialBytes.getBytes());
-				ObjectInputStream oi = new ObjectInputStream(bais);
-				hh = (TLongHashSet) oi.readObject();
-			} catch (Exception e) {
-				throw new HiveException(e.getMessage());
-			}
-			mergeHashSets(hh, ceb);
-		}
-
-		private void mergeHashSets(TLongHashSet hh, CntAggregationBuffer ceb) {
-			if (ceb.hash.size() == 0) {
-				ceb.hash = hh;
-				return;
-			}
-			if (ceb.hash.size() > hh.size()) {
-				ceb.hash.addAll(hh);
+			List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
+					.getList(partial);
+			DistinctPartialCodec.Reader reader = DistinctPartialCodec
+					.reader(partialResult.get(0));
+			if (reader.isSorted()) {
+				// sorted partials are merge-unioned, see SortedLongRuns
+				ceb.runs.add(reader.readSortedLongs(), reader.count());
 			} else {
-				hh.addAll(ceb.hash);
-				ceb.hash = hh;
+				if (ceb.offHeapHash != null) {
+					reader.readInto(ceb.offHeapHash);
+				} else {
+					reader.readInto(ceb.hash);
+				}
+				flushIfFull(ceb);
 			}
-
 		}
 
 		@Override
@@ -182,40 +248,27 @@ public class UDAFCntIMSI extends AbstractGenericUDAFResolver { // implements
 			if (ceb.hash == null) {
 				return null;
 			}
-			return new LongWritable(ceb.hash.size());
+			drainOffHeap(ceb);
+			ceb.runs.addAll(ceb.hash);
+			return new LongWritable(ceb.runs.count());
 		}
 
+		@AggregationType(estimable = true)
 		static class CntAggregationBuffer extends AbstractAggregationBuffer { // implements
 																				// AggregationBuffer
 																				// {
+			SortedLongRuns runs = new SortedLongRuns();
 			TLongHashSet hash = new TLongHashSet(100000);
+			// replaces hash once the group is hot
+			OffHeapLongSet offHeapHash;
 
-		}
-
-		private long IMSI2Long(String imsi) {
-			long num = 0;
-			int len = imsi.length();
-			if (len < 10)
-				return -1;
-			char ch = imsi.charAt(len - 1);
-			long suffix = 0;
-			String snum;
-			if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z')) {
-				suffix = Character.getNumericValue(ch);
-				snum = imsi.substring(0, len - 1);
-			} else {
-				snum = imsi;
+			// heap only, an off-heap set is not counted
+			@Override
+			public int estimate() {
+				return (int) Math.min(Integer.MAX_VALUE, hash.capacity() * 9L
+						+ runs.sizeInBytes());
 			}
 
-			try {
-				num = Long.parseLong(snum);
-			} catch (Exception e) {
-				System.err.println("Can not parse num:" + snum);
-				num = 0;
-			}
-
-			return num * 100 + suffix;
 		}
-
 	}
 }
\ No newline at end of file
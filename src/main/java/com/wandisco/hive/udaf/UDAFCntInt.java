@@ -4,20 +4,21 @@ import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 
-import java.io.*;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -72,6 +73,9 @@ public class UDAFCntInt extends AbstractGenericUDAFResolver { // implementsGener
 		private long baseValue = 0;
 		private int baseSize = 0;
 
+		// groups past DistinctConf.OFFHEAP_THRESHOLD move to off-heap sets
+		private OffHeapLongSet.Pool offHeap = DistinctConf.offHeapPool(null);
+
 		public ObjectInspector init(Mode m, ObjectInspector[] parameters)
 				throws HiveException {
 			super.init(m, parameters);
@@ -120,6 +124,11 @@ public class UDAFCntInt extends AbstractGenericUDAFResolver { // implementsGener
 			}
 		}
 
+		@Override
+		public void configure(MapredContext mapredContext) {
+			offHeap = DistinctConf.offHeapPool(mapredContext);
+		}
+
 		@Override
 		public AggregationBuffer getNewAggregationBuffer() throws HiveException {
 			CntAggregationBuffer ceb = new CntAggregationBuffer();
@@ -131,7 +140,15 @@ public class UDAFCntInt extends AbstractGenericUDAFResolver { // implementsGener
 		@Override
 		public void reset(AggregationBuffer aggregationBuffer)
 				throws HiveException {
-			((CntAggregationBuffer) aggregationBuffer).hash.clear();
+			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
+			releaseOffHeap(ceb);
+			ceb.hash.clear();
+			ceb.hasBase = false;
+		}
+
+		@Override
+		public void close() throws IOException {
+			offHeap.releaseAll();
 		}
 
 		@Override
@@ -141,27 +158,46 @@ public class UDAFCntInt extends AbstractGenericUDAFResolver { // implementsGener
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			Object x = ObjectInspectorUtils.copyToStandardObject(parameters[0],
-					inputPrimitiveOI, ObjectInspectorCopyOption.JAVA);
+			long x = PrimitiveObjectInspectorUtils.getLong(parameters[0],
+					inputPrimitiveOI);
+
+			long value = Math.abs(x - baseValue);
+			if (ceb.offHeapHash != null) {
+				ceb.offHeapHash.add((int) value);
+			} else if (ceb.hash.add((int) value)) {
+				moveOffHeapIfHot(ceb);
+			}
+		}
 
-			long value = Math.abs((Long) x - baseValue);
-			ceb.hash.add((int) value);
+		private void moveOffHeapIfHot(CntAggregationBuffer ceb) {
+			if (offHeap.isHot(ceb.hash.size())) {
+				ceb.offHeapHash = offHeap.allocate(2L * ceb.hash.size());
+				ceb.offHeapHash.addAll(ceb.hash);
+				ceb.init(baseSize);
+			}
+		}
+
+		private void releaseOffHeap(CntAggregationBuffer ceb) {
+			if (ceb.offHeapHash != null) {
+				offHeap.release(ceb.offHeapHash);
+				ceb.offHeapHash = null;
+			}
 		}
 
 		@Override
 		public Object terminatePartial(AggregationBuffer aggregationBuffer)
 				throws HiveException {
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			ByteArrayOutputStream b = new ByteArrayOutputStream();
-			try {
-				ObjectOutputStream o = new ObjectOutputStream(b);
-				o.writeObject(ceb.hash);
-			} catch (IOException e) {
-				throw new HiveException(e.getMessage());
-			}
-			byte[] arr = b.toByteArray();
 			List<BytesWritable> bl = new ArrayList<BytesWritable>();
-			bl.add(new BytesWritable(arr));
+			long base = ceb.hasBase ? ceb.base : baseValue;
+			if (ceb.offHeapHash != null) {
+				bl.add(DistinctPartialCodec.encodeIntRange(base,
+						ceb.offHeapHash));
+				// Hive resets or drops the buffer after terminatePartial
+				releaseOffHeap(ceb);
+			} else {
+				bl.add(DistinctPartialCodec.encodeIntRange(base, ceb.hash));
+			}
 			return bl;
 		}
 
@@ -172,32 +208,38 @@ public class UDAFCntInt extends AbstractGenericUDAFResolver { // implementsGener
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			TIntHashSet hh = null;
-
-			try {
-				List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
-						.getList(partial);
-				BytesWritable partialBytes = partialResult.get(0);
-				ByteArrayInputStream bais = new ByteArrayInputStream(
-						partialBytes.getBytes());
-				ObjectInputStream oi = new ObjectInputStream(bais);
-				hh = (TIntHashSet) oi.readObject();
-			} catch (Exception e) {
-				throw new HiveException(e.getMessage());
+			List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
+					.getList(partial);
+			DistinctPartialCodec.Reader reader = DistinctPartialCodec
+					.reader(partialResult.get(0));
+			mergeBase(ceb, reader);
+			if (ceb.offHeapHash != null) {
+				reader.readInto(ceb.offHeapHash);
+			} else {
+				reader.readInto(ceb.hash);
+				moveOffHeapIfHot(ceb);
 			}
-			mergeHashSets(hh, ceb);
 		}
 
-		private void mergeHashSets(TIntHashSet hh, CntAggregationBuffer ceb) {
-			if (ceb.hash.size() == 0) {
-				ceb.hash = hh;
+		/**
+		 * Partials record the base their values are relative to. The merge
+		 * modes get no base argument, so the buffer takes it from the first
+		 * partial and rejects partials of another base. Empty partials carry
+		 * no values, so their base is neither checked nor taken.
+		 */
+		private static void mergeBase(CntAggregationBuffer ceb,
+				DistinctPartialCodec.Reader reader) throws HiveException {
+			if (reader.type() != DistinctPartialCodec.TYPE_INT_RANGE
+					|| reader.count() == 0) {
 				return;
 			}
-			if (ceb.hash.size() > hh.size()) {
-				ceb.hash.addAll(hh);
-			} else {
-				hh.addAll(ceb.hash);
-				ceb.hash = hh;
+			if (!ceb.hasBase) {
+				ceb.base = reader.base();
+				ceb.hasBase = true;
+			} else if (ceb.base != reader.base()) {
+				throw new HiveException("Cannot merge values relative to base "
+						+ reader.base() + " into values relative to "
+						+ ceb.base);
 			}
 		}
 
@@ -208,13 +250,27 @@ public class UDAFCntInt extends AbstractGenericUDAFResolver { // implementsGener
 			if (ceb.hash == null) {
 				return null;
 			}
+			if (ceb.offHeapHash != null) {
+				return new LongWritable(ceb.offHeapHash.size());
+			}
 			return new LongWritable(ceb.hash.size());
 		}
 
+		@AggregationType(estimable = true)
 		static class CntAggregationBuffer extends AbstractAggregationBuffer { // implements
 																				// AggregationBuffer
 
 			TIntHashSet hash = null;
+			// replaces hash once the group is hot
+			OffHeapLongSet offHeapHash;
+			// base of the merged partials, see mergeBase
+			long base;
+			boolean hasBase;
+
+			@Override
+			public int estimate() {
+				return hash == null ? 0 : hash.capacity() * 5;
+			}
 
 			void init(int size) {
 				if (size == 0) {
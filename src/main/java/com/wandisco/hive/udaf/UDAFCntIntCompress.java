@@ -1,12 +1,6 @@
 package com.wandisco.hive.udaf;
 
 import gnu.trove.set.hash.TIntHashSet;
-import me.lemire.integercompression.Composition;
-import me.lemire.integercompression.FastPFOR;
-import me.lemire.integercompression.IntWrapper;
-import me.lemire.integercompression.IntegerCODEC;
-import me.lemire.integercompression.VariableByte;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
@@ -17,8 +11,8 @@ import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.IntWritable;
@@ -27,10 +21,7 @@ import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 
 //import UDAFCntLong.CountEvaluator;
 
-import java.io.*;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.BitSet;
 import java.util.List;
 
 @Description(name = "count_distinct_int", value = "_FUNC_(x) - Distinct count for long values", extended = "Example:"
@@ -67,8 +58,6 @@ public class UDAFCntIntCompress extends AbstractGenericUDAFResolver { // impleme
 	}
 
 	public static class CountEvaluator extends GenericUDAFEvaluator {
-		private static final float FILL_FACTOR = 0.75f;
-
 		// private Object[] partialResult;
 
 		// inputs
@@ -149,8 +138,8 @@ public class UDAFCntIntCompress extends AbstractGenericUDAFResolver { // impleme
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			Object x = ObjectInspectorUtils.copyToStandardObject(parameters[0],
-					inputPrimitiveOI, ObjectInspectorCopyOption.JAVA);
+			long x = PrimitiveObjectInspectorUtils.getLong(parameters[0],
+					inputPrimitiveOI);
 
 			/*
 			 * int value=0; try { value = Integer.parseInt((String) x); // value
@@ -161,7 +150,7 @@ public class UDAFCntIntCompress extends AbstractGenericUDAFResolver { // impleme
 			 */
 			// long value = Math.abs((Long) x - baseValue);
 
-			long value = (Long) x;
+			long value = x;
 			if (value < 1) {
 				return;
 			}
@@ -169,40 +158,24 @@ public class UDAFCntIntCompress extends AbstractGenericUDAFResolver { // impleme
 
 		}
 
+		/**
+		 * The set as {@link DistinctPartialCodec#TYPE_INT_RANGE}, with the
+		 * exact count in the header. The values are not offset by the base
+		 * argument here, so the recorded base is 0.
+		 */
 		@Override
 		public Object terminatePartial(AggregationBuffer aggregationBuffer)
 				throws HiveException {
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			ByteArrayOutputStream b = new ByteArrayOutputStream();
-			try {
-				ObjectOutputStream o = new ObjectOutputStream(b);
-				IntegerCODEC codec = new Composition(new FastPFOR(),
-						new VariableByte());
-				// compressing
-				IntWrapper inputoffset = new IntWrapper(0);
-				IntWrapper outputoffset = new IntWrapper(0);
-				// TIntSet set1 = new TIntHashSet();
-				int[] compressed = new int[ceb.hash.size()];
-
-				codec.compress(ceb.hash.toArray(), inputoffset,
-						ceb.hash.size(), compressed, outputoffset);
-
-				compressed = Arrays.copyOf(compressed, outputoffset.intValue());
-
-				o.writeObject(compressed);
-				compressed = null;
-				codec = null;
-				outputoffset = null;
-				inputoffset = null;
-			} catch (IOException e) {
-				throw new HiveException(e.getMessage());
-			}
-			byte[] arr = b.toByteArray();
 			List<BytesWritable> bl = new ArrayList<BytesWritable>();
-			bl.add(new BytesWritable(arr));
+			bl.add(DistinctPartialCodec.encodeIntRange(0, ceb.hash));
 			return bl;
 		}
 
+		/**
+		 * Decodes the partial straight into the buffer's set, a bitmap word by
+		 * word and a sorted list block by block.
+		 */
 		@Override
 		public void merge(AggregationBuffer aggregationBuffer, Object partial)
 				throws HiveException {
@@ -210,57 +183,9 @@ public class UDAFCntIntCompress extends AbstractGenericUDAFResolver { // impleme
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			TIntHashSet hh1 = null;
-			IntegerCODEC codec = new Composition(new FastPFOR(),
-					new VariableByte());
-
-			int[] hh;
-			try {
-				List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
-						.getList(partial);
-				BytesWritable partialBytes = partialResult.get(0);
-				ByteArrayInputStream bais = new ByteArrayInputStream(
-						partialBytes.getBytes());
-				ObjectInputStream oi = new ObjectInputStream(bais);
-				hh = (int[]) oi.readObject();
-				if (hh != null && hh.length >= 0) {
-					int[] recovered = new int[hh.length * 30];
-					// Arrays.fill(recovered, -1);
-
-					IntWrapper recoffset = new IntWrapper(0);
-					codec.uncompress(hh, new IntWrapper(0), hh.length,
-							recovered, recoffset);
-					if (recovered.length >= 0) {
-						hh1 = new TIntHashSet(recovered.length, FILL_FACTOR, 0);
-
-						hh1.addAll(recovered);
-					}
-
-					hh = null;
-					recovered = null;
-					recoffset = null;
-					codec = null;
-				}
-				// hh = (TIntHashSet)oi.readObject();
-			} catch (Exception e) {
-				e.printStackTrace();
-				throw new HiveException(e);
-			}
-			mergeHashSets(hh1, ceb);
-			ceb.hash.remove(0);
-		}
-
-		private void mergeHashSets(TIntHashSet hh, CntAggregationBuffer ceb) {
-			if (ceb.hash.size() == 0) {
-				ceb.hash = hh;
-				return;
-			}
-			if (ceb.hash.size() > hh.size()) {
-				ceb.hash.addAll(hh);
-			} else {
-				hh.addAll(ceb.hash);
-				ceb.hash = hh;
-			}
+			List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
+					.getList(partial);
+			DistinctPartialCodec.reader(partialResult.get(0)).readInto(ceb.hash);
 		}
 
 		@Override
@@ -273,6 +198,7 @@ public class UDAFCntIntCompress extends AbstractGenericUDAFResolver { // impleme
 			return new LongWritable(ceb.hash.size());
 		}
 
+		@AggregationType(estimable = true)
 		static class CntAggregationBuffer extends AbstractAggregationBuffer { // implements
 																				// AggregationBuffer
 																				// {
@@ -280,6 +206,11 @@ public class UDAFCntIntCompress extends AbstractGenericUDAFResolver { // impleme
 
 			TIntHashSet hash = null;
 
+			@Override
+			public int estimate() {
+				return hash == null ? 0 : hash.capacity() * 5;
+			}
+
 			void init(int size) {
 				if (size == 0) {
 					hash = new TIntHashSet();
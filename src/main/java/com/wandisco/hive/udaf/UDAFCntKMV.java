@@ -1,31 +1,22 @@
 package com.wandisco.hive.udaf;
 
-import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
-import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
-import com.clearspring.analytics.stream.cardinality.ICardinality;
-import com.clearspring.analytics.stream.cardinality.LinearCounting;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
 import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
-import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
-import org.apache.hadoop.hive.serde2.lazy.LazyBinary;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
-import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
-import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
 
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -35,12 +26,14 @@ import java.util.List;
  * performance a bit and split implementations.
  */
 
-@Description(name = "approx_distinct_kmv", value = "_FUNC_(x) - Adds values from x to new K-Minimum Values Estimator, "
-		+ "\nReturns a long cardinality", extended = "Example:"
-		+ "\n> SELECT approx_distinct_kmv(values) FROM src; -- defaults to KMV with b=5000")
-public class UDAFCntKMV extends AbstractGenericUDAFResolver { // implements
-																// GenericUDAFResolver2
-																// {
+@Description(name = "approx_distinct_kmv", value = "_FUNC_(x, [k]) - Adds values from x to new K-Minimum Values Estimator "
+		+ "keeping the k (default 4096) smallest hashes"
+		+ "\nReturns a long cardinality, exact below k distinct values. x may also be a struct whose binary field holds sketches"
+		+ " from approx_distinct_kmv_sketch, which are merged", extended = "Example:"
+		+ "\n> SELECT approx_distinct_kmv(values) FROM src; -- KMV with k=4096"
+		+ "\n> SELECT approx_distinct_kmv(values, 16384) FROM src; -- k=16384, about 0.8% error"
+		+ "\n> SELECT approx_distinct_kmv(named_struct('binary', sketch)) FROM daily; -- merges stored sketches")
+public class UDAFCntKMV extends AbstractGenericUDAFResolver {
 	static final Log LOG = LogFactory.getLog(UDAFCntKMV.class.getName());
 	public static final String BINARY = "binary";
 
@@ -57,67 +50,86 @@ public class UDAFCntKMV extends AbstractGenericUDAFResolver { // implements
 							+ parameters[0].getTypeName()
 							+ " was passed as parameter 1.");
 		}
-		if (parameters.length == 2) {
-			if (parameters[1].getCategory() != ObjectInspector.Category.PRIMITIVE) {
-				throw new UDFArgumentTypeException(1,
-						"Only primitive type arguments are accepted but "
-								+ parameters[1].getTypeName()
-								+ " was passed as parameter 2.");
-			}
-			if (((PrimitiveTypeInfo) parameters[1]).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.INT) {
-				throw new UDFArgumentTypeException(1,
-						"Only a int argument is accepted as parameter 2, but "
-								+ parameters[1].getTypeName()
-								+ " was passed instead.");
-			}
-		}
-
 		if (parameters.length > 2)
 			throw new IllegalArgumentException(
 					"Function only takes 1 or 2 parameters.");
 
-		return new CardinalityEstimatorEvaluator();
+		int k = KMVSketch.DEFAULT_K;
+		if (parameters.length == 2) {
+			k = UDAFCntHLL.constantInt(parameters,
+					info.getParameterObjectInspectors(), 1);
+		}
+		if (k < KMVSketch.MIN_K || k > KMVSketch.MAX_K) {
+			throw new UDFArgumentException("k must be between "
+					+ KMVSketch.MIN_K + " and " + KMVSketch.MAX_K
+					+ " but was " + k);
+		}
+		return newEvaluator(k);
+	}
+
+	protected CardinalityEstimatorEvaluator newEvaluator(int k) {
+		return new CardinalityEstimatorEvaluator(k);
 	}
 
 	@Override
 	public GenericUDAFEvaluator getEvaluator(TypeInfo[] typeInfos)
 			throws SemanticException {
-		return new CardinalityEstimatorEvaluator();
+		return newEvaluator(KMVSketch.DEFAULT_K);
 	}
 
 	/**
-	 * Class to evaluate values, and add them to an approximate cardinality
-	 * estimator datastructure. Currently HyperLogLog and Linear Counting are
-	 * supported.
+	 * Class to evaluate values, and add them to a {@link KMVSketch}.
 	 */
 	public static class CardinalityEstimatorEvaluator extends
 			GenericUDAFEvaluator {
 		PrimitiveObjectInspector inputPrimitiveOI;
 		StructObjectInspector inputStructOI;
-		PrimitiveObjectInspector paramOI;
+		SketchHasher hasher;
+		// stored sketches, the binary field of a struct input
+		BinaryObjectInspector sketchOI;
+		StructField sketchField;
 
 		// intermediate results
 		StandardListObjectInspector partialOI;
 
+		// validated in getEvaluator
+		private int k;
+
+		// terminate returns the serialised sketch rather than its cardinality
+		protected boolean sketchOutput;
+
+		public CardinalityEstimatorEvaluator() {
+			this(KMVSketch.DEFAULT_K);
+		}
+
+		public CardinalityEstimatorEvaluator(int k) {
+			this.k = k;
+		}
+
 		public ObjectInspector init(Mode m, ObjectInspector[] parameters)
 				throws HiveException {
 			super.init(m, parameters);
 
 			// init input object inspectors
 			if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
-				assert (parameters.length >= 1 && parameters.length <= 3);
+				assert (parameters.length >= 1 && parameters.length <= 2);
 				ObjectInspector.Category cat = parameters[0].getCategory();
 				switch (cat) {
 				case PRIMITIVE:
+					// binary columns are values like any other, stored
+					// sketches only merge through a struct
 					inputPrimitiveOI = (PrimitiveObjectInspector) parameters[0];
-					switch (parameters.length) {
-					case 2:
-						paramOI = (PrimitiveObjectInspector) parameters[1];
-						break;
-					}
+					hasher = new SketchHasher(inputPrimitiveOI);
 					break;
 				case STRUCT:
 					inputStructOI = (StructObjectInspector) parameters[0];
+					sketchField = inputStructOI.getStructFieldRef(BINARY);
+					if (!(sketchField.getFieldObjectInspector() instanceof BinaryObjectInspector)) {
+						throw new UDFArgumentTypeException(0, "Struct field "
+								+ BINARY + " must be binary");
+					}
+					sketchOI = (BinaryObjectInspector) sketchField
+							.getFieldObjectInspector();
 					break;
 				default:
 					throw new IllegalArgumentException(
@@ -134,6 +146,8 @@ public class UDAFCntKMV extends AbstractGenericUDAFResolver { // implements
 			if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
 				return ObjectInspectorFactory
 						.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.writableBinaryObjectInspector);
+			} else if (sketchOutput) {
+				return PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
 			} else {
 				return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
 			}
@@ -158,33 +172,25 @@ public class UDAFCntKMV extends AbstractGenericUDAFResolver { // implements
 			if (parameters[0] == null) {
 				return;
 			}
-
-			int param = -1;
-			if (parameters.length == 2) {
-				param = PrimitiveObjectInspectorUtils.getInt(parameters[1],
-						paramOI);
-			}
-
 			CardinalityEstimatorBuffer ceb = (CardinalityEstimatorBuffer) aggregationBuffer;
 
 			Object obj = parameters[0];
 			if (inputPrimitiveOI != null) {
 				// in this case, we process the object directly
 				if (ceb.cardinalityEstimator == null) {
-					ceb.cardinalityEstimator = new LinearCounting.Builder(5000)
-							.build();
+					ceb.cardinalityEstimator = new KMVSketch(k);
+				}
+				ceb.cardinalityEstimator.offerHashed(hasher.hash(obj));
+			} else {
+				// in this case we merge stored sketches
+				if (inputStructOI != null) {
+					obj = inputStructOI.getStructFieldData(obj, sketchField);
+					if (obj == null) {
+						return;
+					}
 				}
-				ceb.cardinalityEstimator.offer(obj);
-			} else if (inputStructOI != null) {
-				// in this case we merge estimators
-				// LazyString type = (LazyString)
-				// inputStructOI.getStructFieldData(obj,
-				// inputStructOI.getStructFieldRef(ESTIMATOR_TYPE));
-				LazyBinary lb = (LazyBinary) inputStructOI.getStructFieldData(
-						obj, inputStructOI.getStructFieldRef(BINARY));
-				ICardinality that = new LinearCounting(lb.getWritableObject()
-						.getBytes());
-				mergeEstimators(that, ceb);
+				mergeEstimators(KMVSketch.deserialize(sketchOI
+						.getPrimitiveWritableObject(obj)), ceb);
 			}
 		}
 
@@ -192,7 +198,7 @@ public class UDAFCntKMV extends AbstractGenericUDAFResolver { // implements
 
 		/**
 		 * Return partial result of aggregation.
-		 * 
+		 *
 		 * @param aggregationBuffer
 		 *            current state of the aggregation
 		 * @return partial result, in the form of a list of
@@ -205,22 +211,19 @@ public class UDAFCntKMV extends AbstractGenericUDAFResolver { // implements
 				throws HiveException {
 			CardinalityEstimatorBuffer ceb = (CardinalityEstimatorBuffer) aggregationBuffer;
 
-			try {
-				byte[] ceBytes = ceb.cardinalityEstimator.getBytes();
-				List<BytesWritable> b = new ArrayList<BytesWritable>();
-				b.add(new BytesWritable(tb));
-				b.add(new BytesWritable(ceBytes));
-				return b;
-			} catch (IOException e) {
-				throw new HiveException(
-						"Failed to extract byte[] during partial termination. ",
-						e);
+			if (ceb.cardinalityEstimator == null) {
+				// every row was null
+				ceb.cardinalityEstimator = new KMVSketch(k);
 			}
+			List<BytesWritable> b = new ArrayList<BytesWritable>();
+			b.add(new BytesWritable(tb));
+			b.add(ceb.cardinalityEstimator.serialize());
+			return b;
 		}
 
 		/**
 		 * Merges a partial estimator
-		 * 
+		 *
 		 * @param aggregationBuffer
 		 *            current state of the aggregation
 		 * @param partial
@@ -239,29 +242,19 @@ public class UDAFCntKMV extends AbstractGenericUDAFResolver { // implements
 			List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
 					.getList(partial);
 			assert (partialResult.size() == 2);
-			BytesWritable partialString = partialResult.get(0);
-			String type = null;
-			try {
-				type = new String(partialString.getBytes(), "UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				throw new HiveException(e);
-			}
-			BytesWritable partialBytes = partialResult.get(1);
 
 			// Parse the serialised partial result and merge
-			ICardinality partialEstimator = new LinearCounting(
-					partialBytes.getBytes());
-			mergeEstimators(partialEstimator, ceb);
+			mergeEstimators(KMVSketch.deserialize(partialResult.get(1)), ceb);
 		}
 
 		/**
 		 * Return the final state of the aggregation
-		 * 
+		 *
 		 * @param aggregationBuffer
 		 *            current state of the aggregation
-		 * @return Hive struct data type, {type: string, cardinality: bigint,
-		 *         binary: binary}, containing the type of the estimator, the
-		 *         estimated cardinality, and the serialised estimator
+		 * @return the estimated cardinality as a bigint, or with
+		 *         {@link #sketchOutput} the serialised estimator as binary, see
+		 *         {@link KMVSketch#serialize()}
 		 * @throws HiveException
 		 */
 		@Override
@@ -271,21 +264,10 @@ public class UDAFCntKMV extends AbstractGenericUDAFResolver { // implements
 			if (ceb.cardinalityEstimator == null) {
 				return null;
 			}
-			try {
-				ArrayList<Object> result = new ArrayList<Object>();
-				result.add(new Text("HLL"));
-				long cardinality = ceb.cardinalityEstimator instanceof LinearCounting ? ((LinearCounting) ceb.cardinalityEstimator)
-						.cardinality() : ceb.cardinalityEstimator.cardinality();
-				return new LongWritable(cardinality);
-				// result.add(new LongWritable(cardinality));
-				// result.add(new
-				// BytesWritable(ceb.cardinalityEstimator.getBytes()));
-				// return result;
-			} catch (Exception e) {
-				throw new HiveException(
-						"Failed to extract serialised Cardinality Estimator instance. ",
-						e);
+			if (sketchOutput) {
+				return ceb.cardinalityEstimator.serialize();
 			}
+			return new LongWritable(ceb.cardinalityEstimator.cardinality());
 		}
 
 		// HELPER METHODS //
@@ -293,47 +275,36 @@ public class UDAFCntKMV extends AbstractGenericUDAFResolver { // implements
 		/**
 		 * Either merge a partial estimator into the current aggregation buffer,
 		 * or if the buffer is empty, simply set to the partial estimator
-		 * 
+		 *
 		 * @param thatEstimator
 		 *            the cardinality estimator to merge in
 		 * @param thisEstimatorBuffer
 		 *            the current aggregation buffer instance
-		 * @throws HiveException
 		 */
-		private static void mergeEstimators(ICardinality thatEstimator,
-				CardinalityEstimatorBuffer thisEstimatorBuffer)
-				throws HiveException {
-			try {
-				if (thisEstimatorBuffer.cardinalityEstimator == null) {
-					thisEstimatorBuffer.cardinalityEstimator = thatEstimator;
-					LOG.debug("Aggregation buffer is null, using THAT partial instance. Cardinality result = "
-							+ thisEstimatorBuffer.cardinalityEstimator
-									.cardinality());
-				} else {
-					LOG.debug("Merging estimator instances, with THIS partial result = "
-							+ thisEstimatorBuffer.cardinalityEstimator
-									.cardinality()
-							+ " and THAT partial result = "
-							+ thatEstimator.cardinality());
-					thisEstimatorBuffer.cardinalityEstimator = thisEstimatorBuffer.cardinalityEstimator
-							.merge(thatEstimator);
-					LOG.debug("MERGED partial result = "
-							+ thisEstimatorBuffer.cardinalityEstimator
-									.cardinality());
-				}
-			} catch (CardinalityMergeException e) {
-				throw new HiveException(
-						"Failed to merge Cardinality Estimator instances due to cardinality error. ",
-						e);
+		private static void mergeEstimators(KMVSketch thatEstimator,
+				CardinalityEstimatorBuffer thisEstimatorBuffer) {
+			if (thisEstimatorBuffer.cardinalityEstimator == null) {
+				thisEstimatorBuffer.cardinalityEstimator = thatEstimator;
+				LOG.debug("Aggregation buffer is null, using THAT partial instance. Cardinality result = "
+						+ thisEstimatorBuffer.cardinalityEstimator.cardinality());
+			} else {
+				thisEstimatorBuffer.cardinalityEstimator.addAll(thatEstimator);
 			}
 		}
 
 		/**
-		 * Wrapper for {@link ICardinality} instance to which values are added
+		 * Wrapper for {@link KMVSketch} instance to which values are added
 		 */
+		@AggregationType(estimable = true)
 		static class CardinalityEstimatorBuffer extends
 				AbstractAggregationBuffer { // implements AggregationBuffer {
-			ICardinality cardinalityEstimator;
+			KMVSketch cardinalityEstimator;
+
+			@Override
+			public int estimate() {
+				return cardinalityEstimator == null ? 0 : cardinalityEstimator
+						.sizeof();
+			}
 		}
 	}
 }
@@ -0,0 +1,27 @@
+package com.wandisco.hive.udaf;
+
+import org.apache.hadoop.hive.ql.exec.Description;
+
+/**
+ * approx_distinct_kmv, returning the KMV sketch instead of its cardinality.
+ * Stored sketches roll up through either function as the binary field of a
+ * struct, like the HyperLogLog ones, see {@link UDAFCntHLLSketch}, and also
+ * give overlap estimates between two sets.
+ * <p>
+ * Sketches of different k merge to the smaller k.
+ * </p>
+ */
+@Description(name = "approx_distinct_kmv_sketch", value = "_FUNC_(x, [k]) - Same as approx_distinct_kmv but returns the serialised "
+		+ "KMV sketch as binary. x may itself be a struct whose binary field holds stored sketches, which are merged", extended = "Example:"
+		+ "\n> INSERT INTO TABLE daily SELECT day, approx_distinct_kmv_sketch(user_id) FROM events GROUP BY day;"
+		+ "\n> SELECT approx_distinct_kmv(named_struct('binary', sketch)) FROM daily WHERE day BETWEEN '2016-01-01' AND '2016-01-07';")
+public class UDAFCntKMVSketch extends UDAFCntKMV {
+
+	@Override
+	protected CardinalityEstimatorEvaluator newEvaluator(int k) {
+		CardinalityEstimatorEvaluator evaluator = new CardinalityEstimatorEvaluator(
+				k);
+		evaluator.sketchOutput = true;
+		return evaluator;
+	}
+}
@@ -1,9 +1,5 @@
 package com.wandisco.hive.udaf;
 
-import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
-import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
-import com.clearspring.analytics.stream.cardinality.ICardinality;
-import com.clearspring.analytics.stream.cardinality.LinearCounting;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
@@ -24,7 +20,6 @@ import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 
-import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
@@ -95,6 +90,7 @@ public class UDAFCntLC extends AbstractGenericUDAFResolver { // implements
 		PrimitiveObjectInspector inputPrimitiveOI;
 		StructObjectInspector inputStructOI;
 		PrimitiveObjectInspector paramOI;
+		SketchHasher hasher;
 
 		// intermediate results
 		StandardListObjectInspector partialOI;
@@ -110,6 +106,7 @@ public class UDAFCntLC extends AbstractGenericUDAFResolver { // implements
 				switch (cat) {
 				case PRIMITIVE:
 					inputPrimitiveOI = (PrimitiveObjectInspector) parameters[0];
+					hasher = new SketchHasher(inputPrimitiveOI);
 					switch (parameters.length) {
 					case 2:
 						paramOI = (PrimitiveObjectInspector) parameters[1];
@@ -171,10 +168,9 @@ public class UDAFCntLC extends AbstractGenericUDAFResolver { // implements
 			if (inputPrimitiveOI != null) {
 				// in this case, we process the object directly
 				if (ceb.cardinalityEstimator == null) {
-					ceb.cardinalityEstimator = new LinearCounting.Builder(
-							1000000).build();
+					ceb.cardinalityEstimator = new HashedLinearCounting(1000000);
 				}
-				ceb.cardinalityEstimator.offer(obj);
+				ceb.cardinalityEstimator.offerHashed(hasher.hash(obj));
 			} else if (inputStructOI != null) {
 				// in this case we merge estimators
 				// LazyString type = (LazyString)
@@ -182,9 +178,8 @@ public class UDAFCntLC extends AbstractGenericUDAFResolver { // implements
 				// inputStructOI.getStructFieldRef(ESTIMATOR_TYPE));
 				LazyBinary lb = (LazyBinary) inputStructOI.getStructFieldData(
 						obj, inputStructOI.getStructFieldRef(BINARY));
-				ICardinality that = new LinearCounting(lb.getWritableObject()
-						.getBytes());
-				mergeEstimators(that, ceb);
+				mergeEstimators(new HashedLinearCounting(lb.getWritableObject()
+						.copyBytes()), ceb);
 			}
 		}
 
@@ -205,17 +200,11 @@ public class UDAFCntLC extends AbstractGenericUDAFResolver { // implements
 				throws HiveException {
 			CardinalityEstimatorBuffer ceb = (CardinalityEstimatorBuffer) aggregationBuffer;
 
-			try {
-				byte[] ceBytes = ceb.cardinalityEstimator.getBytes();
-				List<BytesWritable> b = new ArrayList<BytesWritable>();
-				b.add(new BytesWritable(tb));
-				b.add(new BytesWritable(ceBytes));
-				return b;
-			} catch (IOException e) {
-				throw new HiveException(
-						"Failed to extract byte[] during partial termination. ",
-						e);
-			}
+			byte[] ceBytes = ceb.cardinalityEstimator.getBytes();
+			List<BytesWritable> b = new ArrayList<BytesWritable>();
+			b.add(new BytesWritable(tb));
+			b.add(new BytesWritable(ceBytes));
+			return b;
 		}
 
 		/**
@@ -249,9 +238,8 @@ public class UDAFCntLC extends AbstractGenericUDAFResolver { // implements
 			BytesWritable partialBytes = partialResult.get(1);
 
 			// Parse the serialised partial result and merge
-			ICardinality partialEstimator = new LinearCounting(
-					partialBytes.getBytes());
-			mergeEstimators(partialEstimator, ceb);
+			mergeEstimators(new HashedLinearCounting(partialBytes.copyBytes()),
+					ceb);
 		}
 
 		/**
@@ -274,8 +262,7 @@ public class UDAFCntLC extends AbstractGenericUDAFResolver { // implements
 			try {
 				ArrayList<Object> result = new ArrayList<Object>();
 				result.add(new Text("HLL"));
-				long cardinality = ceb.cardinalityEstimator instanceof LinearCounting ? ((LinearCounting) ceb.cardinalityEstimator)
-						.cardinality() : ceb.cardinalityEstimator.cardinality();
+				long cardinality = ceb.cardinalityEstimator.cardinality();
 				return new LongWritable(cardinality);
 				// result.add(new LongWritable(cardinality));
 				// result.add(new
@@ -300,40 +287,38 @@ public class UDAFCntLC extends AbstractGenericUDAFResolver { // implements
 		 *            the current aggregation buffer instance
 		 * @throws HiveException
 		 */
-		private static void mergeEstimators(ICardinality thatEstimator,
+		private static void mergeEstimators(HashedLinearCounting thatEstimator,
 				CardinalityEstimatorBuffer thisEstimatorBuffer)
 				throws HiveException {
-			try {
-				if (thisEstimatorBuffer.cardinalityEstimator == null) {
-					thisEstimatorBuffer.cardinalityEstimator = thatEstimator;
-					LOG.debug("Aggregation buffer is null, using THAT partial instance. Cardinality result = "
-							+ thisEstimatorBuffer.cardinalityEstimator
-									.cardinality());
-				} else {
-					LOG.debug("Merging estimator instances, with THIS partial result = "
-							+ thisEstimatorBuffer.cardinalityEstimator
-									.cardinality()
-							+ " and THAT partial result = "
-							+ thatEstimator.cardinality());
-					thisEstimatorBuffer.cardinalityEstimator = thisEstimatorBuffer.cardinalityEstimator
-							.merge(thatEstimator);
-					LOG.debug("MERGED partial result = "
-							+ thisEstimatorBuffer.cardinalityEstimator
-									.cardinality());
+			if (thisEstimatorBuffer.cardinalityEstimator == null) {
+				thisEstimatorBuffer.cardinalityEstimator = thatEstimator;
+				LOG.debug("Aggregation buffer is null, using THAT partial instance. Cardinality result = "
+						+ thisEstimatorBuffer.cardinalityEstimator.cardinality());
+			} else {
+				try {
+					thisEstimatorBuffer.cardinalityEstimator.addAll(thatEstimator);
+				} catch (IllegalArgumentException e) {
+					throw new HiveException(
+							"Failed to merge Cardinality Estimator instances due to cardinality error. ",
+							e);
 				}
-			} catch (CardinalityMergeException e) {
-				throw new HiveException(
-						"Failed to merge Cardinality Estimator instances due to cardinality error. ",
-						e);
 			}
 		}
 
 		/**
-		 * Wrapper for {@link ICardinality} instance to which values are added
+		 * Wrapper for {@link HashedLinearCounting} instance to which values are
+		 * added
 		 */
+		@AggregationType(estimable = true)
 		static class CardinalityEstimatorBuffer extends
 				AbstractAggregationBuffer { // implements AggregationBuffer {
-			ICardinality cardinalityEstimator;
+			HashedLinearCounting cardinalityEstimator;
+
+			@Override
+			public int estimate() {
+				return cardinalityEstimator == null ? 0 : cardinalityEstimator
+						.sizeof();
+			}
 		}
 	}
 }
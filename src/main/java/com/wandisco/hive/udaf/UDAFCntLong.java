@@ -5,6 +5,7 @@ import gnu.trove.set.hash.TLongHashSet;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.parse.SemanticException;
@@ -13,14 +14,14 @@ import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.io.LongWritable;
 
-import java.io.*;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -65,6 +66,19 @@ public class UDAFCntLong extends AbstractGenericUDAFResolver { // implements
 		// intermediate results
 		StandardListObjectInspector partialOI;
 
+		// FastPFOR instead of varint gaps in terminatePartial
+		private boolean pfor;
+
+		// groups past DistinctConf.OFFHEAP_THRESHOLD move to off-heap sets
+		private OffHeapLongSet.Pool offHeap = DistinctConf.offHeapPool(null);
+
+		// values a group holds in memory before its runs spill to disk
+		private long spillThreshold;
+		private final SortedLongRuns.SpillFiles spillFiles = new SortedLongRuns.SpillFiles();
+
+		// see DistinctConf.MERGE_THREADS
+		private ParallelMerge parallel = DistinctConf.parallelMerge(null);
+
 		public ObjectInspector init(Mode m, ObjectInspector[] parameters)
 				throws HiveException {
 			super.init(m, parameters);
@@ -95,6 +109,14 @@ public class UDAFCntLong extends AbstractGenericUDAFResolver { // implements
 			}
 		}
 
+		@Override
+		public void configure(MapredContext mapredContext) {
+			pfor = DistinctConf.usePFor(mapredContext);
+			offHeap = DistinctConf.offHeapPool(mapredContext);
+			spillThreshold = DistinctConf.spillThreshold(mapredContext);
+			parallel = DistinctConf.parallelMerge(mapredContext);
+		}
+
 		@Override
 		public AggregationBuffer getNewAggregationBuffer() throws HiveException {
 			CntAggregationBuffer ceb = new CntAggregationBuffer();
@@ -105,7 +127,20 @@ public class UDAFCntLong extends AbstractGenericUDAFResolver { // implements
 		@Override
 		public void reset(AggregationBuffer aggregationBuffer)
 				throws HiveException {
-			((CntAggregationBuffer) aggregationBuffer).hash = new TLongHashSet();
+			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
+			releaseOffHeap(ceb);
+			ceb.hash = new TLongHashSet();
+			ceb.parts = null;
+			ceb.runs.clear();
+			ceb.runs.setSpillThreshold(spillThreshold);
+			ceb.runs.setSpillFiles(spillFiles);
+		}
+
+		@Override
+		public void close() throws IOException {
+			offHeap.releaseAll();
+			spillFiles.deleteAll();
+			parallel.close();
 		}
 
 		@Override
@@ -115,26 +150,80 @@ public class UDAFCntLong extends AbstractGenericUDAFResolver { // implements
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			Object x = ObjectInspectorUtils.copyToStandardObject(parameters[0],
-					inputPrimitiveOI, ObjectInspectorCopyOption.JAVA);
-			Long value = (Long) x;
-			ceb.hash.add(value);
+			long value = PrimitiveObjectInspectorUtils.getLong(parameters[0],
+					inputPrimitiveOI);
+			boolean added = ceb.offHeapHash != null ? ceb.offHeapHash
+					.add(value) : ceb.hash.add(value);
+			if (added) {
+				flushIfFull(ceb);
+			}
+		}
+
+		/**
+		 * Sorts a set that reached the spill threshold into the runs, which
+		 * then spill to disk, or else moves a hot heap set off heap.
+		 */
+		private void flushIfFull(CntAggregationBuffer ceb)
+				throws HiveException {
+			if (ceb.offHeapHash != null) {
+				if (spillThreshold > 0
+						&& ceb.offHeapHash.size() >= spillThreshold) {
+					drainOffHeap(ceb);
+				}
+			} else if (spillThreshold > 0 && ceb.hash.size() >= spillThreshold) {
+				ceb.runs.addAll(ceb.hash);
+			} else {
+				moveOffHeapIfHot(ceb);
+			}
+		}
+
+		private void moveOffHeapIfHot(CntAggregationBuffer ceb) {
+			if (offHeap.isHot(ceb.hash.size())) {
+				ceb.offHeapHash = offHeap.allocate(2L * ceb.hash.size());
+				ceb.offHeapHash.addAll(ceb.hash);
+				ceb.hash = new TLongHashSet();
+			}
+		}
+
+		/**
+		 * Moves the off-heap set, if any, into the sorted runs and frees it.
+		 */
+		private void drainOffHeap(CntAggregationBuffer ceb)
+				throws HiveException {
+			if (ceb.offHeapHash != null) {
+				ceb.runs.addAll(ceb.offHeapHash);
+				releaseOffHeap(ceb);
+			}
+		}
+
+		/**
+		 * Sorts the sub-sets of a group merged in parallel into the runs.
+		 */
+		private void drainParts(CntAggregationBuffer ceb) throws HiveException {
+			if (ceb.parts != null) {
+				for (int i = 0; i < ceb.parts.length; i++) {
+					ceb.runs.addAll(ceb.parts[i]);
+				}
+				ceb.parts = null;
+			}
+		}
+
+		private void releaseOffHeap(CntAggregationBuffer ceb) {
+			if (ceb.offHeapHash != null) {
+				offHeap.release(ceb.offHeapHash);
+				ceb.offHeapHash = null;
+			}
 		}
 
 		@Override
 		public Object terminatePartial(AggregationBuffer aggregationBuffer)
 				throws HiveException {
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			ByteArrayOutputStream b = new ByteArrayOutputStream();
-			try {
-				ObjectOutputStream o = new ObjectOutputStream(b);
-				o.writeObject(ceb.hash);
-			} catch (IOException e) {
-				throw new HiveException(e.getMessage());
-			}
-			byte[] arr = b.toByteArray();
+			drainOffHeap(ceb);
+			drainParts(ceb);
+			ceb.runs.addAll(ceb.hash);
 			List<BytesWritable> bl = new ArrayList<BytesWritable>();
-			bl.add(new BytesWritable(arr));
+			bl.add(ceb.runs.encode(pfor));
 			return bl;
 		}
 
@@ -145,33 +234,32 @@ public class UDAFCntLong extends AbstractGenericUDAFResolver { // implements
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			TLongHashSet hh = null;
-			try {
-				List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
-						.getList(partial);
-				BytesWritable partialBytes = partialResult.get(0);
-				ByteArrayInputStream bais = new ByteArrayInputStream(
-						partialBytes.getBytes());
-				ObjectInputStream oi = new ObjectInputStream(bais);
-				hh = (TLongHashSet) oi.readObject();
-			} catch (Exception e) {
-				throw new HiveException(e.getMessage());
-			}
-			mergeHashSets(hh, ceb);
-		}
-
-		private void mergeHashSets(TLongHashSet hh, CntAggregationBuffer ceb) {
-			if (ceb.hash.size() == 0) {
-				ceb.hash = hh;
-				return;
-			}
-			if (ceb.hash.size() > hh.size()) {
-				ceb.hash.addAll(hh);
+			List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
+					.getList(partial);
+			DistinctPartialCodec.Reader reader = DistinctPartialCodec
+					.reader(partialResult.get(0));
+			if (parallel.isEnabled()) {
+				// hashed into disjoint sub-sets on the pool, see ParallelMerge
+				if (ceb.parts == null) {
+					ceb.parts = parallel.split(ceb.hash);
+					ceb.hash = new TLongHashSet();
+				}
+				parallel.addAll(reader, ceb.parts);
+				if (spillThreshold > 0
+						&& ParallelMerge.size(ceb.parts) >= spillThreshold) {
+					drainParts(ceb);
+				}
+			} else if (reader.isSorted()) {
+				// sorted partials are merge-unioned, see SortedLongRuns
+				ceb.runs.add(reader.readSortedLongs(), reader.count());
 			} else {
-				hh.addAll(ceb.hash);
-				ceb.hash = hh;
+				if (ceb.offHeapHash != null) {
+					reader.readInto(ceb.offHeapHash);
+				} else {
+					reader.readInto(ceb.hash);
+				}
+				flushIfFull(ceb);
 			}
-
 		}
 
 		@Override
@@ -181,13 +269,39 @@ public class UDAFCntLong extends AbstractGenericUDAFResolver { // implements
 			if (ceb.hash == null) {
 				return null;
 			}
-			return new LongWritable(ceb.hash.size());
+			if (ceb.parts != null && ceb.runs.isEmpty() && ceb.hash.isEmpty()
+					&& ceb.offHeapHash == null) {
+				// the sub-sets are disjoint, their sizes add up
+				return new LongWritable(ParallelMerge.size(ceb.parts));
+			}
+			drainOffHeap(ceb);
+			drainParts(ceb);
+			ceb.runs.addAll(ceb.hash);
+			return new LongWritable(ceb.runs.count());
 		}
 
+		@AggregationType(estimable = true)
 		static class CntAggregationBuffer extends AbstractAggregationBuffer { // implements
 																				// AggregationBuffer
 																				// {
+			SortedLongRuns runs = new SortedLongRuns();
 			TLongHashSet hash = new TLongHashSet();
+			// replaces hash once the group is hot
+			OffHeapLongSet offHeapHash;
+			// disjoint sub-sets of a group merged in parallel, hash is then
+			// empty
+			TLongHashSet[] parts;
+
+			// heap only, an off-heap set is not counted
+			@Override
+			public int estimate() {
+				long capacity = hash.capacity();
+				if (parts != null) {
+					capacity += ParallelMerge.capacity(parts);
+				}
+				return (int) Math.min(Integer.MAX_VALUE, capacity * 9L
+						+ runs.sizeInBytes());
+			}
 
 		}
 	}
@@ -0,0 +1,155 @@
+package com.wandisco.hive.udaf;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.*;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exact distinct count over the full 64 bit range, backed by a
+ * {@link RoaringLongBitmap}. Covers both the dense ID spaces handled by
+ * count_distinct_bitset and the sparse ones handled by the SparseBitSet
+ * variant, without their 31 bit window.
+ */
+@Description(name = "count_distinct_roaring", value = "_FUNC_(x) - Distinct count for integer values, using a roaring bitmap", extended = "Example:"
+		+ "\n> SELECT count_distinct_roaring(values) FROM src")
+public class UDAFCntRoaring extends AbstractGenericUDAFResolver {
+
+	static final Log LOG = LogFactory.getLog(UDAFCntRoaring.class.getName());
+
+	@Override
+	public GenericUDAFEvaluator getEvaluator(GenericUDAFParameterInfo info)
+			throws SemanticException {
+		return getEvaluator(info.getParameters());
+	}
+
+	@Override
+	public GenericUDAFEvaluator getEvaluator(TypeInfo[] parameters)
+			throws SemanticException {
+		if (parameters.length != 1) {
+			throw new UDFArgumentLengthException(
+					"count_distinct_roaring takes exactly 1 parameter.");
+		}
+		if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+			throw new UDFArgumentTypeException(0,
+					"Only primitive type argument is accepted but "
+							+ parameters[0].getTypeName()
+							+ " was passed as parameter");
+		}
+		switch (((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory()) {
+		case BYTE:
+		case SHORT:
+		case INT:
+		case LONG:
+			break;
+		default:
+			throw new UDFArgumentTypeException(0,
+					"count_distinct_roaring only accepts integer types but "
+							+ parameters[0].getTypeName()
+							+ " was passed as parameter");
+		}
+		return new CountEvaluator();
+	}
+
+	public static class CountEvaluator extends GenericUDAFEvaluator {
+
+		// inputs
+		PrimitiveObjectInspector inputPrimitiveOI;
+
+		// intermediate results
+		StandardListObjectInspector partialOI;
+
+		public ObjectInspector init(Mode m, ObjectInspector[] parameters)
+				throws HiveException {
+			super.init(m, parameters);
+			if (m == Mode.PARTIAL1 || m == Mode.COMPLETE) {
+				inputPrimitiveOI = (PrimitiveObjectInspector) parameters[0];
+			} else {
+				// partial input object inspector for intermediate results
+				partialOI = (StandardListObjectInspector) parameters[0];
+			}
+			if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+				return ObjectInspectorFactory
+						.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.writableBinaryObjectInspector);
+			} else {
+				return PrimitiveObjectInspectorFactory.writableLongObjectInspector;
+			}
+		}
+
+		@Override
+		public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+			return new CntAggregationBuffer();
+		}
+
+		@Override
+		public void reset(AggregationBuffer aggregationBuffer)
+				throws HiveException {
+			((CntAggregationBuffer) aggregationBuffer).bitmap.clear();
+		}
+
+		@Override
+		public void iterate(AggregationBuffer aggregationBuffer,
+				Object[] parameters) throws HiveException {
+			if (parameters[0] == null) {
+				return;
+			}
+			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
+			ceb.bitmap.add(PrimitiveObjectInspectorUtils.getLong(
+					parameters[0], inputPrimitiveOI));
+		}
+
+		@Override
+		public Object terminatePartial(AggregationBuffer aggregationBuffer)
+				throws HiveException {
+			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
+			List<BytesWritable> bl = new ArrayList<BytesWritable>();
+			bl.add(ceb.bitmap.serialize());
+			return bl;
+		}
+
+		@Override
+		public void merge(AggregationBuffer aggregationBuffer, Object partial)
+				throws HiveException {
+			if (partial == null) {
+				return;
+			}
+			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
+			List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
+					.getList(partial);
+			ceb.bitmap.or(partialResult.get(0));
+		}
+
+		@Override
+		public Object terminate(AggregationBuffer aggregationBuffer)
+				throws HiveException {
+			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
+			return new LongWritable(ceb.bitmap.cardinality());
+		}
+
+		@AggregationType(estimable = true)
+		static class CntAggregationBuffer extends AbstractAggregationBuffer {
+			final RoaringLongBitmap bitmap = new RoaringLongBitmap();
+
+			@Override
+			public int estimate() {
+				return (int) Math.min(Integer.MAX_VALUE, bitmap.sizeInBytes());
+			}
+		}
+	}
+}
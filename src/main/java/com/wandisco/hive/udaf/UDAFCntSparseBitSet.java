@@ -1,6 +1,7 @@
 package com.wandisco.hive.udaf;
 
 import com.zaxxer.sparsebits.SparseBitSet;
+import gnu.trove.procedure.TIntProcedure;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -12,14 +13,13 @@ import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
 import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 
-import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -141,7 +141,9 @@ public class UDAFCntSparseBitSet extends AbstractGenericUDAFResolver { // implem
 		@Override
 		public void reset(AggregationBuffer aggregationBuffer)
 				throws HiveException {
-			((CntAggregationBuffer) aggregationBuffer).set.clear();
+			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
+			ceb.set.clear();
+			ceb.bits = 0;
 		}
 
 		@Override
@@ -151,29 +153,31 @@ public class UDAFCntSparseBitSet extends AbstractGenericUDAFResolver { // implem
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			Object x = ObjectInspectorUtils.copyToStandardObject(parameters[0],
-					inputPrimitiveOI, ObjectInspectorCopyOption.JAVA);
+			long x = PrimitiveObjectInspectorUtils.getLong(parameters[0],
+					inputPrimitiveOI);
 
-			long value = Math.abs((Long) x - baseValue);
+			long value = Math.abs(x - baseValue);
 			if (value > Integer.MAX_VALUE)
 				value = Integer.MAX_VALUE - 1;
-			ceb.set.set((int) value);
+			if (!ceb.set.get((int) value)) {
+				ceb.set.set((int) value);
+				ceb.bits++;
+			}
 		}
 
 		@Override
 		public Object terminatePartial(AggregationBuffer aggregationBuffer)
 				throws HiveException {
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			ByteArrayOutputStream b = new ByteArrayOutputStream();
-			try {
-				ObjectOutputStream o = new ObjectOutputStream(b);
-				o.writeObject(ceb.set);
-			} catch (IOException e) {
-				throw new HiveException(e.getMessage());
+			DistinctPartialCodec.Writer w = new DistinctPartialCodec.Writer(
+					DistinctPartialCodec.TYPE_INT, ceb.set.cardinality(),
+					4L * ceb.set.cardinality());
+			for (int i = ceb.set.nextSetBit(0); i >= 0; i = ceb.set
+					.nextSetBit(i + 1)) {
+				w.putInt(i);
 			}
-			byte[] arr = b.toByteArray();
 			List<BytesWritable> bl = new ArrayList<BytesWritable>();
-			bl.add(new BytesWritable(arr));
+			bl.add(w.toBytesWritable());
 			return bl;
 		}
 
@@ -183,21 +187,21 @@ public class UDAFCntSparseBitSet extends AbstractGenericUDAFResolver { // implem
 			if (partial == null) {
 				return;
 			}
-			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			SparseBitSet mSet = null;
-
-			try {
-				List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
-						.getList(partial);
-				BytesWritable partialBytes = partialResult.get(0);
-				ByteArrayInputStream bais = new ByteArrayInputStream(
-						partialBytes.getBytes());
-				ObjectInputStream oi = new ObjectInputStream(bais);
-				mSet = (SparseBitSet) oi.readObject();
-			} catch (Exception e) {
-				throw new HiveException(e.getMessage());
-			}
-			ceb.set.or(mSet);
+			final CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
+			final SparseBitSet set = ceb.set;
+			List<BytesWritable> partialResult = (List<BytesWritable>) partialOI
+					.getList(partial);
+			DistinctPartialCodec.reader(partialResult.get(0)).forEachInt(
+					new TIntProcedure() {
+						@Override
+						public boolean execute(int value) {
+							if (!set.get(value)) {
+								set.set(value);
+								ceb.bits++;
+							}
+							return true;
+						}
+					});
 		}
 
 		@Override
@@ -210,12 +214,27 @@ public class UDAFCntSparseBitSet extends AbstractGenericUDAFResolver { // implem
 			return new LongWritable(ceb.set.cardinality());
 		}
 
+		@AggregationType(estimable = true)
 		static class CntAggregationBuffer extends AbstractAggregationBuffer { // implements
 																				// AggregationBuffer
 																				// {
 			// TLongHashSet hash = new TLongHashSet();
 
 			SparseBitSet set = null;
+			// distinct bits set, kept for estimate()
+			int bits;
+
+			/**
+			 * A set bit costs at most a 4096 bit block of its own, and the
+			 * set never needs more than a dense bitmap of its span.
+			 */
+			@Override
+			public int estimate() {
+				if (set == null) {
+					return 0;
+				}
+				return (int) Math.min(set.size() >>> 3, 144L * bits);
+			}
 
 			void init(int size) {
 				if (size == 0) {
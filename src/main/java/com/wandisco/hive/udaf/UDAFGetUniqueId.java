@@ -11,7 +11,6 @@ import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFResolver2;
 import org.apache.hadoop.hive.serde2.objectinspector.*;
-import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
@@ -129,9 +128,6 @@ public class UDAFGetUniqueId extends AbstractGenericUDAFResolver { // implements
 				return;
 			}
 			CntAggregationBuffer ceb = (CntAggregationBuffer) aggregationBuffer;
-			Object x = ObjectInspectorUtils.copyToStandardObject(parameters[0],
-					inputPrimitiveOI, ObjectInspectorCopyOption.JAVA);
-
 			// long value = Math.abs((Long) x - baseValue);
 			// ceb.hash.add((int) value);
 		}
@@ -199,6 +195,7 @@ public class UDAFGetUniqueId extends AbstractGenericUDAFResolver { // implements
 			return new LongWritable(ceb.hash.size());
 		}
 
+		@AggregationType(estimable = true)
 		static class CntAggregationBuffer extends AbstractAggregationBuffer { // implements
 																				// AggregationBuffer
 																				// {
@@ -206,6 +203,11 @@ public class UDAFGetUniqueId extends AbstractGenericUDAFResolver { // implements
 
 			TIntHashSet hash = null;
 
+			@Override
+			public int estimate() {
+				return hash == null ? 0 : hash.capacity() * 5;
+			}
+
 			void init() {
 				// TODO: Initialize here!
 
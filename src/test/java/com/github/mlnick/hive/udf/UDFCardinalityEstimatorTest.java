@@ -0,0 +1,146 @@
+package com.github.mlnick.hive.udf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.junit.Test;
+
+import com.wandisco.hive.udaf.HLLSketch;
+import com.wandisco.hive.udaf.KMVSketch;
+import com.wandisco.hive.udaf.Murmur3;
+import com.wandisco.hive.udaf.UDAFCntHLL;
+
+public class UDFCardinalityEstimatorTest {
+
+	private static BytesWritable kmv(long from, long to) {
+		KMVSketch sketch = new KMVSketch(KMVSketch.DEFAULT_K);
+		for (long v = from; v < to; v++) {
+			sketch.offerHashed(Murmur3.hash64(v));
+		}
+		return sketch.serialize();
+	}
+
+	private static BytesWritable hll(long from, long to) throws HiveException {
+		HLLSketch sketch = new HLLSketch(UDAFCntHLL.DEFAULT_P,
+				UDAFCntHLL.DEFAULT_SP);
+		for (long v = from; v < to; v++) {
+			sketch.offerHashed(Murmur3.hash64(v));
+		}
+		return sketch.serialize();
+	}
+
+	private static Object evaluate(GenericUDF udf, BytesWritable... sketches)
+			throws HiveException {
+		ObjectInspector[] ois = new ObjectInspector[sketches.length];
+		DeferredObject[] arguments = new DeferredObject[sketches.length];
+		for (int i = 0; i < sketches.length; i++) {
+			ois[i] = PrimitiveObjectInspectorFactory.writableBinaryObjectInspector;
+			arguments[i] = new DeferredJavaObject(sketches[i]);
+		}
+		udf.initialize(ois);
+		return udf.evaluate(arguments);
+	}
+
+	private static long evaluateLong(GenericUDF udf, BytesWritable... sketches)
+			throws HiveException {
+		return ((LongWritable) evaluate(udf, sketches)).get();
+	}
+
+	private static double jaccard(BytesWritable a, BytesWritable b)
+			throws HiveException {
+		return ((DoubleWritable) evaluate(new UDFSketchJaccard(), a, b)).get();
+	}
+
+	private static void assertWithin(double expected, double actual,
+			double error) {
+		assertEquals(expected, actual, expected * error);
+	}
+
+	@Test
+	public void kmvSetOperations() throws HiveException {
+		// |A & B| = 20000, |A - B| = 40000, |A | B| = 100000
+		BytesWritable a = kmv(0, 60000);
+		BytesWritable b = kmv(40000, 100000);
+		assertWithin(60000, evaluateLong(new UDFSketchCardinality(), a), 0.05);
+		assertWithin(20000, evaluateLong(new UDFSketchIntersect(), a, b),
+				0.15);
+		assertWithin(40000, evaluateLong(new UDFSketchDifference(), a, b),
+				0.1);
+		assertEquals(0.2, jaccard(a, b), 0.03);
+		BytesWritable union = (BytesWritable) evaluate(new UDFSketchUnion(),
+				a, b);
+		assertWithin(100000,
+				evaluateLong(new UDFSketchCardinality(), union), 0.05);
+	}
+
+	@Test
+	public void smallKmvSetOperationsAreExact() throws HiveException {
+		BytesWritable a = kmv(0, 100);
+		BytesWritable b = kmv(50, 150);
+		assertEquals(100, evaluateLong(new UDFSketchCardinality(), a));
+		assertEquals(50, evaluateLong(new UDFSketchIntersect(), a, b));
+		assertEquals(50, evaluateLong(new UDFSketchDifference(), a, b));
+		assertEquals(50 / 150d, jaccard(a, b), 1e-9);
+		assertEquals(150, evaluateLong(new UDFSketchCardinality(),
+				(BytesWritable) evaluate(new UDFSketchUnion(), a, b)));
+	}
+
+	@Test
+	public void hllSetOperations() throws HiveException {
+		BytesWritable a = hll(0, 60000);
+		BytesWritable b = hll(40000, 100000);
+		assertWithin(60000, evaluateLong(new UDFSketchCardinality(), a), 0.05);
+		// inclusion-exclusion carries the error of the union
+		assertWithin(20000, evaluateLong(new UDFSketchIntersect(), a, b),
+				0.25);
+		assertWithin(40000, evaluateLong(new UDFSketchDifference(), a, b),
+				0.15);
+		assertEquals(0.2, jaccard(a, b), 0.05);
+		BytesWritable union = (BytesWritable) evaluate(new UDFSketchUnion(),
+				a, b, hll(90000, 100000));
+		assertWithin(100000,
+				evaluateLong(new UDFSketchCardinality(), union), 0.05);
+	}
+
+	@Test
+	public void unionSkipsNulls() throws HiveException {
+		assertNull(evaluate(new UDFSketchUnion(), null, null));
+		BytesWritable union = (BytesWritable) evaluate(new UDFSketchUnion(),
+				null, kmv(0, 10), null, kmv(5, 20));
+		assertEquals(20, evaluateLong(new UDFSketchCardinality(), union));
+	}
+
+	@Test
+	public void nullSketchesGiveNull() throws HiveException {
+		assertNull(evaluate(new UDFSketchCardinality(), (BytesWritable) null));
+		assertNull(evaluate(new UDFSketchIntersect(), kmv(0, 10), null));
+		assertNull(evaluate(new UDFSketchDifference(), null, kmv(0, 10)));
+		assertNull(evaluate(new UDFSketchJaccard(), null, null));
+	}
+
+	@Test(expected = HiveException.class)
+	public void rejectsMixedKinds() throws HiveException {
+		evaluate(new UDFSketchIntersect(), kmv(0, 10), hll(0, 10));
+	}
+
+	@Test(expected = UDFArgumentException.class)
+	public void rejectsNonBinaryArguments() throws HiveException {
+		new UDFSketchCardinality()
+				.initialize(new ObjectInspector[] { PrimitiveObjectInspectorFactory.writableStringObjectInspector });
+	}
+
+	@Test(expected = UDFArgumentException.class)
+	public void rejectsWrongArgumentCounts() throws HiveException {
+		evaluate(new UDFSketchJaccard(), kmv(0, 10));
+	}
+}
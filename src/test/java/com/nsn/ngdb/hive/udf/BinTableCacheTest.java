@@ -0,0 +1,230 @@
+package com.nsn.ngdb.hive.udf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BinTableCacheTest {
+
+	private static final long FOREVER = Long.MAX_VALUE;
+	// every cached table has expired
+	private static final long EXPIRED = -1;
+
+	private final List<File> files = new ArrayList<File>();
+
+	@After
+	public void clear() {
+		BinTableCache.clear();
+		for (File file : files) {
+			file.delete();
+		}
+	}
+
+	private static BinTable table(String label) {
+		return new BinTable.Builder().add("t", label, 0, 10).build();
+	}
+
+	private static String label(BinTable table) {
+		return table.lookup("t", 5).toString();
+	}
+
+	/**
+	 * Counts its calls and returns a new table each time, or fails while
+	 * {@link #fail} is set.
+	 */
+	private static class Loader implements Callable<BinTable> {
+		final AtomicInteger calls = new AtomicInteger();
+		volatile boolean fail;
+
+		@Override
+		public BinTable call() throws Exception {
+			int n = calls.incrementAndGet();
+			if (fail) {
+				throw new IOException("database down");
+			}
+			return table("load " + n);
+		}
+	}
+
+	/**
+	 * Blocks until released, so that callers pile up behind a load.
+	 */
+	private static class BlockingLoader extends Loader {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public BinTable call() throws Exception {
+			started.countDown();
+			release.await(10, TimeUnit.SECONDS);
+			return super.call();
+		}
+	}
+
+	private File snapshot() throws IOException {
+		File file = File.createTempFile("bins", ".snapshot");
+		file.delete();
+		files.add(file);
+		return file;
+	}
+
+	@Test
+	public void loadsOncePerTimeToLive() throws IOException {
+		Loader loader = new Loader();
+		BinTable first = BinTableCache.get("ttl", FOREVER, null, loader);
+		assertSame(first, BinTableCache.get("ttl", FOREVER, null, loader));
+		assertEquals(1, loader.calls.get());
+
+		// once expired the next caller loads it again
+		BinTable second = BinTableCache.get("ttl", EXPIRED, null, loader);
+		assertEquals("load 2", label(second));
+		assertSame(second, BinTableCache.get("ttl", FOREVER, null, loader));
+		assertEquals(2, loader.calls.get());
+	}
+
+	@Test
+	public void keysAreCachedApart() throws IOException {
+		Loader loader = new Loader();
+		BinTable a = BinTableCache.get("a", FOREVER, null, loader);
+		BinTable b = BinTableCache.get("b", FOREVER, null, loader);
+		assertEquals("load 1", label(a));
+		assertEquals("load 2", label(b));
+		assertSame(a, BinTableCache.get("a", FOREVER, null, loader));
+	}
+
+	@Test
+	public void concurrentCallersShareOneLoad() throws Exception {
+		final BlockingLoader loader = new BlockingLoader();
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<BinTable>> results = new ArrayList<Future<BinTable>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(pool.submit(new Callable<BinTable>() {
+					@Override
+					public BinTable call() throws Exception {
+						return BinTableCache.get("flight", FOREVER, null,
+								loader);
+					}
+				}));
+			}
+			assertTrue(loader.started.await(10, TimeUnit.SECONDS));
+			// let the others reach the cache while the load is blocked
+			Thread.sleep(100);
+			loader.release.countDown();
+			BinTable table = results.get(0).get(10, TimeUnit.SECONDS);
+			for (Future<BinTable> result : results) {
+				assertSame(table, result.get(10, TimeUnit.SECONDS));
+			}
+			assertEquals(1, loader.calls.get());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void servesTheOldTableWhileReloading() throws Exception {
+		final BlockingLoader loader = new BlockingLoader();
+		loader.release.countDown();
+		BinTable old = BinTableCache.get("reload", FOREVER, null, loader);
+
+		final BlockingLoader reloader = new BlockingLoader();
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<BinTable> reload = pool.submit(new Callable<BinTable>() {
+				@Override
+				public BinTable call() throws Exception {
+					return BinTableCache.get("reload", EXPIRED, null,
+							reloader);
+				}
+			});
+			assertTrue(reloader.started.await(10, TimeUnit.SECONDS));
+			assertSame(old,
+					BinTableCache.get("reload", EXPIRED, null, reloader));
+			reloader.release.countDown();
+			BinTable fresh = reload.get(10, TimeUnit.SECONDS);
+			assertEquals("load 1", label(fresh));
+			assertSame(fresh,
+					BinTableCache.get("reload", FOREVER, null, reloader));
+			assertEquals(1, reloader.calls.get());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void failedLoadsAreNotCached() throws IOException {
+		Loader loader = new Loader();
+		loader.fail = true;
+		try {
+			BinTableCache.get("fail", FOREVER, null, loader);
+			fail();
+		} catch (IOException e) {
+			assertEquals("database down", e.getMessage());
+		}
+		loader.fail = false;
+		assertEquals("load 2",
+				label(BinTableCache.get("fail", FOREVER, null, loader)));
+	}
+
+	@Test
+	public void failedReloadsKeepTheOldTable() throws IOException {
+		Loader loader = new Loader();
+		BinTable old = BinTableCache.get("keep", FOREVER, null, loader);
+		loader.fail = true;
+		assertSame(old, BinTableCache.get("keep", EXPIRED, null, loader));
+		assertSame(old, BinTableCache.get("keep", FOREVER, null, loader));
+		assertEquals(2, loader.calls.get());
+
+		// and the reload is tried again once that expires
+		loader.fail = false;
+		assertEquals("load 3",
+				label(BinTableCache.get("keep", EXPIRED, null, loader)));
+	}
+
+	@Test
+	public void freshSnapshotsStandInForTheSource() throws IOException {
+		File snapshot = snapshot();
+		BinTableCache.writeSnapshot(table("snapshot"), snapshot);
+		Loader loader = new Loader();
+		assertEquals("snapshot",
+				label(BinTableCache.get("fresh", FOREVER, snapshot, loader)));
+		assertEquals(0, loader.calls.get());
+	}
+
+	@Test
+	public void loadsWriteTheSnapshot() throws IOException {
+		File snapshot = snapshot();
+		Loader loader = new Loader();
+		BinTableCache.get("write", EXPIRED, snapshot, loader);
+		assertTrue(snapshot.isFile());
+		assertEquals("load 1", label(BinTableCache.readSnapshot(snapshot)));
+	}
+
+	@Test
+	public void staleSnapshotsCoverFailedLoads() throws IOException {
+		File snapshot = snapshot();
+		BinTableCache.writeSnapshot(table("snapshot"), snapshot);
+		Loader loader = new Loader();
+		loader.fail = true;
+		// too old to be read first, but better than nothing
+		assertEquals("snapshot",
+				label(BinTableCache.get("stale", EXPIRED, snapshot, loader)));
+		assertEquals(1, loader.calls.get());
+	}
+}
@@ -0,0 +1,187 @@
+package com.nsn.ngdb.hive.udf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+public class BinTableTest {
+
+	private static BinTable table() {
+		return new BinTable.Builder().add("speed", "slow", 0, 10)
+				.add("speed", "fast", 10, 100)
+				// overlaps fast, and wins above 50 with its greater lower bound
+				.add("speed", "very fast", 50, 1000)
+				// same lower bound as fast, defined later so it loses
+				.add("speed", "also fast", 10, 200)
+				.add("size", "negative", -100, -0.5f)
+				.add("size", "small, or none", -0.5f, 5).build();
+	}
+
+	private static byte[] binary(BinTable table) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		table.write(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void assertLabel(String expected, Text actual) {
+		assertEquals(expected, actual == null ? null : actual.toString());
+	}
+
+	private static void assertSameLookups(BinTable expected, BinTable actual) {
+		assertEquals(expected.size(), actual.size());
+		for (String type : Arrays.asList("speed", "size")) {
+			assertEquals(expected.get(type).size(), actual.get(type).size());
+			for (double v = -200; v <= 1200; v += 0.25) {
+				assertEquals(expected.lookup(type, v), actual.lookup(type, v));
+			}
+		}
+	}
+
+	@Test
+	public void overlapsResolveToTheGreatestLowerBound() {
+		BinTable table = table();
+		assertLabel("slow", table.lookup("speed", 5));
+		assertLabel("fast", table.lookup("speed", 20));
+		assertLabel("very fast", table.lookup("speed", 50));
+		assertLabel("very fast", table.lookup("speed", 150));
+		assertLabel("very fast", table.lookup("speed", 1000));
+		assertNull(table.lookup("speed", 1000.5));
+		assertNull(table.lookup("speed", -1));
+	}
+
+	@Test
+	public void tiesResolveToTheFirstDefined() {
+		BinTable table = table();
+		assertLabel("fast", table.lookup("speed", 10.5));
+		// the first defined is also the narrower here
+		BinTable reversed = new BinTable.Builder().add("t", "wide", 0, 100)
+				.add("t", "narrow", 0, 10).build();
+		assertLabel("wide", reversed.lookup("t", 5));
+		assertLabel("wide", reversed.lookup("t", 50));
+	}
+
+	@Test
+	public void steppingBackOverBinsThatEndEarly() {
+		BinTable table = new BinTable.Builder().add("t", "outer", 0, 100)
+				.add("t", "a", 10, 20).add("t", "b", 30, 40).build();
+		assertLabel("a", table.lookup("t", 15));
+		assertLabel("outer", table.lookup("t", 25));
+		assertLabel("outer", table.lookup("t", 45));
+		assertLabel("outer", table.lookup("t", 100));
+		assertNull(table.lookup("t", 100.5));
+	}
+
+	@Test
+	public void boundsAreInclusive() {
+		BinTable table = table();
+		assertLabel("slow", table.lookup("speed", 0));
+		// 10 is in both slow and fast, fast starts higher
+		assertLabel("fast", table.lookup("speed", 10));
+		assertLabel("negative", table.lookup("size", -100));
+		assertLabel("small, or none", table.lookup("size", -0.5));
+		assertLabel("small, or none", table.lookup("size", 5));
+		assertNull(table.lookup("size", 5.001));
+	}
+
+	@Test
+	public void unknownTypesAndNaNMatchNothing() {
+		BinTable table = table();
+		assertNull(table.get("colour"));
+		assertNull(table.lookup("colour", 1));
+		assertNull(table.lookup("speed", Double.NaN));
+		assertEquals(-1, table.get("speed").find(Double.NaN));
+		assertNull(new BinTable.Builder().build().lookup("speed", 1));
+	}
+
+	@Test
+	public void relabelingReplacesTheBounds() {
+		BinTable table = new BinTable.Builder().add("t", "a", 0, 10)
+				.add("t", "a", 20, 30).build();
+		assertEquals(1, table.get("t").size());
+		assertNull(table.lookup("t", 5));
+		assertLabel("a", table.lookup("t", 25));
+	}
+
+	@Test
+	public void binaryRoundTrip() throws IOException {
+		BinTable table = table();
+		BinTable read = BinTable.read(ByteBuffer.wrap(binary(table)));
+		assertSameLookups(table, read);
+		// ties are still won by the same bin after writing again
+		assertLabel("fast", read.lookup("speed", 10.5));
+		assertEquals(Arrays.toString(binary(table)),
+				Arrays.toString(binary(read)));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsTruncatedBinary() throws IOException {
+		byte[] b = binary(table());
+		BinTable.read(ByteBuffer.wrap(Arrays.copyOf(b, b.length - 3)));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOtherBinary() throws IOException {
+		BinTable.read(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 0, 0, 0, 0 }));
+	}
+
+	@Test
+	public void csv() throws IOException {
+		String csv = "# type,label,lower,upper\r\n" + "speed,slow,0,10\r\n"
+				+ "\r\n" + "speed , fast , 10 , 100\n"
+				+ "speed,very fast,50,1000\n" + "speed,also fast,10,200\n"
+				+ "  # indented comment\n" + "size,negative,-100,-0.5\n"
+				+ "size,small, or none,-0.5,5e0\n";
+		assertSameLookups(table(), BinTable.readCsv(csv));
+		assertLabel("small, or none", BinTable.readCsv(csv).lookup("size", 0));
+	}
+
+	@Test(expected = IOException.class)
+	public void csvRejectsMissingFields() throws IOException {
+		BinTable.readCsv("speed,slow,0,10\nspeed,fast,10\n");
+	}
+
+	@Test(expected = IOException.class)
+	public void csvRejectsBadBounds() throws IOException {
+		BinTable.readCsv("speed,slow,zero,10\n");
+	}
+
+	@Test
+	public void parseDetectsTheForm() throws IOException {
+		BinTable table = table();
+		assertSameLookups(table, BinTable.parse(ByteBuffer.wrap(binary(table))));
+		String csv = "speed,slow,0,10\nspeed,fast,10,100\n"
+				+ "speed,very fast,50,1000\nspeed,also fast,10,200\n"
+				+ "size,negative,-100,-0.5\nsize,small, or none,-0.5,5\n";
+		assertSameLookups(table,
+				BinTable.parse(ByteBuffer.wrap(csv.getBytes(BinTable.UTF8))));
+		assertEquals(0, BinTable.parse(ByteBuffer.allocate(0)).size());
+	}
+
+	@Test
+	public void readsMappedFiles() throws IOException {
+		File file = File.createTempFile("bins", ".bin");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				out.write(binary(table()));
+			} finally {
+				out.close();
+			}
+			assertSameLookups(table(), BinTable.read(file));
+		} finally {
+			file.delete();
+		}
+	}
+}
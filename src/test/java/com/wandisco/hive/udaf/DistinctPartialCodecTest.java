@@ -0,0 +1,565 @@
+package com.wandisco.hive.udaf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import gnu.trove.set.hash.TDoubleHashSet;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.BytesWritable;
+import org.junit.Test;
+
+/**
+ * Round trips every {@link DistinctPartialCodec} type through its encoder and
+ * {@link DistinctPartialCodec.Reader}.
+ */
+public class DistinctPartialCodecTest {
+
+	private static final long TWO_32 = 1L << 32;
+
+	private static DistinctPartialCodec.Reader reader(BytesWritable partial,
+			byte type) throws HiveException {
+		DistinctPartialCodec.Reader r = DistinctPartialCodec.reader(partial);
+		assertEquals(type, r.type());
+		return r;
+	}
+
+	private static TLongHashSet longs(long... values) {
+		TLongHashSet set = new TLongHashSet();
+		set.addAll(values);
+		return set;
+	}
+
+	private static TIntHashSet ints(int... values) {
+		TIntHashSet set = new TIntHashSet();
+		set.addAll(values);
+		return set;
+	}
+
+	private static int[] randomInts(Random rnd, int n, int bound, int offset) {
+		int[] values = new int[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = offset + rnd.nextInt(bound);
+		}
+		return values;
+	}
+
+	@Test
+	public void longs() throws HiveException {
+		TLongHashSet set = longs(0, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE,
+				TWO_32 - 1, TWO_32, -TWO_32);
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeLongs(set),
+				DistinctPartialCodec.TYPE_LONG);
+		assertEquals(set.size(), r.count());
+		TLongHashSet out = new TLongHashSet();
+		r.readInto(out);
+		assertEquals(set, out);
+	}
+
+	@Test
+	public void emptyLongs() throws HiveException {
+		TLongHashSet out = longs(7);
+		DistinctPartialCodec.reader(
+				DistinctPartialCodec.encodeLongs(new TLongHashSet()))
+				.readInto(out);
+		assertEquals(longs(7), out);
+	}
+
+	@Test
+	public void ints() throws HiveException {
+		TIntHashSet set = ints(0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeInts(set),
+				DistinctPartialCodec.TYPE_INT);
+		TIntHashSet out = new TIntHashSet();
+		r.readInto(out);
+		assertEquals(set, out);
+
+		// ints widen into a long set
+		TLongHashSet wide = new TLongHashSet();
+		DistinctPartialCodec.reader(DistinctPartialCodec.encodeInts(set))
+				.readInto(wide);
+		assertEquals(longs(0, 1, -1, Integer.MIN_VALUE, Integer.MAX_VALUE),
+				wide);
+	}
+
+	@Test
+	public void doubles() throws HiveException {
+		TDoubleHashSet set = new TDoubleHashSet();
+		set.addAll(new double[] { 0d, -1.5d, Double.MAX_VALUE,
+				Double.MIN_VALUE, Double.NEGATIVE_INFINITY });
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeDoubles(set),
+				DistinctPartialCodec.TYPE_DOUBLE);
+		TDoubleHashSet out = new TDoubleHashSet();
+		r.readInto(out);
+		assertEquals(set, out);
+	}
+
+	@Test
+	public void doubleBits() throws HiveException {
+		double[] values = { 0d, -0d, -1.5d, Double.NaN,
+				Double.POSITIVE_INFINITY };
+		TLongHashSet bits = new TLongHashSet();
+		Set<Object> expected = new HashSet<Object>();
+		for (double v : values) {
+			bits.add(Double.doubleToLongBits(v));
+			expected.add(v);
+		}
+		Set<Object> out = new HashSet<Object>();
+		reader(DistinctPartialCodec.encodeDoubleBits(bits),
+				DistinctPartialCodec.TYPE_DOUBLE).readInto(out);
+		assertEquals(expected, out);
+	}
+
+	@Test
+	public void strings() throws HiveException {
+		Set<Object> set = new HashSet<Object>(Arrays.asList("", "a",
+				"\u00e9t\u00e9", "\u6f22\u5b57", "\ud83d\ude00"));
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeObjects(set),
+				DistinctPartialCodec.TYPE_STRING);
+		Set<Object> out = new HashSet<Object>();
+		r.readInto(out);
+		assertEquals(set, out);
+	}
+
+	@Test
+	public void emptyObjects() throws HiveException {
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeObjects(new HashSet<Object>()),
+				DistinctPartialCodec.TYPE_STRING);
+		assertEquals(0, r.count());
+		List<Object> out = new ArrayList<Object>();
+		r.readInto(out);
+		assertTrue(out.isEmpty());
+	}
+
+	@Test
+	public void boxedNumbers() throws HiveException {
+		Set<Object> longs = new HashSet<Object>(Arrays.<Object> asList(-1L,
+				Long.MIN_VALUE, TWO_32));
+		Set<Object> out = new HashSet<Object>();
+		reader(DistinctPartialCodec.encodeObjects(longs),
+				DistinctPartialCodec.TYPE_LONG).readInto(out);
+		assertEquals(longs, out);
+
+		Set<Object> ints = new HashSet<Object>(Arrays.<Object> asList(-1,
+				Integer.MIN_VALUE, 5));
+		out.clear();
+		reader(DistinctPartialCodec.encodeObjects(ints),
+				DistinctPartialCodec.TYPE_INT).readInto(out);
+		assertEquals(ints, out);
+
+		Set<Object> doubles = new HashSet<Object>(Arrays.<Object> asList(-0.5,
+				3.25));
+		out.clear();
+		reader(DistinctPartialCodec.encodeObjects(doubles),
+				DistinctPartialCodec.TYPE_DOUBLE).readInto(out);
+		assertEquals(doubles, out);
+	}
+
+	@Test
+	public void objects() throws HiveException {
+		// mixed or unpacked types fall back to java serialisation
+		Set<Object> set = new HashSet<Object>(Arrays.<Object> asList(
+				(short) -3, "x", new BigInteger("123456789012345678901234")));
+		Set<Object> out = new HashSet<Object>();
+		reader(DistinctPartialCodec.encodeObjects(set),
+				DistinctPartialCodec.TYPE_OBJECT).readInto(out);
+		assertEquals(set, out);
+	}
+
+	@Test
+	public void bitSet() throws HiveException {
+		BitSet set = new BitSet();
+		set.set(0);
+		set.set(63);
+		set.set(64);
+		set.set(100000);
+		BitSet out = new BitSet();
+		out.set(5);
+		reader(DistinctPartialCodec.encodeBitSet(set),
+				DistinctPartialCodec.TYPE_BITSET).readInto(out);
+		set.set(5);
+		assertEquals(set, out);
+	}
+
+	@Test
+	public void sortedLongsVarint() throws HiveException {
+		long[] sorted = { Long.MIN_VALUE, -TWO_32, -1, 0, 1, TWO_32,
+				Long.MAX_VALUE };
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeSortedLongs(sorted, sorted.length,
+						false), DistinctPartialCodec.TYPE_LONG_SORTED_VARINT);
+		assertTrue(r.isSorted());
+		assertArrayEquals(sorted, r.readSortedLongs());
+	}
+
+	@Test
+	public void sortedLongsPFor() throws HiveException {
+		Random rnd = new Random(1);
+		long[] sorted = new long[100000];
+		long v = -50000000000L;
+		for (int i = 0; i < sorted.length; i++) {
+			v += 1 + rnd.nextInt(1000);
+			sorted[i] = v;
+		}
+		// the largest gap that still packs
+		sorted[sorted.length - 1] = sorted[sorted.length - 2] + TWO_32 - 1;
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeSortedLongs(sorted, sorted.length,
+						true), DistinctPartialCodec.TYPE_LONG_SORTED_PFOR);
+		assertArrayEquals(sorted, r.readSortedLongs());
+	}
+
+	@Test
+	public void sortedLongsPForWideGapsOverManyBlocks() throws HiveException {
+		// random 32 bit gaps pack worst, past about 470K of them they did
+		// not fit one packed array
+		Random rnd = new Random(8);
+		long[] sorted = new long[10 * DistinctPartialCodec.PFOR_BLOCK + 3];
+		long v = Long.MIN_VALUE;
+		for (int i = 0; i < sorted.length; i++) {
+			v += (rnd.nextInt() & 0xFFFFFFFFL) | 1;
+			sorted[i] = v;
+		}
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeSortedLongs(sorted, sorted.length,
+						true), DistinctPartialCodec.TYPE_LONG_SORTED_PFOR);
+		assertEquals(sorted.length, r.count());
+		assertArrayEquals(sorted, r.readSortedLongs());
+
+		TLongHashSet out = new TLongHashSet();
+		DistinctPartialCodec.reader(
+				DistinctPartialCodec.encodeSortedLongs(sorted, sorted.length,
+						true)).readInto(out);
+		assertEquals(sorted.length, out.size());
+	}
+
+	@Test
+	public void sortedLongsPForBlockEdges() throws HiveException {
+		int[] lengths = { 2, DistinctPartialCodec.PFOR_BLOCK,
+				DistinctPartialCodec.PFOR_BLOCK + 1,
+				DistinctPartialCodec.PFOR_BLOCK + 2 };
+		for (int n : lengths) {
+			long[] sorted = new long[n];
+			for (int i = 0; i < n; i++) {
+				sorted[i] = -1000L + 3L * i;
+			}
+			assertArrayEquals(sorted, reader(
+					DistinctPartialCodec.encodeSortedLongs(sorted, n, true),
+					DistinctPartialCodec.TYPE_LONG_SORTED_PFOR)
+					.readSortedLongs());
+		}
+	}
+
+	@Test(expected = HiveException.class)
+	public void sortedLongsPForRejectsTruncatedBlocks() throws HiveException {
+		long[] sorted = new long[1000];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = 7L * i;
+		}
+		BytesWritable bytes = DistinctPartialCodec.encodeSortedLongs(sorted,
+				sorted.length, true);
+		bytes.setSize(bytes.getLength() - 4);
+		DistinctPartialCodec.reader(bytes).readSortedLongs();
+	}
+
+	@Test
+	public void sortedLongsPForFallsBackOnWideGaps() throws HiveException {
+		long[] sorted = { -5, 0, TWO_32 };
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeSortedLongs(sorted, sorted.length,
+						true), DistinctPartialCodec.TYPE_LONG_SORTED_VARINT);
+		assertArrayEquals(sorted, r.readSortedLongs());
+
+		long[] wrapping = { Long.MIN_VALUE, Long.MAX_VALUE };
+		r = reader(DistinctPartialCodec.encodeSortedLongs(wrapping, 2, true),
+				DistinctPartialCodec.TYPE_LONG_SORTED_VARINT);
+		assertArrayEquals(wrapping, r.readSortedLongs());
+	}
+
+	@Test
+	public void emptySortedLongs() throws HiveException {
+		DistinctPartialCodec.Reader r = DistinctPartialCodec
+				.reader(DistinctPartialCodec.encodeSortedLongs(new long[0], 0,
+						true));
+		assertTrue(r.isSorted());
+		assertEquals(0, r.readSortedLongs().length);
+	}
+
+	@Test
+	public void sortedIntsPFor() throws HiveException {
+		// more than one block, negative values and both extremes
+		TIntHashSet set = ints(randomInts(new Random(2), 3
+				* DistinctPartialCodec.PFOR_BLOCK, Integer.MAX_VALUE,
+				-Integer.MAX_VALUE / 2));
+		set.addAll(new int[] { Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE });
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeSortedIntsPFor(set),
+				DistinctPartialCodec.TYPE_INT_SORTED_PFOR);
+		assertEquals(set.size(), r.count());
+		TIntHashSet out = new TIntHashSet();
+		r.readInto(out);
+		assertEquals(set, out);
+	}
+
+	@Test
+	public void emptySortedIntsPFor() throws HiveException {
+		TIntHashSet out = new TIntHashSet();
+		reader(DistinctPartialCodec.encodeSortedIntsPFor(new TIntHashSet()),
+				DistinctPartialCodec.TYPE_INT_SORTED_PFOR).readInto(out);
+		assertTrue(out.isEmpty());
+	}
+
+	@Test
+	public void intRangeDense() throws HiveException {
+		TIntHashSet set = ints(randomInts(new Random(3), 5000, 10000, -5000));
+		set.addAll(new int[] { -5000, -1, 0, 63, 64 });
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeIntRange(42, set),
+				DistinctPartialCodec.TYPE_INT_RANGE);
+		assertEquals(42, r.base());
+		assertEquals(set.size(), r.count());
+		TIntHashSet out = new TIntHashSet();
+		r.readInto(out);
+		assertEquals(set, out);
+	}
+
+	@Test
+	public void intRangeSparse() throws HiveException {
+		TIntHashSet set = ints(Integer.MIN_VALUE, -1, 0, Integer.MAX_VALUE);
+		set.addAll(randomInts(new Random(4), 1000, Integer.MAX_VALUE, 0));
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeIntRange(-7, set),
+				DistinctPartialCodec.TYPE_INT_RANGE);
+		assertEquals(-7, r.base());
+		TLongHashSet out = new TLongHashSet();
+		r.readInto(out);
+		TLongHashSet expected = new TLongHashSet();
+		for (int v : set.toArray()) {
+			expected.add(v);
+		}
+		assertEquals(expected, out);
+	}
+
+	@Test
+	public void intRangeEmpty() throws HiveException {
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeIntRange(9, new TIntHashSet()),
+				DistinctPartialCodec.TYPE_INT_RANGE);
+		assertEquals(9, r.base());
+		assertEquals(0, r.count());
+		BitSet out = new BitSet();
+		r.readInto(out);
+		assertTrue(out.isEmpty());
+
+		r = reader(DistinctPartialCodec.encodeIntRange(9, new BitSet()),
+				DistinctPartialCodec.TYPE_INT_RANGE);
+		assertEquals(0, r.count());
+	}
+
+	@Test
+	public void intRangeFromBitSet() throws HiveException {
+		BitSet dense = new BitSet();
+		dense.set(1000, 3000);
+		BitSet out = new BitSet();
+		out.set(1);
+		reader(DistinctPartialCodec.encodeIntRange(0, dense),
+				DistinctPartialCodec.TYPE_INT_RANGE).readInto(out);
+		BitSet expected = (BitSet) dense.clone();
+		expected.set(1);
+		assertEquals(expected, out);
+
+		BitSet sparse = new BitSet();
+		sparse.set(3);
+		sparse.set(1 << 20);
+		sparse.set(Integer.MAX_VALUE - 1);
+		out = new BitSet();
+		reader(DistinctPartialCodec.encodeIntRange(0, sparse),
+				DistinctPartialCodec.TYPE_INT_RANGE).readInto(out);
+		assertEquals(sparse, out);
+	}
+
+	@Test
+	public void intRangeRejectsNegativeBitSetValues() throws HiveException {
+		try {
+			DistinctPartialCodec.reader(
+					DistinctPartialCodec.encodeIntRange(0, ints(-1, 2)))
+					.readInto(new BitSet());
+			fail("negative values cannot go into a BitSet");
+		} catch (HiveException expected) {
+		}
+	}
+
+	@Test
+	public void intRangeFromOffHeapSet() throws HiveException {
+		OffHeapLongSet set = new OffHeapLongSet(16, Long.MAX_VALUE);
+		try {
+			int[] values = { -3, 0, 1, 70, Integer.MAX_VALUE };
+			for (int v : values) {
+				set.add(v);
+			}
+			DistinctPartialCodec.Reader r = reader(
+					DistinctPartialCodec.encodeIntRange(11, set),
+					DistinctPartialCodec.TYPE_INT_RANGE);
+			assertEquals(11, r.base());
+			TIntHashSet out = new TIntHashSet();
+			r.readInto(out);
+			assertEquals(ints(values), out);
+		} finally {
+			set.release();
+		}
+	}
+
+	@Test
+	public void roaring() throws HiveException {
+		RoaringLongBitmap bitmap = new RoaringLongBitmap();
+		bitmap.add(-1);
+		bitmap.add(TWO_32);
+		DistinctPartialCodec.Reader r = reader(bitmap.serialize(),
+				DistinctPartialCodec.TYPE_ROARING);
+		// one container per distinct high 48 bits
+		assertEquals(2, r.count());
+	}
+
+	@Test
+	public void hllDense() throws HiveException {
+		HLLSketch sketch = new HLLSketch(14, 0);
+		for (long i = 0; i < 100000; i++) {
+			sketch.offerHashed(Murmur3.hash64(i));
+		}
+		BytesWritable bytes = sketch.serialize();
+		reader(bytes, DistinctPartialCodec.TYPE_HLL);
+		HLLSketch out = HLLSketch.deserialize(bytes);
+		assertFalse(out.isSparse());
+		assertEquals(14, out.precision());
+		assertEquals(sketch.cardinality(), out.cardinality());
+	}
+
+	@Test
+	public void hllSparse() throws HiveException {
+		HLLSketch sketch = new HLLSketch(14, 25);
+		long[] hashes = { Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE };
+		for (long h : hashes) {
+			sketch.offerHashed(h);
+			sketch.offerHashed(h);
+		}
+		BytesWritable bytes = sketch.serialize();
+		DistinctPartialCodec.Reader r = reader(bytes,
+				DistinctPartialCodec.TYPE_HLL_SPARSE);
+		assertEquals(hashes.length, r.count());
+		HLLSketch out = HLLSketch.deserialize(bytes);
+		assertTrue(out.isSparse());
+		assertEquals(hashes.length, out.cardinality());
+
+		HLLSketch empty = HLLSketch.deserialize(new HLLSketch(14, 25)
+				.serialize());
+		assertEquals(0, empty.cardinality());
+	}
+
+	@Test
+	public void kmv() throws HiveException {
+		KMVSketch sketch = new KMVSketch(KMVSketch.MIN_K);
+		sketch.offerHashed(Long.MIN_VALUE);
+		sketch.offerHashed(0);
+		sketch.offerHashed(2);
+		BytesWritable bytes = sketch.serialize();
+		DistinctPartialCodec.Reader r = reader(bytes,
+				DistinctPartialCodec.TYPE_KMV);
+		assertEquals(3, r.count());
+		KMVSketch out = KMVSketch.deserialize(bytes);
+		assertEquals(KMVSketch.MIN_K, out.k());
+		assertTrue(out.isExact());
+		assertEquals(3, out.cardinality());
+
+		KMVSketch full = new KMVSketch(64);
+		for (long i = 0; i < 10000; i++) {
+			full.offerHashed(Murmur3.hash64(i));
+		}
+		out = KMVSketch.deserialize(full.serialize());
+		assertFalse(out.isExact());
+		assertEquals(full.estimate(), out.estimate(), 0d);
+
+		assertEquals(0, KMVSketch.deserialize(new KMVSketch(64).serialize())
+				.cardinality());
+	}
+
+	@Test
+	public void partitionedBitSet() throws HiveException {
+		PartitionedBitSet set = new PartitionedBitSet();
+		set.add(TWO_32 - 1);
+		set.add(TWO_32);
+		DistinctPartialCodec.Reader r = reader(set.serialize(-3),
+				DistinctPartialCodec.TYPE_PARTITIONED_BITSET);
+		assertEquals(-3, r.base());
+		// the two values sit either side of a bucket edge
+		assertEquals(2, r.count());
+	}
+
+	@Test
+	public void opaqueBytes() throws HiveException {
+		byte[] payload = { 1, 2, 3 };
+		DistinctPartialCodec.Reader r = reader(
+				DistinctPartialCodec.encodeBytes(DistinctPartialCodec.TYPE_HLL,
+						payload), DistinctPartialCodec.TYPE_HLL);
+		assertArrayEquals(payload, r.readBytes());
+	}
+
+	@Test
+	public void varLongs() throws HiveException {
+		long[] values = { 0, 1, 127, 128, 16383, 16384, TWO_32, -1,
+				Long.MIN_VALUE };
+		DistinctPartialCodec.Writer w = new DistinctPartialCodec.Writer(
+				DistinctPartialCodec.TYPE_LONG, values.length, 0);
+		for (long v : values) {
+			w.putVarLong(v);
+		}
+		DistinctPartialCodec.Reader r = DistinctPartialCodec.reader(w
+				.toBytesWritable());
+		for (long v : values) {
+			assertEquals(v, r.getVarLong());
+		}
+	}
+
+	@Test(expected = HiveException.class)
+	public void rejectsOtherFormats() throws HiveException {
+		DistinctPartialCodec.reader(new BytesWritable(new byte[] { 1, 2, 3,
+				4, 5, 6, 7, 8 }));
+	}
+
+	@Test(expected = HiveException.class)
+	public void rejectsNewerVersions() throws HiveException {
+		BytesWritable bytes = DistinctPartialCodec.encodeLongs(longs(1));
+		bytes.getBytes()[1] = DistinctPartialCodec.VERSION + 1;
+		DistinctPartialCodec.reader(bytes);
+	}
+
+	@Test(expected = HiveException.class)
+	public void rejectsTruncatedPayloads() throws HiveException {
+		BytesWritable bytes = DistinctPartialCodec.encodeLongs(longs(1, 2));
+		bytes.setSize(bytes.getLength() - 1);
+		DistinctPartialCodec.reader(bytes).readInto(new TLongHashSet());
+	}
+
+	@Test(expected = HiveException.class)
+	public void rejectsTheWrongType() throws HiveException {
+		DistinctPartialCodec.reader(DistinctPartialCodec.encodeLongs(longs(1)))
+				.readInto(new TDoubleHashSet());
+	}
+}
@@ -0,0 +1,151 @@
+package com.wandisco.hive.udaf;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.Test;
+
+public class IMSIParserTest {
+
+	/**
+	 * Keeps the enum counters' totals, the rest of a task's reporter is not
+	 * needed.
+	 */
+	private static class CountingReporter implements Reporter {
+		final Map<Enum<?>, Long> counters = new HashMap<Enum<?>, Long>();
+
+		long get(IMSIParser.Counter counter) {
+			Long count = counters.get(counter);
+			return count == null ? 0 : count;
+		}
+
+		@Override
+		public void progress() {
+		}
+
+		@Override
+		public void setStatus(String status) {
+		}
+
+		@Override
+		public Counters.Counter getCounter(Enum<?> name) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Counters.Counter getCounter(String group, String name) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void incrCounter(Enum<?> key, long amount) {
+			counters.put(key, get((IMSIParser.Counter) key) + amount);
+		}
+
+		@Override
+		public void incrCounter(String group, String counter, long amount) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public InputSplit getInputSplit() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public float getProgress() {
+			return 0;
+		}
+	}
+
+	private static IMSIParser stringParser() {
+		return new IMSIParser(
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector);
+	}
+
+	@Test
+	public void packsDigits() {
+		IMSIParser parser = stringParser();
+		assertEquals(31015012345678900L, parser.parse(new Text(
+				"310150123456789")));
+		assertEquals(123456789000L, parser.parse(new Text("1234567890")));
+		assertEquals(-123456789000L, parser.parse(new Text("-1234567890")));
+	}
+
+	@Test
+	public void packsLetterSuffixes() {
+		IMSIParser parser = stringParser();
+		assertEquals(31015012345678910L, parser.parse(new Text(
+				"310150123456789a")));
+		assertEquals(31015012345678910L, parser.parse(new Text(
+				"310150123456789A")));
+		assertEquals(31015012345678935L, parser.parse(new Text(
+				"310150123456789z")));
+	}
+
+	@Test
+	public void shortValuesPackToMinusOne() {
+		IMSIParser parser = stringParser();
+		assertEquals(-1, parser.parse(new Text("")));
+		assertEquals(-1, parser.parse(new Text("123456789")));
+	}
+
+	@Test
+	public void malformedValuesPackToTheSuffix() {
+		IMSIParser parser = stringParser();
+		assertEquals(0, parser.parse(new Text("31015x123456789")));
+		assertEquals(11, parser.parse(new Text("31015x12345678b")));
+		assertEquals(0, parser.parse(new Text("+---------")));
+		// overflows a long
+		assertEquals(0, parser.parse(new Text("99999999999999999999")));
+	}
+
+	@Test
+	public void readsOtherTypesAsStrings() {
+		IMSIParser parser = new IMSIParser(
+				PrimitiveObjectInspectorFactory.writableLongObjectInspector);
+		assertEquals(31015012345678900L, parser.parse(new LongWritable(
+				310150123456789L)));
+		assertEquals(-1, parser.parse(new LongWritable(42)));
+	}
+
+	@Test
+	public void countsWithoutAContext() {
+		// nothing to count into, but parsing goes on
+		IMSIParser parser = stringParser();
+		assertEquals(-1, parser.parse(new Text("1")));
+		parser.setContext(null);
+		assertEquals(0, parser.parse(new Text("abcdefghij0")));
+	}
+
+	@Test
+	public void countsOnTheReporterSetAfterConfigure() {
+		// as Hive creates it, before the task's reporter is set
+		MapredContext context = new MapredContext(true, null) {
+		};
+		IMSIParser parser = stringParser();
+		parser.setContext(context);
+
+		// no reporter yet
+		parser.parse(new Text("1"));
+
+		CountingReporter reporter = new CountingReporter();
+		context.setReporter(reporter);
+		parser.parse(new Text("1"));
+		parser.parse(new Text("12"));
+		parser.parse(new Text("31015x123456789"));
+		parser.parse(new Text("310150123456789"));
+		parser.parse(new Text("310150123456789a"));
+		assertEquals(2, reporter.get(IMSIParser.Counter.SHORT_IMSI));
+		assertEquals(1, reporter.get(IMSIParser.Counter.MALFORMED_IMSI));
+	}
+}
@@ -0,0 +1,192 @@
+package com.wandisco.hive.udaf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.BytesWritable;
+import org.junit.Test;
+
+public class KMVSketchTest {
+
+	private static final int K = KMVSketch.DEFAULT_K;
+
+	/**
+	 * A sketch of {@code [from, to)}.
+	 */
+	private static KMVSketch sketch(int k, long from, long to) {
+		KMVSketch sketch = new KMVSketch(k);
+		for (long v = from; v < to; v++) {
+			sketch.offerHashed(Murmur3.hash64(v));
+		}
+		return sketch;
+	}
+
+	private static void assertSame(KMVSketch expected, KMVSketch actual) {
+		assertEquals(expected.k(), actual.k());
+		assertArrayEquals(expected.serialize().copyBytes(), actual
+				.serialize().copyBytes());
+	}
+
+	private static void assertWithin(double expected, double actual,
+			double error) {
+		assertEquals(expected, actual, expected * error);
+	}
+
+	@Test
+	public void exactBelowK() {
+		KMVSketch sketch = new KMVSketch(64);
+		for (int i = 0; i < 3; i++) {
+			for (long v = 0; v < 63; v++) {
+				sketch.offerHashed(Murmur3.hash64(v));
+			}
+		}
+		assertTrue(sketch.isExact());
+		assertEquals(63, sketch.cardinality());
+		sketch.offerHashed(Murmur3.hash64(63L));
+		assertFalse(sketch.isExact());
+	}
+
+	@Test
+	public void estimatesAboveK() {
+		// the relative error is about 1 / sqrt(k), 1.6% here
+		assertWithin(200000, sketch(K, 0, 200000).estimate(), 0.05);
+
+		// which is (k - 1) / U(k) of all the hashes
+		long[] hashes = new long[200000];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = Murmur3.hash64((long) i) >>> 1;
+		}
+		Arrays.sort(hashes);
+		assertEquals(255 * 0x1p63 / hashes[255], sketch(256, 0, 200000)
+				.estimate(), 0);
+	}
+
+	@Test
+	public void hashEdges() {
+		KMVSketch sketch = new KMVSketch(KMVSketch.MIN_K);
+		sketch.offerHashed(0);
+		sketch.offerHashed(1);
+		sketch.offerHashed(Long.MIN_VALUE);
+		sketch.offerHashed(Long.MAX_VALUE);
+		// 0 and 1 are one value once shifted
+		assertEquals(3, sketch.cardinality());
+	}
+
+	@Test
+	public void mergeIsTheSketchOfTheUnion() {
+		KMVSketch a = sketch(K, 0, 60000);
+		a.addAll(sketch(K, 40000, 100000));
+		assertSame(sketch(K, 0, 100000), a);
+
+		// in either order, and merging again changes nothing
+		KMVSketch b = sketch(K, 40000, 100000);
+		b.addAll(sketch(K, 0, 60000));
+		b.addAll(sketch(K, 10, 20));
+		assertSame(a, b);
+	}
+
+	@Test
+	public void mergeOfSmallSketchesStaysExact() {
+		KMVSketch a = sketch(K, 0, 100);
+		a.addAll(sketch(K, 50, 150));
+		a.addAll(new KMVSketch(K));
+		assertTrue(a.isExact());
+		assertEquals(150, a.cardinality());
+	}
+
+	@Test
+	public void mergeTakesTheSmallerK() {
+		KMVSketch a = sketch(K, 0, 100000);
+		a.addAll(sketch(512, 50000, 150000));
+		assertSame(sketch(512, 0, 150000), a);
+
+		KMVSketch b = sketch(512, 0, 100000);
+		b.addAll(sketch(K, 50000, 150000));
+		assertSame(a, b);
+	}
+
+	@Test
+	public void roundTrip() throws HiveException {
+		KMVSketch[] sketches = { new KMVSketch(K), sketch(K, 0, 10),
+				sketch(K, 0, 100000), sketch(KMVSketch.MIN_K, 0, 1000) };
+		for (KMVSketch sketch : sketches) {
+			KMVSketch out = KMVSketch.deserialize(sketch.serialize());
+			assertSame(sketch, out);
+			assertEquals(sketch.estimate(), out.estimate(), 0);
+			// and keeps sketching
+			out.offerHashed(Murmur3.hash64(-1L));
+			sketch.offerHashed(Murmur3.hash64(-1L));
+			assertSame(sketch, out);
+		}
+	}
+
+	@Test(expected = HiveException.class)
+	public void rejectsOtherPartials() throws HiveException {
+		KMVSketch.deserialize(DistinctPartialCodec.encodeBytes(
+				DistinctPartialCodec.TYPE_HLL, new byte[8]));
+	}
+
+	@Test(expected = HiveException.class)
+	public void rejectsMoreValuesThanK() throws HiveException {
+		BytesWritable bytes = sketch(32, 0, 1000).serialize();
+		// k follows the header, 32 values cannot be a sketch of k = 16
+		bytes.getBytes()[DistinctPartialCodec.HEADER_SIZE + 3] = 16;
+		KMVSketch.deserialize(bytes);
+	}
+
+	@Test
+	public void exactSetOperations() {
+		KMVSketch a = sketch(K, 0, 100);
+		KMVSketch b = sketch(K, 50, 150);
+		assertEquals(50 / 150d, KMVSketch.jaccard(a, b), 1e-9);
+		assertEquals(50, KMVSketch.intersection(a, b), 1e-9);
+		assertEquals(50, KMVSketch.difference(a, b), 1e-9);
+		assertEquals(50, KMVSketch.difference(b, a), 1e-9);
+		assertEquals(150, KMVSketch.union(a, b).cardinality());
+		assertEquals(0, KMVSketch.difference(a, a), 1e-9);
+		assertEquals(1, KMVSketch.jaccard(a, a), 1e-9);
+	}
+
+	@Test
+	public void estimatedSetOperations() {
+		// |A & B| = 20000, |A - B| = 40000, |A | B| = 100000
+		KMVSketch a = sketch(K, 0, 60000);
+		KMVSketch b = sketch(K, 40000, 100000);
+		assertEquals(0.2, KMVSketch.jaccard(a, b), 0.03);
+		assertWithin(20000, KMVSketch.intersection(a, b), 0.15);
+		assertWithin(40000, KMVSketch.difference(a, b), 0.1);
+		assertWithin(100000, KMVSketch.union(a, b).estimate(), 0.05);
+
+		KMVSketch c = sketch(K, 100000, 200000);
+		assertEquals(0, KMVSketch.jaccard(a, c), 0);
+		assertEquals(0, KMVSketch.intersection(a, c), 0);
+		assertWithin(60000, KMVSketch.difference(a, c), 0.1);
+	}
+
+	@Test
+	public void setOperationsLeaveTheirArguments() {
+		KMVSketch a = sketch(K, 0, 60000);
+		KMVSketch b = sketch(K, 40000, 100000);
+		KMVSketch.jaccard(a, b);
+		KMVSketch.intersection(a, b);
+		KMVSketch.difference(a, b);
+		KMVSketch.union(a, b);
+		assertSame(sketch(K, 0, 60000), a);
+		assertSame(sketch(K, 40000, 100000), b);
+	}
+
+	@Test
+	public void emptySetOperations() {
+		KMVSketch empty = new KMVSketch(K);
+		assertEquals(0, KMVSketch.jaccard(empty, empty), 0);
+		assertEquals(0, KMVSketch.intersection(empty, empty), 0);
+		assertEquals(0, KMVSketch.difference(empty, empty), 0);
+		assertEquals(10, KMVSketch.difference(sketch(K, 0, 10), empty), 0);
+		assertEquals(0, KMVSketch.difference(empty, sketch(K, 0, 10)), 0);
+	}
+}
@@ -0,0 +1,219 @@
+package com.wandisco.hive.udaf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.set.hash.TIntHashSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OffHeapLongSetTest {
+
+	// the smallest table, and the spill size that keeps it in direct buffers
+	private static final int MIN_CAPACITY = 1 << 16;
+	private static final long NEVER = Long.MAX_VALUE;
+
+	private static void assertContents(TLongHashSet expected,
+			OffHeapLongSet actual) {
+		assertEquals(expected.size(), actual.size());
+		long[] values = actual.toArray();
+		Arrays.sort(values);
+		long[] sorted = expected.toArray();
+		Arrays.sort(sorted);
+		assertArrayEquals(sorted, values);
+	}
+
+	/**
+	 * Values that all hash to {@code slot} of the smallest table.
+	 */
+	private static long[] colliding(long slot, int n) {
+		long[] values = new long[n];
+		int found = 0;
+		for (long v = 1; found < n; v++) {
+			if ((Murmur3.fmix64(v) & (MIN_CAPACITY - 1)) == slot) {
+				values[found++] = v;
+			}
+		}
+		return values;
+	}
+
+	@Test
+	public void addsAndDeduplicates() {
+		OffHeapLongSet set = new OffHeapLongSet(0, NEVER);
+		TLongHashSet expected = new TLongHashSet();
+		Random rnd = new Random(14);
+		for (int i = 0; i < 20000; i++) {
+			long v = rnd.nextInt(10000) * 0x9E3779B97F4A7C15L;
+			assertEquals(expected.add(v), set.add(v));
+		}
+		assertFalse(set.isSpilled());
+		assertContents(expected, set);
+		set.release();
+	}
+
+	@Test
+	public void zeroAndEdges() {
+		OffHeapLongSet set = new OffHeapLongSet(0, NEVER);
+		long[] values = { 0, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE };
+		TLongHashSet expected = new TLongHashSet();
+		for (long v : values) {
+			expected.add(v);
+			assertTrue(set.add(v));
+		}
+		for (long v : values) {
+			assertFalse(set.add(v));
+		}
+		assertContents(expected, set);
+		set.release();
+	}
+
+	@Test
+	public void growsPastTheLoadFactor() {
+		OffHeapLongSet set = new OffHeapLongSet(0, NEVER);
+		TLongHashSet expected = new TLongHashSet();
+		// several doublings of the smallest table
+		for (long v = -200000; v < 400000; v += 1) {
+			expected.add(v * 31);
+			set.add(v * 31);
+		}
+		assertContents(expected, set);
+		// everything is still found after growing
+		for (long v = -200000; v < 400000; v += 1) {
+			assertFalse(set.add(v * 31));
+		}
+		assertEquals(expected.size(), set.size());
+		set.release();
+	}
+
+	@Test
+	public void probesPastCollisions() {
+		OffHeapLongSet set = new OffHeapLongSet(0, NEVER);
+		TLongHashSet expected = new TLongHashSet();
+		// a run of values for one slot, then values for the slots it took
+		for (long v : colliding(100, 40)) {
+			expected.add(v);
+			assertTrue(set.add(v));
+		}
+		for (long v : colliding(120, 10)) {
+			expected.add(v);
+			assertTrue(set.add(v));
+		}
+		for (long v : expected.toArray()) {
+			assertFalse(set.add(v));
+		}
+		assertContents(expected, set);
+		set.release();
+	}
+
+	@Test
+	public void probesWrapAroundTheTable() {
+		OffHeapLongSet set = new OffHeapLongSet(0, NEVER);
+		TLongHashSet expected = new TLongHashSet();
+		for (long v : colliding(MIN_CAPACITY - 1, 20)) {
+			expected.add(v);
+			assertTrue(set.add(v));
+		}
+		for (long v : colliding(0, 5)) {
+			expected.add(v);
+			assertTrue(set.add(v));
+		}
+		for (long v : expected.toArray()) {
+			assertFalse(set.add(v));
+		}
+		assertContents(expected, set);
+		set.release();
+	}
+
+	@Test
+	public void mapsPagesFromATempFile() {
+		OffHeapLongSet set = new OffHeapLongSet(0, 0);
+		assertTrue(set.isSpilled());
+		TLongHashSet expected = new TLongHashSet();
+		Random rnd = new Random(15);
+		for (int i = 0; i < 150000; i++) {
+			long v = rnd.nextLong();
+			assertEquals(expected.add(v), set.add(v));
+		}
+		assertTrue(set.isSpilled());
+		assertContents(expected, set);
+		set.release();
+	}
+
+	@Test
+	public void spillsOnceItGrowsPastTheSpillSize() {
+		// the smallest table fits, the next does not
+		OffHeapLongSet set = new OffHeapLongSet(0, 8L * MIN_CAPACITY);
+		assertFalse(set.isSpilled());
+		TLongHashSet expected = new TLongHashSet();
+		for (long v = 1; v <= MIN_CAPACITY; v++) {
+			expected.add(v << 20);
+			set.add(v << 20);
+		}
+		assertTrue(set.isSpilled());
+		assertContents(expected, set);
+		set.release();
+	}
+
+	@Test
+	public void addsHeapSets() {
+		TLongHashSet longs = new TLongHashSet();
+		TIntHashSet ints = new TIntHashSet();
+		TLongHashSet expected = new TLongHashSet();
+		for (int i = 0; i < 1000; i++) {
+			longs.add(i * 1000000007L);
+			ints.add(-i);
+			expected.add(i * 1000000007L);
+			expected.add(-i);
+		}
+		OffHeapLongSet set = new OffHeapLongSet(longs.size(), NEVER);
+		set.addAll(longs);
+		set.addAll(ints);
+		assertContents(expected, set);
+		set.release();
+	}
+
+	@Test
+	public void forEachStopsEarly() {
+		OffHeapLongSet set = new OffHeapLongSet(0, NEVER);
+		for (long v = 0; v < 100; v++) {
+			set.add(v);
+		}
+		final int[] visited = new int[1];
+		assertFalse(set.forEach(new TLongProcedure() {
+			@Override
+			public boolean execute(long value) {
+				return ++visited[0] < 10;
+			}
+		}));
+		assertEquals(10, visited[0]);
+		set.release();
+	}
+
+	@Test
+	public void releasesOnceAndThePoolReleasesAll() {
+		OffHeapLongSet set = new OffHeapLongSet(0, 0);
+		set.add(1);
+		set.release();
+		set.release();
+		assertEquals(0, set.size());
+
+		OffHeapLongSet.Pool pool = new OffHeapLongSet.Pool(100, NEVER);
+		assertFalse(pool.isHot(99));
+		assertTrue(pool.isHot(100));
+		assertFalse(new OffHeapLongSet.Pool(0, NEVER).isHot(Integer.MAX_VALUE));
+		OffHeapLongSet a = pool.allocate(10);
+		OffHeapLongSet b = pool.allocate(10);
+		a.add(1);
+		b.add(2);
+		pool.release(a);
+		assertEquals(0, a.size());
+		pool.releaseAll();
+		assertEquals(0, b.size());
+	}
+}
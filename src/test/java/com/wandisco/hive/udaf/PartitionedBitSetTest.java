@@ -0,0 +1,182 @@
+package com.wandisco.hive.udaf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.BytesWritable;
+import org.junit.Test;
+
+public class PartitionedBitSetTest {
+
+	private static final long TWO_32 = 1L << 32;
+
+	// one bucket end each, a bucket spanning all 2^32 values takes 512MB
+	private static final long[] EDGES = { TWO_32 - 1, TWO_32, TWO_32 + 1,
+			-1, -TWO_32 - 1, Long.MIN_VALUE, Long.MAX_VALUE };
+
+	private static PartitionedBitSet of(long... values) {
+		PartitionedBitSet set = new PartitionedBitSet();
+		for (long v : values) {
+			set.add(v);
+		}
+		return set;
+	}
+
+	private static byte[] bytes(BytesWritable b) {
+		return b.copyBytes();
+	}
+
+	private static PartitionedBitSet roundTrip(PartitionedBitSet set)
+			throws HiveException {
+		PartitionedBitSet out = new PartitionedBitSet();
+		out.or(DistinctPartialCodec.reader(set.serialize(0)));
+		return out;
+	}
+
+	@Test
+	public void bucketEdges() throws HiveException {
+		PartitionedBitSet set = of(EDGES);
+		assertEquals(EDGES.length, set.cardinality());
+		for (long v : EDGES) {
+			set.add(v);
+		}
+		assertEquals(EDGES.length, set.cardinality());
+
+		PartitionedBitSet out = roundTrip(set);
+		assertEquals(EDGES.length, out.cardinality());
+		// the serialised form only depends on the values
+		assertArrayEquals(bytes(set.serialize(0)), bytes(out.serialize(0)));
+		for (long v : EDGES) {
+			out.add(v);
+		}
+		assertEquals(EDGES.length, out.cardinality());
+	}
+
+	@Test
+	public void denseAndSparseBuckets() throws HiveException {
+		Random rnd = new Random(5);
+		PartitionedBitSet set = new PartitionedBitSet();
+		// a dense run across a bucket edge
+		for (long v = TWO_32 - 5000; v < TWO_32 + 5000; v++) {
+			set.add(v);
+		}
+		// and thin values in a bucket of negative keys
+		for (int i = 0; i < 1000; i++) {
+			set.add(-TWO_32 + rnd.nextInt(1 << 20));
+		}
+		PartitionedBitSet out = roundTrip(set);
+		assertEquals(set.cardinality(), out.cardinality());
+		assertArrayEquals(bytes(set.serialize(0)), bytes(out.serialize(0)));
+	}
+
+	@Test
+	public void orMergesOverlappingBuckets() throws HiveException {
+		PartitionedBitSet a = new PartitionedBitSet();
+		PartitionedBitSet b = new PartitionedBitSet();
+		PartitionedBitSet both = new PartitionedBitSet();
+		for (long v = 0; v < 3000; v++) {
+			a.add(v);
+			both.add(v);
+		}
+		for (long v = 2000; v < 6000; v += 3) {
+			b.add(v);
+			both.add(v);
+		}
+		b.add(Long.MIN_VALUE);
+		both.add(Long.MIN_VALUE);
+		a.or(DistinctPartialCodec.reader(b.serialize(0)));
+		assertEquals(both.cardinality(), a.cardinality());
+		assertArrayEquals(bytes(both.serialize(0)), bytes(a.serialize(0)));
+
+		// merging again changes nothing
+		a.or(DistinctPartialCodec.reader(b.serialize(0)));
+		assertEquals(both.cardinality(), a.cardinality());
+	}
+
+	@Test
+	public void emptyAndCleared() throws HiveException {
+		PartitionedBitSet set = of();
+		assertEquals(0, roundTrip(set).cardinality());
+		set = of(EDGES);
+		set.clear();
+		assertEquals(0, set.cardinality());
+		set.add(TWO_32);
+		assertEquals(1, roundTrip(set).cardinality());
+	}
+
+	@Test
+	public void basePreserved() throws HiveException {
+		assertEquals(-42, DistinctPartialCodec.reader(of(1).serialize(-42))
+				.base());
+	}
+
+	@Test(expected = HiveException.class)
+	public void rejectsOtherPartials() throws HiveException {
+		new PartitionedBitSet().or(DistinctPartialCodec
+				.reader(new RoaringLongBitmap().serialize()));
+	}
+
+	@Test
+	public void bucketGrowsDownwards() {
+		PartitionedBitSet.Bucket b = new PartitionedBitSet.Bucket(0, 64);
+		int top = 100000;
+		assertTrue(b.set(top));
+		for (int v = top - 1; v >= 0; v -= 7) {
+			assertTrue(b.set(v));
+		}
+		assertEquals(0, b.first);
+		assertFalse(b.set(top));
+		int card = 1;
+		for (int v = top - 1; v >= 0; v -= 7) {
+			assertFalse(b.set(v));
+			card++;
+		}
+		assertEquals(card, b.card);
+		assertEquals((top >>> 6) + 1, b.span());
+	}
+
+	@Test
+	public void bucketGrowsUpwards() {
+		PartitionedBitSet.Bucket b = new PartitionedBitSet.Bucket(0, 64);
+		int bottom = 1 << 20;
+		for (int v = bottom; v < bottom + 100000; v += 5) {
+			assertTrue(b.set(v));
+		}
+		assertEquals(bottom >>> 6, b.first);
+		for (int v = bottom; v < bottom + 100000; v += 5) {
+			assertFalse(b.set(v));
+		}
+		assertEquals(20000, b.card);
+		// doubling keeps the copies logarithmic
+		assertTrue(b.words.length < 2 * b.span());
+	}
+
+	@Test
+	public void bucketCoversBothEnds() {
+		PartitionedBitSet.Bucket b = new PartitionedBitSet.Bucket(0, 64);
+		b.set(1 << 16);
+		int i = b.cover(10, (1 << 12) + 10);
+		assertEquals(10 - b.first, i);
+		assertTrue(b.first <= 10);
+		assertTrue(b.first + b.words.length > (1 << 12) + 10);
+		assertFalse(b.set(1 << 16));
+		assertEquals(1, b.card);
+	}
+
+	@Test
+	public void bucketStaysBelowTheTop() {
+		// the unsigned top of the low 32 bits
+		PartitionedBitSet.Bucket b = new PartitionedBitSet.Bucket(0, 1024);
+		assertTrue(b.set(-1));
+		assertTrue(b.set(-1000));
+		assertFalse(b.set(-1));
+		assertEquals(2, b.card);
+		assertEquals(PartitionedBitSet.Bucket.MAX_WORDS,
+				b.first + (long) b.words.length);
+	}
+}
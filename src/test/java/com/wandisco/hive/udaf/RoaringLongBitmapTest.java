@@ -0,0 +1,155 @@
+package com.wandisco.hive.udaf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.util.Random;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.junit.Test;
+
+public class RoaringLongBitmapTest {
+
+	// after the partial header and the first container's key
+	private static final int FIRST_KIND = DistinctPartialCodec.HEADER_SIZE + 8;
+
+	private static RoaringLongBitmap roundTrip(RoaringLongBitmap bitmap)
+			throws HiveException {
+		RoaringLongBitmap out = new RoaringLongBitmap();
+		out.or(bitmap.serialize());
+		return out;
+	}
+
+	private static void assertSame(RoaringLongBitmap expected,
+			RoaringLongBitmap actual) {
+		assertEquals(expected.cardinality(), actual.cardinality());
+		assertArrayEquals(expected.serialize().copyBytes(), actual
+				.serialize().copyBytes());
+	}
+
+	private static byte firstKind(RoaringLongBitmap bitmap) {
+		return bitmap.serialize().getBytes()[FIRST_KIND];
+	}
+
+	@Test
+	public void arrayContainer() throws HiveException {
+		RoaringLongBitmap bitmap = new RoaringLongBitmap();
+		for (int i = 0; i < 100; i++) {
+			bitmap.add(i * 601L);
+		}
+		assertEquals(RoaringLongBitmap.ARRAY, firstKind(bitmap));
+		assertSame(bitmap, roundTrip(bitmap));
+	}
+
+	@Test
+	public void bitmapContainer() throws HiveException {
+		RoaringLongBitmap bitmap = new RoaringLongBitmap();
+		Random rnd = new Random(6);
+		for (int i = 0; i < 20000; i++) {
+			bitmap.add(rnd.nextInt(1 << 16));
+		}
+		assertEquals(RoaringLongBitmap.BITMAP, firstKind(bitmap));
+		assertSame(bitmap, roundTrip(bitmap));
+	}
+
+	@Test
+	public void runContainer() throws HiveException {
+		RoaringLongBitmap bitmap = new RoaringLongBitmap();
+		for (long v = 1000; v < 60000; v++) {
+			bitmap.add(v);
+		}
+		assertEquals(RoaringLongBitmap.RUN, firstKind(bitmap));
+		assertEquals(59000, bitmap.cardinality());
+		assertSame(bitmap, roundTrip(bitmap));
+	}
+
+	@Test
+	public void keyEdges() throws HiveException {
+		long[] values = { 0, 65535, 65536, -1, -65536, -65537,
+				Long.MIN_VALUE, Long.MAX_VALUE, 1L << 32, (1L << 48) - 1 };
+		RoaringLongBitmap bitmap = new RoaringLongBitmap();
+		for (long v : values) {
+			bitmap.add(v);
+			bitmap.add(v);
+		}
+		assertEquals(values.length, bitmap.cardinality());
+		RoaringLongBitmap out = roundTrip(bitmap);
+		assertSame(bitmap, out);
+		for (long v : values) {
+			out.add(v);
+		}
+		assertEquals(values.length, out.cardinality());
+	}
+
+	@Test
+	public void orOverlappingContainers() throws HiveException {
+		Random rnd = new Random(7);
+		RoaringLongBitmap array = new RoaringLongBitmap();
+		RoaringLongBitmap dense = new RoaringLongBitmap();
+		RoaringLongBitmap runs = new RoaringLongBitmap();
+		RoaringLongBitmap all = new RoaringLongBitmap();
+		for (int i = 0; i < 3000; i++) {
+			long v = rnd.nextInt(1 << 18) - (1 << 17);
+			array.add(v);
+			all.add(v);
+		}
+		for (int i = 0; i < 50000; i++) {
+			long v = rnd.nextInt(1 << 17);
+			dense.add(v);
+			all.add(v);
+		}
+		for (long v = -70000; v < 70000; v++) {
+			runs.add(v);
+			all.add(v);
+		}
+
+		// every order of merging the container kinds gives the same set
+		RoaringLongBitmap[][] orders = { { array, dense, runs },
+				{ runs, dense, array }, { dense, array, runs } };
+		for (RoaringLongBitmap[] order : orders) {
+			RoaringLongBitmap merged = new RoaringLongBitmap();
+			for (RoaringLongBitmap b : order) {
+				merged.or(b.serialize());
+			}
+			assertSame(all, merged);
+			// and merging again changes nothing
+			merged.or(array.serialize());
+			assertSame(all, merged);
+		}
+	}
+
+	@Test
+	public void orIntoPopulated() throws HiveException {
+		RoaringLongBitmap a = new RoaringLongBitmap();
+		RoaringLongBitmap b = new RoaringLongBitmap();
+		RoaringLongBitmap all = new RoaringLongBitmap();
+		for (long v = 0; v < 5000; v += 2) {
+			a.add(v);
+			all.add(v);
+		}
+		for (long v = 1; v < 5000; v += 2) {
+			b.add(v);
+			all.add(v);
+		}
+		a.or(b.serialize());
+		assertSame(all, a);
+	}
+
+	@Test
+	public void empty() throws HiveException {
+		RoaringLongBitmap bitmap = new RoaringLongBitmap();
+		assertSame(bitmap, roundTrip(bitmap));
+		bitmap.add(42);
+		bitmap.clear();
+		assertEquals(0, bitmap.cardinality());
+		assertSame(new RoaringLongBitmap(), bitmap);
+	}
+
+	@Test(expected = HiveException.class)
+	public void rejectsOtherPartials() throws HiveException {
+		TLongHashSet longs = new TLongHashSet();
+		longs.add(1);
+		new RoaringLongBitmap().or(DistinctPartialCodec.encodeLongs(longs));
+	}
+}
@@ -0,0 +1,270 @@
+package com.wandisco.hive.udaf;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gnu.trove.procedure.TLongProcedure;
+import gnu.trove.set.hash.TLongHashSet;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.io.BytesWritable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SortedLongRunsTest {
+
+	private Set<String> before;
+
+	/**
+	 * The spill files in the temp directory.
+	 */
+	private static Set<String> spillFiles() {
+		String[] names = new File(System.getProperty("java.io.tmpdir"))
+				.list(new FilenameFilter() {
+					@Override
+					public boolean accept(File dir, String name) {
+						return name.startsWith("distinct-")
+								&& name.endsWith(".run");
+					}
+				});
+		return new HashSet<String>(Arrays.asList(names));
+	}
+
+	/**
+	 * The spill files created since the test started.
+	 */
+	private Set<String> newSpillFiles() {
+		Set<String> files = spillFiles();
+		files.removeAll(before);
+		return files;
+	}
+
+	@Before
+	public void listSpillFiles() {
+		before = spillFiles();
+	}
+
+	@After
+	public void noSpillFilesLeft() {
+		assertEquals(new HashSet<String>(), newSpillFiles());
+	}
+
+	private static long[] sorted(TreeSet<Long> values) {
+		long[] sorted = new long[values.size()];
+		int i = 0;
+		for (long v : values) {
+			sorted[i++] = v;
+		}
+		return sorted;
+	}
+
+	/**
+	 * Adds {@code n} random values below {@code range} as one run and to
+	 * {@code all}.
+	 */
+	private static void addRun(SortedLongRuns runs, TreeSet<Long> all,
+			Random rnd, int n, long range) throws HiveException {
+		TreeSet<Long> run = new TreeSet<Long>();
+		while (run.size() < n) {
+			run.add((long) (rnd.nextDouble() * range) - range / 2);
+		}
+		all.addAll(run);
+		runs.add(sorted(run), n);
+	}
+
+	private static long[] union(SortedLongRuns runs) throws HiveException {
+		final long[] values = new long[(int) runs.count()];
+		assertTrue(runs.forEachDistinct(new TLongProcedure() {
+			int n;
+
+			@Override
+			public boolean execute(long value) {
+				values[n++] = value;
+				return true;
+			}
+		}));
+		return values;
+	}
+
+	private static long[] decode(BytesWritable partial) throws HiveException {
+		TLongHashSet set = new TLongHashSet();
+		DistinctPartialCodec.reader(partial).readInto(set);
+		long[] values = set.toArray();
+		Arrays.sort(values);
+		return values;
+	}
+
+	@Test
+	public void unionInMemory() throws HiveException {
+		SortedLongRuns runs = new SortedLongRuns();
+		TreeSet<Long> all = new TreeSet<Long>();
+		Random rnd = new Random(15);
+		for (int i = 0; i < 50; i++) {
+			addRun(runs, all, rnd, 1 + rnd.nextInt(500), 20000);
+		}
+		assertEquals(all.size(), runs.count());
+		assertArrayEquals(sorted(all), union(runs));
+		assertTrue(newSpillFiles().isEmpty());
+		runs.compact();
+		assertEquals(all.size(), runs.length());
+		assertArrayEquals(sorted(all),
+				Arrays.copyOf(runs.values(), runs.length()));
+	}
+
+	@Test
+	public void spillsPastTheThreshold() throws HiveException {
+		SortedLongRuns runs = new SortedLongRuns();
+		runs.setSpillThreshold(100);
+		TreeSet<Long> all = new TreeSet<Long>();
+		Random rnd = new Random(16);
+		for (int i = 0; i < 20; i++) {
+			addRun(runs, all, rnd, 60, 1L << 40);
+		}
+		assertFalse(newSpillFiles().isEmpty());
+		assertEquals(all.size(), runs.count());
+		assertArrayEquals(sorted(all), union(runs));
+		runs.clear();
+		assertTrue(runs.isEmpty());
+	}
+
+	@Test
+	public void duplicatesAcrossRunsAndFiles() throws HiveException {
+		SortedLongRuns runs = new SortedLongRuns();
+		runs.setSpillThreshold(1000);
+		TreeSet<Long> all = new TreeSet<Long>();
+		Random rnd = new Random(17);
+		// a narrow range, so every run repeats values of the spilled ones
+		// and of those still in memory
+		for (int i = 0; i < 40; i++) {
+			addRun(runs, all, rnd, 300, 2000);
+		}
+		long[] edges = { Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE };
+		runs.add(edges.clone(), edges.length);
+		runs.add(edges.clone(), edges.length);
+		for (long v : edges) {
+			all.add(v);
+		}
+		assertFalse(newSpillFiles().isEmpty());
+		assertEquals(all.size(), runs.count());
+		assertArrayEquals(sorted(all), union(runs));
+		runs.clear();
+	}
+
+	@Test
+	public void mergesManySpilledRuns() throws HiveException {
+		SortedLongRuns runs = new SortedLongRuns();
+		runs.setSpillThreshold(10);
+		TreeSet<Long> all = new TreeSet<Long>();
+		Random rnd = new Random(18);
+		// well past the 64 files kept open for the final merge
+		for (int i = 0; i < 300; i++) {
+			addRun(runs, all, rnd, 11, 100000);
+		}
+		assertTrue(newSpillFiles().size() <= 64);
+		assertArrayEquals(sorted(all), union(runs));
+		runs.clear();
+	}
+
+	@Test
+	public void encodesAfterSpilling() throws HiveException {
+		SortedLongRuns runs = new SortedLongRuns();
+		runs.setSpillThreshold(500);
+		TreeSet<Long> all = new TreeSet<Long>();
+		Random rnd = new Random(19);
+		for (int i = 0; i < 10; i++) {
+			addRun(runs, all, rnd, 200, 1L << 62);
+		}
+		assertFalse(newSpillFiles().isEmpty());
+		for (boolean pfor : new boolean[] { false, true }) {
+			BytesWritable partial = runs.encode(pfor);
+			assertEquals(DistinctPartialCodec.TYPE_LONG_SORTED_VARINT,
+					DistinctPartialCodec.reader(partial).type());
+			assertArrayEquals(sorted(all), decode(partial));
+		}
+		runs.clear();
+	}
+
+	@Test
+	public void encodesInMemoryRunsAsSortedLongs() throws HiveException {
+		SortedLongRuns runs = new SortedLongRuns();
+		TreeSet<Long> all = new TreeSet<Long>();
+		Random rnd = new Random(20);
+		for (int i = 0; i < 5; i++) {
+			addRun(runs, all, rnd, 100, 1000);
+		}
+		long[] expected = sorted(all);
+		assertArrayEquals(DistinctPartialCodec.encodeSortedLongs(expected,
+				expected.length, true).copyBytes(), runs.encode(true)
+				.copyBytes());
+	}
+
+	@Test
+	public void addsHashSets() throws HiveException {
+		SortedLongRuns runs = new SortedLongRuns();
+		runs.setSpillThreshold(50);
+		TLongHashSet hash = new TLongHashSet();
+		TreeSet<Long> all = new TreeSet<Long>();
+		for (long v = 0; v < 100; v++) {
+			hash.add(v * 3);
+			all.add(v * 3);
+		}
+		runs.addAll(hash);
+		assertTrue(hash.isEmpty());
+		runs.addAll(hash);
+		OffHeapLongSet offHeap = new OffHeapLongSet(0, Long.MAX_VALUE);
+		for (long v = 0; v < 100; v++) {
+			offHeap.add(v * 5);
+			all.add(v * 5);
+		}
+		runs.addAll(offHeap);
+		offHeap.release();
+		assertArrayEquals(sorted(all), union(runs));
+		runs.clear();
+	}
+
+	@Test
+	public void clearDeletesTheSpillFiles() throws HiveException {
+		SortedLongRuns runs = new SortedLongRuns();
+		runs.setSpillThreshold(10);
+		Random rnd = new Random(21);
+		TreeSet<Long> all = new TreeSet<Long>();
+		for (int i = 0; i < 10; i++) {
+			addRun(runs, all, rnd, 20, 1000);
+		}
+		assertFalse(newSpillFiles().isEmpty());
+		runs.clear();
+		assertTrue(newSpillFiles().isEmpty());
+		assertEquals(0, runs.count());
+
+		// and the runs can be used again
+		addRun(runs, all = new TreeSet<Long>(), rnd, 20, 1000);
+		assertArrayEquals(sorted(all), union(runs));
+		runs.clear();
+	}
+
+	@Test
+	public void spillFilesDeletesThoseOfUnclearedRuns() throws HiveException {
+		SortedLongRuns.SpillFiles files = new SortedLongRuns.SpillFiles();
+		Random rnd = new Random(22);
+		for (int r = 0; r < 3; r++) {
+			SortedLongRuns runs = new SortedLongRuns();
+			runs.setSpillThreshold(10);
+			runs.setSpillFiles(files);
+			for (int i = 0; i < 5; i++) {
+				addRun(runs, new TreeSet<Long>(), rnd, 20, 1000);
+			}
+		}
+		assertFalse(newSpillFiles().isEmpty());
+		files.deleteAll();
+	}
+}
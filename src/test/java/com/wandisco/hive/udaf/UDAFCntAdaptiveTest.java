@@ -0,0 +1,137 @@
+package com.wandisco.hive.udaf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.BooleanWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.junit.Test;
+
+public class UDAFCntAdaptiveTest {
+
+	// promotes once the exact set holds more than 100 values
+	private static final long BUDGET = 100L * UDAFCntAdaptive.BYTES_PER_ELEMENT;
+
+	private static ObjectInspector partialOI;
+
+	private static UDAFCntAdaptive.AdaptiveEvaluator mapper()
+			throws HiveException {
+		UDAFCntAdaptive.AdaptiveEvaluator evaluator = new UDAFCntAdaptive.AdaptiveEvaluator();
+		partialOI = evaluator.init(Mode.PARTIAL1, new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+				PrimitiveObjectInspectorFactory
+						.getPrimitiveWritableConstantObjectInspector(
+								TypeInfoFactory.longTypeInfo, new LongWritable(
+										BUDGET)) });
+		return evaluator;
+	}
+
+	private static UDAFCntAdaptive.AdaptiveEvaluator reducer()
+			throws HiveException {
+		UDAFCntAdaptive.AdaptiveEvaluator evaluator = new UDAFCntAdaptive.AdaptiveEvaluator();
+		evaluator.init(Mode.FINAL, new ObjectInspector[] { partialOI });
+		return evaluator;
+	}
+
+	/**
+	 * Iterates {@code [from, to)} into a new group and returns its partial.
+	 */
+	private static Object partial(long from, long to) throws HiveException {
+		UDAFCntAdaptive.AdaptiveEvaluator evaluator = mapper();
+		AggregationBuffer ab = evaluator.getNewAggregationBuffer();
+		for (long v = from; v < to; v++) {
+			evaluator.iterate(ab, new Object[] { new LongWritable(v), null });
+		}
+		return evaluator.terminatePartial(ab);
+	}
+
+	private static List<?> merge(Object... partials) throws HiveException {
+		UDAFCntAdaptive.AdaptiveEvaluator evaluator = reducer();
+		AggregationBuffer ab = evaluator.getNewAggregationBuffer();
+		for (Object partial : partials) {
+			evaluator.merge(ab, partial);
+		}
+		return (List<?>) evaluator.terminate(ab);
+	}
+
+	private static long cardinality(List<?> result) {
+		return ((LongWritable) result.get(0)).get();
+	}
+
+	private static boolean exact(List<?> result) {
+		return ((BooleanWritable) result.get(1)).get();
+	}
+
+	private static void assertEstimate(long expected, List<?> result) {
+		assertFalse(exact(result));
+		assertEquals(expected, cardinality(result), expected * 0.05);
+	}
+
+	@Test
+	public void staysExactWithinTheBudget() throws HiveException {
+		UDAFCntAdaptive.AdaptiveEvaluator evaluator = mapper();
+		AggregationBuffer ab = evaluator.getNewAggregationBuffer();
+		for (long v = 0; v < 100; v++) {
+			evaluator.iterate(ab, new Object[] { new LongWritable(v), null });
+			evaluator.iterate(ab, new Object[] { new LongWritable(v), null });
+		}
+		evaluator.iterate(ab, new Object[] { null, null });
+		List<?> result = (List<?>) evaluator.terminate(ab);
+		assertTrue(exact(result));
+		assertEquals(100, cardinality(result));
+	}
+
+	@Test
+	public void promotesPastTheBudget() throws HiveException {
+		UDAFCntAdaptive.AdaptiveEvaluator evaluator = mapper();
+		AggregationBuffer ab = evaluator.getNewAggregationBuffer();
+		for (long v = 0; v < 101; v++) {
+			evaluator.iterate(ab, new Object[] { new LongWritable(v), null });
+		}
+		List<?> result = (List<?>) evaluator.terminate(ab);
+		assertEstimate(101, result);
+
+		// a reset group starts exact again
+		evaluator.reset(ab);
+		evaluator.iterate(ab, new Object[] { new LongWritable(1), null });
+		result = (List<?>) evaluator.terminate(ab);
+		assertTrue(exact(result));
+		assertEquals(1, cardinality(result));
+	}
+
+	@Test
+	public void mergesExactPartials() throws HiveException {
+		// overlapping, 80 distinct in all
+		List<?> result = merge(partial(0, 50), partial(30, 80), null);
+		assertTrue(exact(result));
+		assertEquals(80, cardinality(result));
+	}
+
+	@Test
+	public void promotesWhenExactPartialsExceedTheBudget() throws HiveException {
+		// each partial fits, their union does not
+		List<?> result = merge(partial(0, 90), partial(60, 150));
+		assertEstimate(150, result);
+	}
+
+	@Test
+	public void mergesExactIntoPromoted() throws HiveException {
+		assertEstimate(3000, merge(partial(0, 20), partial(10, 3000)));
+		assertEstimate(3000, merge(partial(10, 3000), partial(0, 20)));
+	}
+
+	@Test
+	public void mergesPromotedPartials() throws HiveException {
+		assertEstimate(5000,
+				merge(partial(0, 3000), partial(2000, 5000), partial(0, 50)));
+	}
+}
@@ -0,0 +1,55 @@
+package com.wandisco.hive.udaf;
+
+import static org.junit.Assert.assertEquals;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.junit.Test;
+
+public class UDAFCntIntTest {
+
+	private static List<BytesWritable> partial(long base, int... offsets) {
+		return Arrays.asList(DistinctPartialCodec.encodeIntRange(base,
+				new TIntHashSet(offsets)));
+	}
+
+	private static long merge(List<?>... partials) throws HiveException {
+		UDAFCntInt.CountEvaluator evaluator = new UDAFCntInt.CountEvaluator();
+		evaluator
+				.init(Mode.FINAL,
+						new ObjectInspector[] { ObjectInspectorFactory
+								.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.writableBinaryObjectInspector) });
+		AggregationBuffer ab = evaluator.getNewAggregationBuffer();
+		for (List<?> partial : partials) {
+			evaluator.merge(ab, partial);
+		}
+		return ((LongWritable) evaluator.terminate(ab)).get();
+	}
+
+	@Test
+	public void mergesPartialsOfOneBase() throws HiveException {
+		assertEquals(4, merge(partial(10, 1, 2, 3), partial(10, 3, 4)));
+	}
+
+	@Test
+	public void emptyPartialsDoNotFixTheBase() throws HiveException {
+		// groups with no rows on a mapper still write the default base
+		assertEquals(3, merge(partial(0), partial(10, 1, 2), partial(0),
+				partial(10, 2, 3)));
+	}
+
+	@Test(expected = HiveException.class)
+	public void rejectsPartialsOfAnotherBase() throws HiveException {
+		merge(partial(10, 1, 2), partial(0), partial(20, 1));
+	}
+}